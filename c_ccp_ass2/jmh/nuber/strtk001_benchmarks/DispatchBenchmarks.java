@@ -0,0 +1,286 @@
+package nuber.strtk001_benchmarks;
+
+import nuber.strtk001_utilities.DelayMode;
+import nuber.students.Booking;
+import nuber.students.DispatchConfig;
+import nuber.students.Driver;
+import nuber.students.NuberDispatch;
+import nuber.students.Passenger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The JMH version of DispatchBenchmarkSuite, measuring the pieces of the dispatch that bookings go through:
+ *
+ *  - handing drivers out of and back into the dispatch with getDriver and addDriver
+ *  - creating Booking objects
+ *  - submitting bookings to a region with bookPassenger
+ *  - end to end booking throughput across driver counts, region counts and maxSimultaneousJobs,
+ *    with one shared driver pool and with a driver pool per region
+ *
+ * Every trial builds its own DispatchConfig, so no trial runs with settings left behind by another.
+ * Drivers don't sleep by default, and -p delayMode=FIXED -p maxSleep=n brings the sleeps back.
+ *
+ * Run with: gradle jmh, or gradle jmhJar then java -jar build/libs/c_ccp_ass2-jmh.jar
+ *
+ * @author strtk001
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmarks
+{
+    /**
+     * Number of bookings per submission and end to end invocation
+     */
+    private static final int BOOKINGS = 10_000;
+
+    /**
+     * Settings every benchmark shares
+     */
+    @State(Scope.Benchmark)
+    public static class Settings
+    {
+        @Param({"NONE"})
+        public DelayMode delayMode;
+
+        @Param({"1"})
+        public int maxSleep;
+
+        /**
+         * @return A config of its own for the trial
+         */
+        DispatchConfig config()
+        {
+            return new DispatchConfig().setDelayMode(delayMode).setRegisterMBeans(false);
+        }
+    }
+
+    /**
+     * A dispatch with no regions and half as many drivers as there are benchmark threads, so with
+     * more than one thread, handoffs go to waiting threads
+     */
+    @State(Scope.Benchmark)
+    public static class Handoff
+    {
+        NuberDispatch dispatch;
+
+        @Setup(Level.Trial)
+        public void setUp(Settings settings, BenchmarkParams params)
+        {
+            dispatch = dispatch(settings.config(), 0, 0, Math.max(1, params.getThreads() / 2), settings.maxSleep);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown()
+        {
+            dispatch.shutdown();
+        }
+    }
+
+    /**
+     * A dispatch to create bookings against, which never runs them
+     */
+    @State(Scope.Benchmark)
+    public static class Creation
+    {
+        NuberDispatch dispatch;
+        Passenger passenger;
+
+        @Setup(Level.Trial)
+        public void setUp(Settings settings)
+        {
+            dispatch = dispatch(settings.config(), 0, 0, 0, settings.maxSleep);
+            passenger = new Passenger("P", settings.maxSleep);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown()
+        {
+            dispatch.shutdown();
+        }
+    }
+
+    /**
+     * A fresh dispatch with one region for every invocation, whose bookings are left to finish
+     * afterwards, untimed
+     */
+    @State(Scope.Benchmark)
+    public static class Submission
+    {
+        @Param({"10", "100"})
+        public int maxJobs;
+
+        DispatchConfig config;
+        int maxSleep;
+        List<Passenger> passengers;
+        NuberDispatch dispatch;
+        CompletableFuture<?>[] bookings;
+
+        @Setup(Level.Trial)
+        public void setUpTrial(Settings settings)
+        {
+            config = settings.config();
+            maxSleep = settings.maxSleep;
+            passengers = passengers(BOOKINGS, maxSleep);
+        }
+
+        @Setup(Level.Invocation)
+        public void setUp()
+        {
+            dispatch = dispatch(config, 1, maxJobs, 100, maxSleep);
+            bookings = new CompletableFuture<?>[BOOKINGS];
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown()
+        {
+            CompletableFuture.allOf(bookings).join();
+            dispatch.shutdown();
+        }
+    }
+
+    /**
+     * A dispatch with every combination of driver count, region count, maxSimultaneousJobs and
+     * driver pooling, that books passengers spread over every region
+     */
+    @State(Scope.Benchmark)
+    public static class EndToEnd
+    {
+        @Param({"false", "true"})
+        public boolean regionPools;
+
+        @Param({"10", "100", "900"})
+        public int drivers;
+
+        @Param({"1", "4"})
+        public int regions;
+
+        @Param({"10", "100"})
+        public int maxJobs;
+
+        NuberDispatch dispatch;
+        List<Passenger> passengers;
+
+        @Setup(Level.Trial)
+        public void setUp(Settings settings)
+        {
+            DispatchConfig config = settings.config().setRegionDriverPools(regionPools);
+            dispatch = dispatch(config, regions, maxJobs, drivers, settings.maxSleep);
+            passengers = passengers(BOOKINGS, settings.maxSleep);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown()
+        {
+            dispatch.shutdown();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Driver handoff1Thread(Handoff state)
+    {
+        return handoff(state.dispatch);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Driver handoff4Threads(Handoff state)
+    {
+        return handoff(state.dispatch);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Driver handoff16Threads(Handoff state)
+    {
+        return handoff(state.dispatch);
+    }
+
+    @Benchmark
+    public int bookingCreation(Creation state)
+    {
+        return new Booking(state.dispatch, state.passenger).getBookingID();
+    }
+
+    /**
+     * Times only the bookPassenger calls
+     */
+    @Benchmark
+    @OperationsPerInvocation(BOOKINGS)
+    public void regionSubmission(Submission state) throws Exception
+    {
+        for (int i = 0; i < BOOKINGS; i++)
+            state.bookings[i] = state.dispatch.bookPassenger(state.passengers.get(i), "Region 0");
+    }
+
+    /**
+     * Books every passenger and waits for all of them to arrive
+     */
+    @Benchmark
+    @OperationsPerInvocation(BOOKINGS)
+    public void endToEnd(EndToEnd state) throws Exception
+    {
+        CompletableFuture<?>[] bookings = new CompletableFuture<?>[BOOKINGS];
+        for (int i = 0; i < BOOKINGS; i++)
+            bookings[i] = state.dispatch.bookPassenger(state.passengers.get(i), "Region " + (i % state.regions));
+        CompletableFuture.allOf(bookings).join();
+    }
+
+    /**
+     * Takes a driver from the dispatch and puts it straight back
+     */
+    private static Driver handoff(NuberDispatch dispatch)
+    {
+        Driver driver = dispatch.getDriver();
+        dispatch.addDriver(driver);
+        return driver;
+    }
+
+    /**
+     * Creates a dispatch with the given regions and drivers
+     */
+    private static NuberDispatch dispatch(DispatchConfig config, int regions, int maxJobs, int drivers, int maxSleep)
+    {
+        HashMap<String, Integer> regionInfo = new HashMap<String, Integer>();
+        for (int i = 0; i < regions; i++)
+            regionInfo.put("Region " + i, maxJobs);
+        NuberDispatch dispatch = new NuberDispatch(regionInfo, false, config);
+        for (int i = 0; i < drivers; i++)
+            dispatch.addDriver(new Driver("D-" + i, maxSleep));
+        return dispatch;
+    }
+
+    private static List<Passenger> passengers(int count, int maxSleep)
+    {
+        List<Passenger> passengers = new ArrayList<Passenger>(count);
+        for (int i = 0; i < count; i++)
+            passengers.add(new Passenger("P-" + i, maxSleep));
+        return passengers;
+    }
+}
@@ -0,0 +1,88 @@
+package nuber.strtk001_benchmarks;
+
+import nuber.strtk001_utilities.SimulatedClock;
+import nuber.students.BatchAssignment;
+import nuber.students.BookingLatencies;
+import nuber.students.BookingPhase;
+import nuber.students.BookingResult;
+import nuber.students.DispatchConfig;
+import nuber.students.Driver;
+import nuber.students.DriverMatching;
+import nuber.students.Location;
+import nuber.students.NuberDispatch;
+import nuber.students.Passenger;
+
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Compares matching each booking to a driver as soon as it asks for one with matching in batches,
+ * under a heavy load where far more bookings are active than there are drivers.
+ *
+ * Runs in simulated time, so the waits and pickups reported are in simulated milliseconds and
+ * the same whatever machine runs it. Matches per second is in wall time.
+ *
+ * Usage: BatchMatchingBenchmark [drivers] [passengers] [citySize] [windowMillis]
+ *
+ * @author strtk001
+ *
+ */
+public class BatchMatchingBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int drivers = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int passengers = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int citySize = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        long window = args.length > 3 ? Long.parseLong(args[3]) : 50;
+
+        System.out.println("matching, matches/s, wait p50 ms, wait p99 ms, pickup p50 ms, pickup p99 ms, total p50 ms, simulated ms");
+        run("immediate", new DispatchConfig(), drivers, passengers, citySize);
+        run("window " + window + "ms greedy", new DispatchConfig().setMatchingWindowMillis(window)
+                .setBatchAssignment(BatchAssignment.GREEDY), drivers, passengers, citySize);
+        run("window " + window + "ms optimal", new DispatchConfig().setMatchingWindowMillis(window)
+                .setBatchAssignment(BatchAssignment.OPTIMAL), drivers, passengers, citySize);
+    }
+
+    private static void run(String name, DispatchConfig config, int drivers, int passengers, int citySize) throws Exception
+    {
+        SimulatedClock clock = new SimulatedClock();
+        config.setClock(clock).setDriverMatching(DriverMatching.NEAREST).setGridCellSize(citySize / 20.0)
+                .setRegisterMBeans(false);
+        HashMap<String, Integer> regions = new HashMap<String, Integer>();
+        regions.put("City", passengers);
+        NuberDispatch dispatch = new NuberDispatch(regions, false, config);
+        for (int i = 0; i < drivers; i++)
+        {
+            Driver driver = new Driver("D-" + i, citySize);
+            driver.setLocation(Location.random(citySize));
+            dispatch.addDriver(driver);
+        }
+
+        long start = System.nanoTime();
+        clock.hold();
+        CompletableFuture<?>[] bookings = new CompletableFuture<?>[passengers];
+        for (int i = 0; i < passengers; i++)
+        {
+            Passenger passenger = new Passenger("P-" + i, citySize);
+            passenger.setLocation(Location.random(citySize));
+            passenger.setDestination(Location.random(citySize));
+            bookings[i] = dispatch.bookPassenger(passenger, "City");
+        }
+        long simulationStart = clock.nanoTime();
+        clock.release();
+        CompletableFuture.allOf(bookings).join();
+        long elapsed = System.nanoTime() - start;
+        dispatch.shutdown();
+
+        BookingLatencies latencies = dispatch.getLatencies().get("City");
+        System.out.printf("%s, %.0f, %.1f, %.1f, %.1f, %.1f, %.1f, %d%n", name,
+                passengers * 1e9 / elapsed,
+                latencies.get(BookingPhase.WAITING_FOR_DRIVER).getPercentile(0.5) / 1e6,
+                latencies.get(BookingPhase.WAITING_FOR_DRIVER).getPercentile(0.99) / 1e6,
+                latencies.get(BookingPhase.PICKUP).getPercentile(0.5) / 1e6,
+                latencies.get(BookingPhase.PICKUP).getPercentile(0.99) / 1e6,
+                latencies.get(BookingPhase.TOTAL).getPercentile(0.5) / 1e6,
+                (clock.nanoTime() - simulationStart) / 1_000_000);
+    }
+}
@@ -0,0 +1,116 @@
+package nuber.strtk001_benchmarks;
+
+/**
+ * A small benchmark runner in the style of JMH, for running the benchmarks straight from the IDE
+ * without the Gradle build. The dispatch benchmarks also have JMH versions under jmh/, which fork a
+ * fresh JVM for each benchmark and should be preferred for numbers that get compared.
+ *
+ * Each trial is set up, run for a number of warmup iterations that are thrown away so the JIT
+ * can settle, then run for a number of measured iterations. The throughput of every measured
+ * iteration is recorded and reported as a mean and standard deviation in operations per second.
+ *
+ * @author strtk001
+ *
+ */
+public class BenchmarkHarness
+{
+    /**
+     * Something to measure. setUp and tearDown are run around every iteration but are not timed.
+     */
+    public interface Trial
+    {
+        default void setUp() throws Exception {}
+
+        /**
+         * Does the work being measured
+         *
+         * @return The number of operations done
+         */
+        long run() throws Exception;
+
+        default void tearDown() throws Exception {}
+    }
+
+    /**
+     * Number of iterations run before measuring
+     */
+    private final int warmupIterations;
+    /**
+     * Number of iterations measured
+     */
+    private final int measuredIterations;
+
+    /**
+     * Results from runs are folded in here so the JIT can't decide they are unused
+     */
+    private static volatile long blackhole;
+
+    /**
+     * @param warmupIterations Number of iterations run before measuring
+     * @param measuredIterations Number of iterations measured
+     */
+    public BenchmarkHarness(int warmupIterations, int measuredIterations)
+    {
+        this.warmupIterations = warmupIterations;
+        this.measuredIterations = Math.max(1, measuredIterations);
+    }
+
+    /**
+     * Keeps a value alive, so the work that produced it can't be optimised away
+     *
+     * @param value The value to consume
+     */
+    public static void consume(long value)
+    {
+        blackhole += value;
+    }
+
+    /**
+     * Runs a trial and prints its throughput as one comma separated line
+     *
+     * @param name What to call the trial in the results
+     * @param trial The trial to run
+     * @return The mean throughput, in operations per second
+     */
+    public double measure(String name, Trial trial) throws Exception
+    {
+        for (int i = 0; i < warmupIterations; i++)
+            iteration(trial);
+
+        double[] throughput = new double[measuredIterations];
+        double sum = 0;
+        for (int i = 0; i < measuredIterations; i++)
+        {
+            throughput[i] = iteration(trial);
+            sum += throughput[i];
+        }
+        double mean = sum / measuredIterations;
+        double squares = 0;
+        for (double value : throughput)
+            squares += (value - mean) * (value - mean);
+        double deviation = measuredIterations > 1 ? Math.sqrt(squares / (measuredIterations - 1)) : 0;
+
+        System.out.printf("%s, %.0f, %.0f%n", name, mean, deviation);
+        return mean;
+    }
+
+    /**
+     * Runs one iteration of a trial
+     *
+     * @return The iteration's throughput, in operations per second
+     */
+    private static double iteration(Trial trial) throws Exception
+    {
+        trial.setUp();
+        long operations;
+        long elapsed;
+        try {
+            long start = System.nanoTime();
+            operations = trial.run();
+            elapsed = Math.max(1, System.nanoTime() - start);
+        } finally {
+            trial.tearDown();
+        }
+        return operations * 1e9 / elapsed;
+    }
+}
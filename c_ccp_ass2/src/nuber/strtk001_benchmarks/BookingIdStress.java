@@ -0,0 +1,87 @@
+package nuber.strtk001_benchmarks;
+
+import nuber.students.Booking;
+import nuber.students.DispatchConfig;
+import nuber.students.NuberDispatch;
+import nuber.students.Passenger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Creates bookings from many threads at once and checks that no two bookings were given the
+ * same ID, for a range of ID block sizes. Also reports how many IDs per second were handed out.
+ *
+ * Exits with a non-zero status if a duplicate ID is found.
+ *
+ * @author strtk001
+ *
+ */
+public class BookingIdStress
+{
+    /**
+     * The number of threads creating bookings
+     */
+    private static final int THREADS = 16;
+    /**
+     * The number of bookings each thread creates
+     */
+    private static final int BOOKINGS_PER_THREAD = 200_000;
+    /**
+     * The block sizes to try
+     */
+    private static final int[] BLOCK_SIZES = {1, 16, 256};
+
+    public static void main(String[] args) throws Exception
+    {
+        boolean duplicates = false;
+        System.out.println("block size, IDs/s, duplicates");
+        for (int blockSize : BLOCK_SIZES)
+        {
+            NuberDispatch dispatch = new NuberDispatch(new HashMap<String, Integer>(), false,
+                    new DispatchConfig().setBookingIdBlockSize(blockSize).setRegisterMBeans(false));
+            Passenger passenger = new Passenger("Stress", 100);
+
+            //IDs can run past THREADS * BOOKINGS_PER_THREAD by up to a block per thread
+            AtomicIntegerArray seen = new AtomicIntegerArray(THREADS * (BOOKINGS_PER_THREAD + blockSize) + 1);
+            AtomicIntegerArray duplicateCount = new AtomicIntegerArray(1);
+            CountDownLatch start = new CountDownLatch(1);
+
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < THREADS; t++)
+            {
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < BOOKINGS_PER_THREAD; i++)
+                    {
+                        int id = new Booking(dispatch, passenger).getBookingID();
+                        if (seen.getAndIncrement(id) != 0)
+                            duplicateCount.incrementAndGet(0);
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+
+            long startTime = System.nanoTime();
+            start.countDown();
+            for (Thread thread : threads)
+                thread.join();
+            long elapsed = System.nanoTime() - startTime;
+            dispatch.shutdown();
+
+            long ids = (long) THREADS * BOOKINGS_PER_THREAD;
+            System.out.println(blockSize + ", " + (ids * 1_000_000_000L / elapsed) + ", " + duplicateCount.get(0));
+            duplicates |= duplicateCount.get(0) != 0;
+        }
+        if (duplicates)
+            System.exit(1);
+    }
+}
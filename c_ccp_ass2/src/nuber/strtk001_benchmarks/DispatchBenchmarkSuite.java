@@ -0,0 +1,246 @@
+package nuber.strtk001_benchmarks;
+
+import nuber.strtk001_utilities.DelayMode;
+import nuber.students.Booking;
+import nuber.students.BookingResult;
+import nuber.students.DispatchConfig;
+import nuber.students.Driver;
+import nuber.students.NuberDispatch;
+import nuber.students.Passenger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Benchmarks the pieces of the dispatch that bookings go through:
+ *
+ *  - handing drivers out of and back into the dispatch with getDriver and addDriver
+ *  - creating Booking objects
+ *  - submitting bookings to a region with bookPassenger
+ *  - end to end booking throughput across driver counts, region counts and maxSimultaneousJobs,
+ *    with one shared driver pool and with a driver pool per region
+ *
+ * Drivers don't sleep by default (DelayMode.NONE), so the numbers are the cost of coordinating
+ * bookings rather than of the simulated driving. Passing FIXED and a maxSleep brings the sleeps back
+ * with a predictable length.
+ *
+ * This is the quick runner that needs nothing but the JDK. The same benchmarks are under jmh/ as JMH
+ * benchmarks, run with gradle jmh, which are the figures to trust when comparing changes.
+ *
+ * Usage: DispatchBenchmarkSuite [delayMode] [maxSleep] [warmupIterations] [measuredIterations]
+ *
+ * @author strtk001
+ *
+ */
+public class DispatchBenchmarkSuite
+{
+    /**
+     * Number of get/add pairs each thread does per handoff iteration
+     */
+    private static final int HANDOFFS = 100_000;
+    /**
+     * Number of bookings created per booking creation iteration
+     */
+    private static final int BOOKINGS_CREATED = 100_000;
+    /**
+     * Number of bookings per submission and end to end iteration
+     */
+    private static final int BOOKINGS = 10_000;
+
+    private static final int[] HANDOFF_THREADS = {1, 4, 16};
+    private static final int[] DRIVER_COUNTS = {10, 100, 900};
+    private static final int[] REGION_COUNTS = {1, 4};
+    private static final int[] MAX_SIMULTANEOUS_JOBS = {10, 100};
+
+    public static void main(String[] args) throws Exception
+    {
+        DelayMode delayMode = args.length > 0 ? DelayMode.valueOf(args[0]) : DelayMode.NONE;
+        int maxSleep = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        int warmups = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        BenchmarkHarness harness = new BenchmarkHarness(warmups, iterations);
+
+        System.out.println("benchmark, ops/s, stddev");
+
+        for (int threads : HANDOFF_THREADS)
+            harness.measure("handoff threads=" + threads, handoff(config(delayMode), threads, maxSleep));
+
+        harness.measure("booking creation", bookingCreation(config(delayMode), maxSleep));
+
+        for (int maxJobs : MAX_SIMULTANEOUS_JOBS)
+            harness.measure("region submission maxJobs=" + maxJobs, regionSubmission(config(delayMode), maxJobs, maxSleep));
+
+        for (boolean regionPools : new boolean[] {false, true})
+            for (int drivers : DRIVER_COUNTS)
+                for (int regions : REGION_COUNTS)
+                    for (int maxJobs : MAX_SIMULTANEOUS_JOBS)
+                        harness.measure("end to end " + (regionPools ? "region pools" : "shared pool") + " drivers=" + drivers
+                                        + " regions=" + regions + " maxJobs=" + maxJobs,
+                                endToEnd(config(delayMode).setRegionDriverPools(regionPools), drivers, regions, maxJobs, maxSleep));
+    }
+
+    /**
+     * @return A config of its own for one trial, so no trial sees settings another trial changed
+     */
+    private static DispatchConfig config(DelayMode delayMode)
+    {
+        return new DispatchConfig().setDelayMode(delayMode).setRegisterMBeans(false);
+    }
+
+    /**
+     * Creates a dispatch with the given regions and drivers
+     */
+    private static NuberDispatch dispatch(DispatchConfig config, int regions, int maxJobs, int drivers, int maxSleep)
+    {
+        HashMap<String, Integer> regionInfo = new HashMap<String, Integer>();
+        for (int i = 0; i < regions; i++)
+            regionInfo.put("Region " + i, maxJobs);
+        NuberDispatch dispatch = new NuberDispatch(regionInfo, false, config);
+        for (int i = 0; i < drivers; i++)
+            dispatch.addDriver(new Driver("D-" + i, maxSleep));
+        return dispatch;
+    }
+
+    /**
+     * Threads repeatedly take a driver from the dispatch and put it straight back. There are half
+     * as many drivers as threads, so with more than one thread, handoffs go to waiting threads.
+     */
+    private static BenchmarkHarness.Trial handoff(DispatchConfig config, int threads, int maxSleep)
+    {
+        return new BenchmarkHarness.Trial()
+        {
+            private NuberDispatch dispatch;
+
+            public void setUp()
+            {
+                dispatch = dispatch(config, 0, 0, Math.max(1, threads / 2), maxSleep);
+            }
+
+            public long run() throws Exception
+            {
+                Thread[] workers = new Thread[threads];
+                for (int i = 0; i < threads; i++)
+                {
+                    workers[i] = new Thread(() -> {
+                        for (int j = 0; j < HANDOFFS; j++)
+                            dispatch.addDriver(dispatch.getDriver());
+                    });
+                    workers[i].start();
+                }
+                for (Thread worker : workers)
+                    worker.join();
+                return (long) threads * HANDOFFS;
+            }
+
+            public void tearDown()
+            {
+                dispatch.shutdown();
+            }
+        };
+    }
+
+    /**
+     * Creates bookings without running them
+     */
+    private static BenchmarkHarness.Trial bookingCreation(DispatchConfig config, int maxSleep)
+    {
+        return new BenchmarkHarness.Trial()
+        {
+            private NuberDispatch dispatch;
+            private final Passenger passenger = new Passenger("P", maxSleep);
+
+            public void setUp()
+            {
+                dispatch = dispatch(config, 0, 0, 0, maxSleep);
+            }
+
+            public long run()
+            {
+                long ids = 0;
+                for (int i = 0; i < BOOKINGS_CREATED; i++)
+                    ids += new Booking(dispatch, passenger).getBookingID();
+                BenchmarkHarness.consume(ids);
+                return BOOKINGS_CREATED;
+            }
+
+            public void tearDown()
+            {
+                dispatch.shutdown();
+            }
+        };
+    }
+
+    /**
+     * Times only the bookPassenger calls. The bookings are left to finish, untimed, before the next iteration.
+     */
+    private static BenchmarkHarness.Trial regionSubmission(DispatchConfig config, int maxJobs, int maxSleep)
+    {
+        return new BenchmarkHarness.Trial()
+        {
+            private NuberDispatch dispatch;
+            private final List<CompletableFuture<BookingResult>> bookings = new ArrayList<CompletableFuture<BookingResult>>();
+            private final List<Passenger> passengers = passengers(BOOKINGS, maxSleep);
+
+            public void setUp()
+            {
+                dispatch = dispatch(config, 1, maxJobs, 100, maxSleep);
+                bookings.clear();
+            }
+
+            public long run() throws Exception
+            {
+                for (Passenger passenger : passengers)
+                    bookings.add(dispatch.bookPassenger(passenger, "Region 0"));
+                return BOOKINGS;
+            }
+
+            public void tearDown()
+            {
+                CompletableFuture.allOf(bookings.toArray(new CompletableFuture<?>[0])).join();
+                dispatch.shutdown();
+            }
+        };
+    }
+
+    /**
+     * Books passengers spread over every region and waits for all of them to arrive
+     */
+    private static BenchmarkHarness.Trial endToEnd(DispatchConfig config, int drivers, int regions, int maxJobs, int maxSleep)
+    {
+        return new BenchmarkHarness.Trial()
+        {
+            private NuberDispatch dispatch;
+            private final List<Passenger> passengers = passengers(BOOKINGS, maxSleep);
+
+            public void setUp()
+            {
+                dispatch = dispatch(config, regions, maxJobs, drivers, maxSleep);
+            }
+
+            public long run() throws Exception
+            {
+                CompletableFuture<?>[] bookings = new CompletableFuture<?>[passengers.size()];
+                for (int i = 0; i < bookings.length; i++)
+                    bookings[i] = dispatch.bookPassenger(passengers.get(i), "Region " + (i % regions));
+                CompletableFuture.allOf(bookings).join();
+                return bookings.length;
+            }
+
+            public void tearDown()
+            {
+                dispatch.shutdown();
+            }
+        };
+    }
+
+    private static List<Passenger> passengers(int count, int maxSleep)
+    {
+        List<Passenger> passengers = new ArrayList<Passenger>(count);
+        for (int i = 0; i < count; i++)
+            passengers.add(new Passenger("P-" + i, maxSleep));
+        return passengers;
+    }
+}
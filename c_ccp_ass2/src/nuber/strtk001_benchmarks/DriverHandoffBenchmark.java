@@ -0,0 +1,137 @@
+package nuber.strtk001_benchmarks;
+
+import nuber.students.Driver;
+import nuber.students.DriverPool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how many driver handoffs per second a driver pool manages as the number of bookings
+ * waiting for a driver grows.
+ *
+ * Every waiting thread repeatedly takes a driver, holds it for a short simulated trip and hands
+ * it back, so the pool is always short of drivers and each handoff has to go to a waiting booking.
+ * The old monitor based pool is run alongside DriverPool for comparison.
+ *
+ * @author strtk001
+ *
+ */
+public class DriverHandoffBenchmark
+{
+    /**
+     * The number of drivers shared between the waiting threads
+     */
+    private static final int DRIVERS = 4;
+    /**
+     * How long each configuration is measured for, in milliseconds
+     */
+    private static final int RUN_MILLIS = 2000;
+    /**
+     * How long each thread holds on to a driver, in nanoseconds
+     */
+    private static final long TRIP_NANOS = 50_000;
+    /**
+     * The numbers of waiting bookings to measure
+     */
+    private static final int[] WAITING_BOOKINGS = {8, 64, 256, 1024, 2048};
+
+    /**
+     * The two operations a booking needs from a driver pool
+     */
+    private interface Pool
+    {
+        Driver get();
+        void add(Driver driver);
+    }
+
+    /**
+     * The original synchronized pool, which wakes every waiting thread on each handoff
+     */
+    private static class MonitorPool implements Pool
+    {
+        private final BlockingQueue<Driver> idleDrivers = new ArrayBlockingQueue<Driver>(999);
+
+        public synchronized Driver get()
+        {
+            while (idleDrivers.size() == 0)
+            {
+                try {
+                    wait();
+                } catch (InterruptedException e) {}
+            }
+            notifyAll();
+            return idleDrivers.poll();
+        }
+
+        public synchronized void add(Driver driver)
+        {
+            idleDrivers.add(driver);
+            notifyAll();
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        System.out.println("waiting bookings, monitor handoffs/s, DriverPool handoffs/s");
+        for (int waiting : WAITING_BOOKINGS)
+        {
+            DriverPool driverPool = new DriverPool();
+            long monitor = run(new MonitorPool(), waiting);
+            long exchange = run(new Pool() {
+                public Driver get() { return driverPool.getDriver(); }
+                public void add(Driver driver) { driverPool.addDriver(driver); }
+            }, waiting);
+            System.out.println(waiting + ", " + monitor + ", " + exchange);
+        }
+    }
+
+    /**
+     * Runs the given number of waiting threads against a pool for RUN_MILLIS
+     *
+     * @param pool The pool to measure
+     * @param waiting The number of threads competing for drivers
+     * @return The number of handoffs per second
+     */
+    private static long run(Pool pool, int waiting) throws InterruptedException
+    {
+        for (int i = 0; i < DRIVERS; i++)
+            pool.add(new Driver("D-" + i, 0));
+
+        LongAdder handoffs = new LongAdder();
+        AtomicBoolean stop = new AtomicBoolean();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < waiting; i++)
+        {
+            Thread t = new Thread(() -> {
+                while (!stop.get())
+                {
+                    Driver d = pool.get();
+                    handoffs.increment();
+                    LockSupport.parkNanos(TRIP_NANOS);
+                    pool.add(d);
+                }
+            });
+            threads.add(t);
+        }
+        threads.forEach(Thread::start);
+
+        Thread.sleep(RUN_MILLIS / 4);
+        long startCount = handoffs.sum();
+        long start = System.nanoTime();
+        Thread.sleep(RUN_MILLIS);
+        long count = handoffs.sum() - startCount;
+        long elapsed = System.nanoTime() - start;
+
+        //every thread finishes its current handoff and hands its driver on before stopping
+        stop.set(true);
+        for (Thread t : threads)
+            t.join();
+        return count * 1_000_000_000L / elapsed;
+    }
+}
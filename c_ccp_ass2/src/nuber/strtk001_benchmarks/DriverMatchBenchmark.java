@@ -0,0 +1,93 @@
+package nuber.strtk001_benchmarks;
+
+import nuber.strtk001_utilities.LatencyHistogram;
+import nuber.students.Driver;
+import nuber.students.DriverPool;
+import nuber.students.FifoDriverIndex;
+import nuber.students.GridDriverIndex;
+import nuber.students.IdleDriverIndex;
+import nuber.students.Location;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how long it takes to match a booking to an idle driver with a large number of idle
+ * drivers, and how far the matched driver is from the passenger, for FIFO and nearest driver matching.
+ *
+ * Each thread repeatedly asks the pool for a driver for a passenger at a random location, then
+ * drops that driver off at a new random location and puts it back, so the pool stays full.
+ *
+ * Usage: DriverMatchBenchmark [idleDrivers] [matchesPerThread] [citySize] [cellSize]
+ *
+ * @author strtk001
+ *
+ */
+public class DriverMatchBenchmark
+{
+    /**
+     * The numbers of threads matching at once
+     */
+    private static final int[] THREADS = {1, 4};
+
+    public static void main(String[] args) throws Exception
+    {
+        int drivers = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int matches = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        double citySize = args.length > 2 ? Double.parseDouble(args[2]) : 10_000;
+        //about one driver per cell on average
+        double cellSize = args.length > 3 ? Double.parseDouble(args[3]) : citySize / Math.sqrt(drivers);
+
+        System.out.println("index, threads, matches/s, p50 us, p99 us, p999 us, mean pickup distance");
+        for (int threads : THREADS)
+        {
+            run("FIFO", new FifoDriverIndex(), threads, drivers, matches, citySize);
+            run("GRID", new GridDriverIndex(cellSize), threads, drivers, matches, citySize);
+        }
+    }
+
+    private static void run(String name, IdleDriverIndex index, int threads, int drivers, int matches, double citySize)
+            throws Exception
+    {
+        DriverPool pool = new DriverPool(index);
+        for (int i = 0; i < drivers; i++)
+        {
+            Driver driver = new Driver("D-" + i, 0);
+            driver.setLocation(Location.random(citySize));
+            pool.addDriver(driver);
+        }
+
+        LatencyHistogram latency = new LatencyHistogram();
+        DoubleAdder distance = new DoubleAdder();
+        LongAdder matched = new LongAdder();
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++)
+        {
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < matches; i++)
+                {
+                    Location passenger = Location.random(citySize);
+                    long before = System.nanoTime();
+                    Driver driver = pool.getDriver(passenger);
+                    latency.record(System.nanoTime() - before);
+                    distance.add(driver.getLocation().distanceTo(passenger));
+                    matched.increment();
+                    driver.setLocation(Location.random(citySize));
+                    pool.addDriver(driver);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("%s, %d, %.0f, %.1f, %.1f, %.1f, %.1f%n", name, threads,
+                matched.sum() * 1e9 / elapsed,
+                latency.getPercentile(0.5) / 1e3,
+                latency.getPercentile(0.99) / 1e3,
+                latency.getPercentile(0.999) / 1e3,
+                distance.sum() / matched.sum());
+    }
+}
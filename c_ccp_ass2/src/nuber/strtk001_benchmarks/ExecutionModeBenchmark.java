@@ -0,0 +1,89 @@
+package nuber.strtk001_benchmarks;
+
+import nuber.students.DispatchConfig;
+import nuber.students.ExecutionMode;
+import nuber.students.Simulation;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+
+/**
+ * Runs the same Simulation with platform thread and virtual thread regions, and reports the
+ * throughput, peak platform thread count and peak heap use of each run.
+ *
+ * The thread count comes from ThreadMXBean, which only sees platform threads. In virtual thread
+ * mode it counts the carrier threads the bookings run on, not the bookings' own threads.
+ *
+ * Usage: ExecutionModeBenchmark [drivers] [passengers] [maxSleep]
+ *
+ * @author strtk001
+ *
+ */
+public class ExecutionModeBenchmark
+{
+    /**
+     * How often the heap is sampled while a simulation runs, in milliseconds
+     */
+    private static final int SAMPLE_MILLIS = 10;
+
+    public static void main(String[] args) throws Exception
+    {
+        int drivers = args.length > 0 ? Integer.parseInt(args[0]) : 900;
+        int passengers = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int maxSleep = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        HashMap<String, Integer> regions = new HashMap<String, Integer>();
+        regions.put("North", passengers);
+        regions.put("South", passengers);
+
+        String[] lines = new String[ExecutionMode.values().length];
+        for (ExecutionMode mode : ExecutionMode.values())
+        {
+            lines[mode.ordinal()] = run(mode, regions, drivers, passengers, maxSleep);
+        }
+
+        System.out.println("\nmode, bookings/s, peak platform threads, peak heap MB");
+        for (String line : lines)
+            System.out.println(line);
+    }
+
+    /**
+     * Runs one simulation in the given mode while sampling the heap
+     *
+     * @return A line of comma separated results
+     */
+    private static String run(ExecutionMode mode, HashMap<String, Integer> regions, int drivers, int passengers, int maxSleep)
+            throws Exception
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        threads.resetPeakThreadCount();
+
+        long[] peakHeap = {0};
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted())
+            {
+                peakHeap[0] = Math.max(peakHeap[0], memory.getHeapMemoryUsage().getUsed());
+                try {
+                    Thread.sleep(SAMPLE_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.start();
+
+        long start = System.nanoTime();
+        new Simulation(regions, drivers, passengers, maxSleep, false, new DispatchConfig().setExecutionMode(mode));
+        long elapsed = System.nanoTime() - start;
+
+        sampler.interrupt();
+        sampler.join();
+
+        return mode + ", " + (passengers * 1_000_000_000L / elapsed) + ", " + threads.getPeakThreadCount()
+                + ", " + (peakHeap[0] / (1024 * 1024));
+    }
+}
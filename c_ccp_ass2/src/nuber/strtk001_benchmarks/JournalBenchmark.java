@@ -0,0 +1,96 @@
+package nuber.strtk001_benchmarks;
+
+import nuber.students.BookingJournal;
+import nuber.students.BookingOutcome;
+import nuber.students.Location;
+import nuber.students.Passenger;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Measures how many records per second booking threads can append to a BookingJournal, to check an
+ * append stays well under a microsecond while the flusher commits in the background.
+ *
+ * Each thread journals the whole life of one booking after another: created, assigned, picked up
+ * and finished, so segments fill up, roll over and are deleted as they would in a real dispatch.
+ * Results are in records per second, across all threads.
+ *
+ * Usage: JournalBenchmark [bookingsPerThread] [segmentBytes] [commitIntervalMillis]
+ *
+ * @author strtk001
+ *
+ */
+public class JournalBenchmark
+{
+    /**
+     * The numbers of threads appending at once
+     */
+    private static final int[] THREADS = {1, 4};
+
+    public static void main(String[] args) throws Exception
+    {
+        int bookings = args.length > 0 ? Integer.parseInt(args[0]) : 250_000;
+        int segmentBytes = args.length > 1 ? Integer.parseInt(args[1]) : 16 * 1024 * 1024;
+        long commitInterval = args.length > 2 ? Long.parseLong(args[2]) : 10;
+
+        Passenger passenger = new Passenger("P-Benchmark", 100);
+        passenger.setLocation(new Location(1, 2));
+        passenger.setDestination(new Location(3, 4));
+
+        BenchmarkHarness harness = new BenchmarkHarness(2, 5);
+        System.out.println("threads, records/s, stddev");
+        for (int threads : THREADS)
+        {
+            harness.measure(String.valueOf(threads), new BenchmarkHarness.Trial() {
+                private Path directory;
+                private BookingJournal journal;
+
+                @Override
+                public void setUp() throws Exception
+                {
+                    directory = Files.createTempDirectory("nuber-journal");
+                    journal = new BookingJournal(directory, segmentBytes, commitInterval);
+                }
+
+                @Override
+                public long run() throws Exception
+                {
+                    Thread[] workers = new Thread[threads];
+                    for (int t = 0; t < threads; t++)
+                    {
+                        int first = t * bookings;
+                        workers[t] = new Thread(() -> {
+                            for (int id = first; id < first + bookings; id++)
+                            {
+                                long segment = journal.created(id, 0, "City", passenger);
+                                journal.assigned(id);
+                                journal.pickedUp(id);
+                                journal.finished(id, BookingOutcome.COMPLETED, segment);
+                            }
+                        });
+                        workers[t].start();
+                    }
+                    for (Thread worker : workers)
+                        worker.join();
+                    return 4L * threads * bookings;
+                }
+
+                @Override
+                public void tearDown() throws Exception
+                {
+                    journal.close();
+                    File[] left = directory.toFile().listFiles();
+                    BenchmarkHarness.consume(left == null ? 0 : left.length);
+                    if (left != null)
+                    {
+                        for (File file : left)
+                            file.delete();
+                    }
+                    Files.deleteIfExists(directory);
+                }
+            });
+        }
+    }
+}
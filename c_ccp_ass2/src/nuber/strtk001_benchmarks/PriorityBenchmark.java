@@ -0,0 +1,90 @@
+package nuber.strtk001_benchmarks;
+
+import nuber.strtk001_utilities.SimulatedClock;
+import nuber.students.BookingLatencies;
+import nuber.students.BookingOutcome;
+import nuber.students.BookingPhase;
+import nuber.students.BookingPriority;
+import nuber.students.BookingResult;
+import nuber.students.DispatchConfig;
+import nuber.students.Driver;
+import nuber.students.NuberDispatch;
+import nuber.students.Passenger;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Reports the tail latency of each priority class in a saturated region, to check premium and
+ * time critical bookings still meet their targets when there are far more bookings than drivers.
+ *
+ * Bookings arrive at a steady rate above what the drivers can serve, in a mix of classes, and a share
+ * of them have a deadline. Runs in simulated time, so the latencies are in simulated milliseconds.
+ *
+ * Usage: PriorityBenchmark [drivers] [passengers] [maxSleep] [arrivalsPerSecond] [deadlineMillis]
+ *
+ * @author strtk001
+ *
+ */
+public class PriorityBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int drivers = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int passengers = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int maxSleep = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int arrivalsPerSecond = args.length > 3 ? Integer.parseInt(args[3]) : 120;
+        long deadline = args.length > 4 ? Long.parseLong(args[4]) : 5000;
+
+        SimulatedClock clock = new SimulatedClock();
+        HashMap<String, Integer> regions = new HashMap<String, Integer>();
+        regions.put("City", drivers);
+        NuberDispatch dispatch = new NuberDispatch(regions, false, new DispatchConfig().setClock(clock).setRegisterMBeans(false));
+        for (int i = 0; i < drivers; i++)
+            dispatch.addDriver(new Driver("D-" + i, maxSleep));
+
+        //each booking is made at its arrival time, on the simulated clock
+        clock.hold();
+        CompletableFuture<?>[] bookings = new CompletableFuture<?>[passengers];
+        Map<BookingPriority, long[]> outcomes = new EnumMap<BookingPriority, long[]>(BookingPriority.class);
+        for (BookingPriority priority : BookingPriority.values())
+            outcomes.put(priority, new long[BookingOutcome.values().length]);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < passengers; i++)
+        {
+            Passenger passenger = new Passenger("P-" + i, maxSleep);
+            double roll = random.nextDouble();
+            passenger.setPriority(roll < 0.1 ? BookingPriority.PREMIUM : roll < 0.7 ? BookingPriority.STANDARD : BookingPriority.ECONOMY);
+            if (random.nextInt(4) == 0)
+                passenger.setMaxWaitMillis(deadline);
+            bookings[i] = clock.delay(i * 1000L / arrivalsPerSecond)
+                    .thenCompose(v -> dispatch.bookPassengerAsync(passenger, "City"))
+                    .thenAccept(result -> count(outcomes, result));
+        }
+        clock.release();
+        CompletableFuture.allOf(bookings).join();
+        dispatch.shutdown();
+
+        System.out.println("class, completed, deadlines missed, queued p50 ms, queued p99 ms, queued p999 ms, total p99 ms, total p999 ms");
+        for (Map.Entry<BookingPriority, BookingLatencies> entry : dispatch.getLatenciesByPriority().entrySet())
+        {
+            long[] counts = outcomes.get(entry.getKey());
+            BookingLatencies latencies = entry.getValue();
+            System.out.printf("%s, %d, %d, %.1f, %.1f, %.1f, %.1f, %.1f%n", entry.getKey(),
+                    counts[BookingOutcome.COMPLETED.ordinal()], counts[BookingOutcome.DEADLINE_MISSED.ordinal()],
+                    latencies.get(BookingPhase.QUEUED).getPercentile(0.5) / 1e6,
+                    latencies.get(BookingPhase.QUEUED).getPercentile(0.99) / 1e6,
+                    latencies.get(BookingPhase.QUEUED).getPercentile(0.999) / 1e6,
+                    latencies.get(BookingPhase.TOTAL).getPercentile(0.99) / 1e6,
+                    latencies.get(BookingPhase.TOTAL).getPercentile(0.999) / 1e6);
+        }
+    }
+
+    private static synchronized void count(Map<BookingPriority, long[]> outcomes, BookingResult result)
+    {
+        outcomes.get(result.priority)[result.outcome.ordinal()]++;
+    }
+}
@@ -0,0 +1,107 @@
+package nuber.strtk001_benchmarks;
+
+import nuber.strtk001_utilities.SimulatedClock;
+import nuber.students.BookingLatencies;
+import nuber.students.BookingPhase;
+import nuber.students.DispatchConfig;
+import nuber.students.Driver;
+import nuber.students.DriverMatching;
+import nuber.students.Location;
+import nuber.students.NuberDispatch;
+import nuber.students.Passenger;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Compares giving every booking a driver of its own with pooling bookings into shared trips, when
+ * far more passengers want a ride than there are drivers.
+ *
+ * Demand comes from a few busy spots in the city, such as stations, with each passenger going to one
+ * of the other spots, so many waiting passengers are going the same way. Runs in simulated time, so
+ * every figure is in simulated time and the same whatever machine runs it.
+ *
+ * Usage: RidePoolingBenchmark [drivers] [passengers] [citySize] [hotspots]
+ *
+ * @author strtk001
+ *
+ */
+public class RidePoolingBenchmark
+{
+    /**
+     * The vehicle capacities to compare
+     */
+    private static final int[] CAPACITIES = {1, 2, 4};
+
+    public static void main(String[] args) throws Exception
+    {
+        int drivers = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int passengers = args.length > 1 ? Integer.parseInt(args[1]) : 5_000;
+        int citySize = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int hotspotCount = args.length > 3 ? Math.max(2, Integer.parseInt(args[3])) : 4;
+
+        Location[] hotspots = new Location[hotspotCount];
+        for (int i = 0; i < hotspotCount; i++)
+            hotspots[i] = Location.random(citySize);
+
+        System.out.println("capacity, trips per driver-hour, wait p50 ms, wait p99 ms, drive p50 ms, total p50 ms, total p99 ms, simulated ms");
+        for (int capacity : CAPACITIES)
+            run(capacity, drivers, passengers, citySize, hotspots);
+    }
+
+    private static void run(int capacity, int drivers, int passengers, int citySize, Location[] hotspots) throws Exception
+    {
+        SimulatedClock clock = new SimulatedClock();
+        DispatchConfig config = new DispatchConfig().setClock(clock).setDriverMatching(DriverMatching.NEAREST)
+                .setGridCellSize(citySize / 20.0).setVehicleCapacity(capacity).setPoolingRadius(citySize / 20.0)
+                .setRegisterMBeans(false);
+        HashMap<String, Integer> regions = new HashMap<String, Integer>();
+        regions.put("City", passengers);
+        NuberDispatch dispatch = new NuberDispatch(regions, false, config);
+        for (int i = 0; i < drivers; i++)
+        {
+            Driver driver = new Driver("D-" + i, citySize);
+            driver.setLocation(Location.random(citySize));
+            dispatch.addDriver(driver);
+        }
+
+        //the same passengers for every capacity
+        Random random = new Random(hotspots.length);
+        clock.hold();
+        CompletableFuture<?>[] bookings = new CompletableFuture<?>[passengers];
+        for (int i = 0; i < passengers; i++)
+        {
+            int from = i % hotspots.length;
+            int to = (from + 1 + i / hotspots.length % (hotspots.length - 1)) % hotspots.length;
+            Passenger passenger = new Passenger("P-" + i, citySize);
+            passenger.setLocation(near(hotspots[from], citySize / 40.0, random));
+            passenger.setDestination(near(hotspots[to], citySize / 40.0, random));
+            bookings[i] = dispatch.bookPassenger(passenger, "City");
+        }
+        long simulationStart = clock.nanoTime();
+        clock.release();
+        CompletableFuture.allOf(bookings).join();
+        long simulated = clock.nanoTime() - simulationStart;
+        dispatch.shutdown();
+
+        BookingLatencies latencies = dispatch.getLatencies().get("City");
+        System.out.printf("%d, %.0f, %.1f, %.1f, %.1f, %.1f, %.1f, %d%n", capacity,
+                passengers * 3600e9 / ((double) drivers * simulated),
+                latencies.get(BookingPhase.WAITING_FOR_DRIVER).getPercentile(0.5) / 1e6,
+                latencies.get(BookingPhase.WAITING_FOR_DRIVER).getPercentile(0.99) / 1e6,
+                latencies.get(BookingPhase.DRIVE).getPercentile(0.5) / 1e6,
+                latencies.get(BookingPhase.TOTAL).getPercentile(0.5) / 1e6,
+                latencies.get(BookingPhase.TOTAL).getPercentile(0.99) / 1e6,
+                simulated / 1_000_000);
+    }
+
+    /**
+     * @return A random location up to spread away from a spot in each direction
+     */
+    private static Location near(Location spot, double spread, Random random)
+    {
+        return new Location(spot.x + (random.nextDouble() * 2 - 1) * spread,
+                spot.y + (random.nextDouble() * 2 - 1) * spread);
+    }
+}
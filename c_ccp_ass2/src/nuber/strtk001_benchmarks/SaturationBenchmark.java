@@ -0,0 +1,62 @@
+package nuber.strtk001_benchmarks;
+
+import nuber.strtk001_utilities.Clock;
+import nuber.strtk001_utilities.PoissonArrivals;
+import nuber.strtk001_utilities.RealClock;
+import nuber.strtk001_utilities.SimulatedClock;
+import nuber.students.DispatchConfig;
+import nuber.students.Driver;
+import nuber.students.LoadGenerator;
+import nuber.students.LoadReport;
+import nuber.students.NuberDispatch;
+
+import java.util.HashMap;
+
+/**
+ * Finds the saturation point of a dispatch by offering it Poisson load at rising rates, each on a fresh
+ * dispatch, and reporting the achieved rate and latency against each offered rate.
+ *
+ * Below saturation the achieved rate follows the offered rate and latency stays flat. Past it the
+ * achieved rate levels off at what the drivers can serve, and latency grows with every step. Runs in
+ * simulated time unless told to use the wall clock, so the latencies are in simulated milliseconds.
+ *
+ * Usage: SaturationBenchmark [drivers] [maxSleep] [durationMillis] [firstRate] [rateStep] [steps] [real]
+ *
+ * @author strtk001
+ *
+ */
+public class SaturationBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int drivers = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int maxSleep = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        long duration = args.length > 2 ? Long.parseLong(args[2]) : 60_000;
+        double firstRate = args.length > 3 ? Double.parseDouble(args[3]) : 5;
+        double rateStep = args.length > 4 ? Double.parseDouble(args[4]) : 5;
+        int steps = args.length > 5 ? Integer.parseInt(args[5]) : 8;
+        boolean real = args.length > 6 && args[6].equals("real");
+
+        System.out.println("offered/s, achieved/s, completed, rejected, ended early, p50 ms, p99 ms, p999 ms, max lag ms");
+        for (int step = 0; step < steps; step++)
+        {
+            double rate = firstRate + step * rateStep;
+            Clock clock = real ? RealClock.INSTANCE : new SimulatedClock();
+            HashMap<String, Integer> regions = new HashMap<String, Integer>();
+            regions.put("North", drivers);
+            regions.put("South", drivers);
+            NuberDispatch dispatch = new NuberDispatch(regions, false, new DispatchConfig().setClock(clock).setRegisterMBeans(false));
+            for (int i = 0; i < drivers; i++)
+                dispatch.addDriver(new Driver("D-" + i, maxSleep));
+
+            LoadReport report = new LoadGenerator(dispatch, new PoissonArrivals(rate), duration, maxSleep).setSeed(step).run();
+            dispatch.shutdown();
+            System.out.printf("%.1f, %.1f, %d, %d, %d, %.1f, %.1f, %.1f, %.1f%n",
+                    report.offeredPerSecond, report.achievedPerSecond, report.completed, report.rejected, report.endedEarly,
+                    report.latency.getPercentile(0.5) / 1e6,
+                    report.latency.getPercentile(0.99) / 1e6,
+                    report.latency.getPercentile(0.999) / 1e6,
+                    report.maxLagMillis);
+        }
+    }
+}
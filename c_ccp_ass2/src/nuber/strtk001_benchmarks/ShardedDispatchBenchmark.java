@@ -0,0 +1,123 @@
+package nuber.strtk001_benchmarks;
+
+import nuber.strtk001_utilities.DelayMode;
+import nuber.students.BookingResult;
+import nuber.students.DispatchConfig;
+import nuber.students.DispatchNode;
+import nuber.students.Driver;
+import nuber.students.ExecutionMode;
+import nuber.students.InProcessTransport;
+import nuber.students.LoopbackTransport;
+import nuber.students.NodeTransport;
+import nuber.students.Passenger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Measures how booking throughput changes with the number of nodes a dispatch is sharded over, on
+ * each transport.
+ *
+ * Every node has the same number of drivers, and one client thread per node books passengers through
+ * it into regions picked in turn, so most bookings are sent to another node. Trips take no time, so
+ * the results show the cost of admitting, routing and running bookings. Results are in completed
+ * bookings per second, across all nodes.
+ *
+ * Usage: ShardedDispatchBenchmark [bookingsPerNode] [regions] [driversPerNode]
+ *
+ * @author strtk001
+ *
+ */
+public class ShardedDispatchBenchmark
+{
+    /**
+     * The numbers of nodes to shard over
+     */
+    private static final int[] NODES = {1, 2, 4};
+
+    public static void main(String[] args) throws Exception
+    {
+        int bookings = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int regionCount = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int drivers = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        HashMap<String, Integer> regions = new HashMap<String, Integer>();
+        for (int r = 0; r < regionCount; r++)
+            regions.put("Region-" + r, 64);
+
+        BenchmarkHarness harness = new BenchmarkHarness(2, 5);
+        System.out.println("transport/nodes, bookings/s, stddev");
+        measure(harness, "in-process", InProcessTransport::new, regions, bookings, drivers);
+        measure(harness, "loopback", LoopbackTransport::new, regions, bookings, drivers);
+    }
+
+    private static void measure(BenchmarkHarness harness, String name, Supplier<NodeTransport> transports,
+                                HashMap<String, Integer> regions, int bookings, int drivers) throws Exception
+    {
+        List<String> regionNames = new ArrayList<String>(regions.keySet());
+        for (int nodeCount : NODES)
+        {
+            harness.measure(name + "/" + nodeCount, new BenchmarkHarness.Trial() {
+                private NodeTransport transport;
+                private List<DispatchNode> nodes;
+
+                @Override
+                public void setUp() throws Exception
+                {
+                    transport = transports.get();
+                    List<String> ids = new ArrayList<String>();
+                    for (int n = 0; n < nodeCount; n++)
+                        ids.add("node-" + n);
+                    nodes = new ArrayList<DispatchNode>();
+                    for (String id : ids)
+                    {
+                        DispatchNode node = new DispatchNode(id, ids, regions, transport, new DispatchConfig()
+                                .setRegisterMBeans(false)
+                                .setExecutionMode(ExecutionMode.ASYNC)
+                                .setDelayMode(DelayMode.NONE));
+                        for (int d = 0; d < drivers; d++)
+                            node.addDriver(new Driver(id + "-D" + d, 0));
+                        nodes.add(node);
+                    }
+                }
+
+                @Override
+                public long run() throws Exception
+                {
+                    Thread[] clients = new Thread[nodeCount];
+                    for (int n = 0; n < nodeCount; n++)
+                    {
+                        DispatchNode node = nodes.get(n);
+                        int offset = n;
+                        clients[n] = new Thread(() -> {
+                            List<CompletableFuture<BookingResult>> results = new ArrayList<CompletableFuture<BookingResult>>(bookings);
+                            for (int b = 0; b < bookings; b++)
+                            {
+                                String region = regionNames.get((b + offset) % regionNames.size());
+                                results.add(node.bookPassenger(new Passenger("P-" + b, 0), region));
+                            }
+                            CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).join();
+                        });
+                        clients[n].start();
+                    }
+                    for (Thread client : clients)
+                        client.join();
+                    return (long) bookings * nodeCount;
+                }
+
+                @Override
+                public void tearDown() throws Exception
+                {
+                    List<CompletableFuture<Void>> shutdowns = new ArrayList<CompletableFuture<Void>>();
+                    for (DispatchNode node : nodes)
+                        shutdowns.add(node.shutdown());
+                    CompletableFuture.allOf(shutdowns.toArray(new CompletableFuture<?>[0])).join();
+                    transport.close();
+                }
+            });
+        }
+    }
+}
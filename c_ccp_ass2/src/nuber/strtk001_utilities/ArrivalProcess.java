@@ -0,0 +1,51 @@
+package nuber.strtk001_utilities;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * When bookings arrive, as a Poisson process whose rate may change over time.
+ *
+ * Arrivals are open-loop: they come when the process says, however far behind the dispatch is, so a
+ * rate above what the dispatch can serve shows up as growing latency rather than slowing the arrivals.
+ *
+ * @author strtk001
+ *
+ */
+public interface ArrivalProcess
+{
+    /**
+     * @param elapsedNanos How long the load has been running, in nanoseconds
+     * @return The expected number of arrivals per second at that time
+     */
+    double getRate(long elapsedNanos);
+
+    /**
+     * @return The highest rate the process ever reaches, in arrivals per second
+     */
+    double getPeakRate();
+
+    /**
+     * Picks the time of the next arrival by thinning a Poisson process running at the peak rate: each of
+     * its arrivals is kept with probability getRate() / getPeakRate() at the time it would arrive.
+     *
+     * @param afterNanos The time of the previous arrival, in nanoseconds since the load started
+     * @param random Where to get random numbers from
+     * @return The time of the next arrival, in nanoseconds since the load started, or Long.MAX_VALUE if
+     * no arrival will ever come
+     */
+    default long nextArrivalNanos(long afterNanos, RandomGenerator random)
+    {
+        double peak = getPeakRate();
+        if (peak <= 0)
+            return Long.MAX_VALUE;
+        double time = afterNanos;
+        while (true)
+        {
+            time += random.nextExponential() / peak * 1e9;
+            if (time >= Long.MAX_VALUE)
+                return Long.MAX_VALUE;
+            if (random.nextDouble() * peak < getRate((long) time))
+                return (long) time;
+        }
+    }
+}
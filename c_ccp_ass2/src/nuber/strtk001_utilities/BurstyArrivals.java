@@ -0,0 +1,53 @@
+package nuber.strtk001_utilities;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Arrivals at a base rate, with a burst at a higher rate at the start of every period, like the rush
+ * when a concert or a match lets out.
+ *
+ * @author strtk001
+ *
+ */
+public class BurstyArrivals implements ArrivalProcess
+{
+    private final double baseRate;
+    private final double burstRate;
+    private final long burstNanos;
+    private final long periodNanos;
+
+    /**
+     * @param baseRate The average number of arrivals per second between bursts
+     * @param burstRate The average number of arrivals per second during a burst
+     * @param burstMillis How long each burst lasts, in milliseconds
+     * @param periodMillis How often a burst starts, in milliseconds
+     */
+    public BurstyArrivals(double baseRate, double burstRate, long burstMillis, long periodMillis)
+    {
+        if (periodMillis <= 0 || burstMillis > periodMillis)
+            throw new IllegalArgumentException("A burst must fit in its period");
+        this.baseRate = baseRate;
+        this.burstRate = burstRate;
+        burstNanos = TimeUnit.MILLISECONDS.toNanos(burstMillis);
+        periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+    }
+
+    @Override
+    public double getRate(long elapsedNanos)
+    {
+        return elapsedNanos % periodNanos < burstNanos ? burstRate : baseRate;
+    }
+
+    @Override
+    public double getPeakRate()
+    {
+        return Math.max(baseRate, burstRate);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("bursty %.1f/s, %.1f/s for %dms every %dms", baseRate, burstRate,
+                TimeUnit.NANOSECONDS.toMillis(burstNanos), TimeUnit.NANOSECONDS.toMillis(periodNanos));
+    }
+}
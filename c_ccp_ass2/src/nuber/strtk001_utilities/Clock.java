@@ -0,0 +1,41 @@
+package nuber.strtk001_utilities;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Where the dispatch gets the time from, and how it waits for time to pass.
+ *
+ * RealClock is the wall clock. SimulatedClock only moves forward when nothing is left to do
+ * before the next scheduled wake-up, and then jumps straight to it, so a simulation runs as
+ * fast as its bookings can be processed rather than as slow as its drivers drive.
+ */
+public interface Clock
+{
+    /**
+     * @return The current time in nanoseconds, only meaningful compared to other values from the same clock
+     */
+    long nanoTime();
+
+    /**
+     * Blocks the current thread until the given time has passed on this clock.
+     * An interrupt cuts the sleep short, and is left set for the caller to see.
+     *
+     * @param millis How long to sleep, in milliseconds
+     */
+    void sleep(long millis);
+
+    /**
+     * Returns a future that completes once the given time has passed on this clock,
+     * without holding a thread while it waits. Cancel the future once the wait is no longer needed.
+     *
+     * @param millis How long to wait, in milliseconds
+     * @return A future that completes once the time has passed
+     */
+    CompletableFuture<Void> delay(long millis);
+
+    /**
+     * @return true if time only moves on when this clock decides to, in which case work waiting on
+     * the clock should be chained onto delay() rather than blocking a thread in sleep()
+     */
+    boolean isSimulated();
+}
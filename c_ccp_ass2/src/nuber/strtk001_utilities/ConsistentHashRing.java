@@ -0,0 +1,159 @@
+package nuber.strtk001_utilities;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assigns keys to nodes by consistent hashing, so adding or removing a node only moves the keys
+ * that belonged to it, or now belong to it, and leaves every other key where it was.
+ *
+ * Each node is placed on a ring of 64 bit hashes at a number of virtual points, and a key belongs to
+ * the node at the first point at or after the key's hash, wrapping round. The more points each node
+ * has, the more evenly keys are spread between nodes. Hashes are FNV-1a over the UTF-8 bytes with a
+ * final mix, so they are the same in every JVM and nodes agree on who owns a key without talking.
+ *
+ * Safe to read from any number of threads at once. Changes replace the ring as a whole.
+ *
+ * @param <N> The type of node
+ */
+public class ConsistentHashRing<N>
+{
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * The number of points each node is placed at
+     */
+    private final int pointsPerNode;
+    /**
+     * The nodes on the ring, keyed by their names
+     */
+    private final TreeMap<String, N> nodes = new TreeMap<String, N>();
+    /**
+     * Each point on the ring and the node placed there, replaced as a whole when a node is added or removed
+     */
+    private volatile TreeMap<Long, N> ring = new TreeMap<Long, N>();
+
+    /**
+     * @param pointsPerNode The number of points each node is placed at
+     */
+    public ConsistentHashRing(int pointsPerNode)
+    {
+        if (pointsPerNode < 1)
+            throw new IllegalArgumentException("pointsPerNode must be at least 1 but was " + pointsPerNode);
+        this.pointsPerNode = pointsPerNode;
+    }
+
+    /**
+     * Places a node on the ring, replacing any node with the same name
+     *
+     * @param name The node's name, which decides where its points are
+     * @param node The node
+     */
+    public synchronized void addNode(String name, N node)
+    {
+        nodes.put(name, node);
+        rebuild();
+    }
+
+    /**
+     * Takes a node off the ring, handing its keys to the nodes after its points
+     *
+     * @param name The node's name
+     * @return The node, or null if there was no node with that name
+     */
+    public synchronized N removeNode(String name)
+    {
+        N node = nodes.remove(name);
+        if (node != null)
+            rebuild();
+        return node;
+    }
+
+    /**
+     * @param key The key
+     * @return The node the key belongs to, or null if the ring is empty
+     */
+    public N nodeFor(String key)
+    {
+        TreeMap<Long, N> points = ring;
+        if (points.isEmpty())
+            return null;
+        Map.Entry<Long, N> owner = points.ceilingEntry(hash(key));
+        return owner != null ? owner.getValue() : points.firstEntry().getValue();
+    }
+
+    /**
+     * Groups keys by the node they belong to
+     *
+     * @param keys The keys
+     * @return The keys of each node that owns any of them
+     */
+    public Map<N, List<String>> partition(Collection<String> keys)
+    {
+        Map<N, List<String>> owned = new LinkedHashMap<N, List<String>>();
+        for (String key : keys)
+        {
+            N node = nodeFor(key);
+            if (node != null)
+                owned.computeIfAbsent(node, n -> new ArrayList<String>()).add(key);
+        }
+        return owned;
+    }
+
+    /**
+     * @return The nodes on the ring, in order of name
+     */
+    public synchronized List<N> getNodes()
+    {
+        return Collections.unmodifiableList(new ArrayList<N>(nodes.values()));
+    }
+
+    /**
+     * @return The number of nodes on the ring
+     */
+    public synchronized int size()
+    {
+        return nodes.size();
+    }
+
+    /**
+     * Places every node's points on a new ring. Nodes are placed in order of name, so two nodes whose
+     * points collide resolve it the same way everywhere.
+     */
+    private void rebuild()
+    {
+        TreeMap<Long, N> points = new TreeMap<Long, N>();
+        for (Map.Entry<String, N> node : nodes.entrySet())
+        {
+            for (int i = 0; i < pointsPerNode; i++)
+                points.putIfAbsent(hash(node.getKey() + "#" + i), node.getValue());
+        }
+        ring = points;
+    }
+
+    /**
+     * @param key The key
+     * @return The key's position on the ring
+     */
+    static long hash(String key)
+    {
+        long hash = FNV_OFFSET;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8))
+        {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        //FNV on its own leaves keys that differ only at the end close together on the ring
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,46 @@
+package nuber.strtk001_utilities;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How long a simulated delay lasts, given the most it is allowed to last.
+ *
+ * RANDOM is the normal simulation behaviour. FIXED and NONE make trips take a predictable
+ * amount of time, so benchmarks measure coordination overhead rather than simulated driving.
+ */
+public enum DelayMode
+{
+    /**
+     * A random time between 0 and the maximum
+     */
+    RANDOM,
+    /**
+     * Always the maximum
+     */
+    FIXED,
+    /**
+     * No delay at all
+     */
+    NONE;
+
+    /**
+     * @param maxSleep the maximum ammount of milliseconds to delay
+     * @return the number of milliseconds to delay for
+     */
+    public int sleepTime(int maxSleep)
+    {
+        //a passenger's travel time can come out as 0, which nextInt won't accept as a bound
+        if(maxSleep <= 0)
+            return 0;
+        switch (this)
+        {
+            case RANDOM:
+                //using thread local random to reduce overhead instead of java.utils.random or whatever it is.
+                return ThreadLocalRandom.current().nextInt(maxSleep);
+            case FIXED:
+                return maxSleep;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package nuber.strtk001_utilities;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Arrivals whose rate rises and falls smoothly over a period, like demand over a day compressed into
+ * however long the run is. The rate follows a sine wave, starting at the mean and rising first.
+ *
+ * @author strtk001
+ *
+ */
+public class DiurnalArrivals implements ArrivalProcess
+{
+    private final double meanRate;
+    /**
+     * How far the rate swings either side of the mean, as a fraction of the mean
+     */
+    private final double amplitude;
+    private final long periodNanos;
+
+    /**
+     * @param meanRate The average number of arrivals per second over a period
+     * @param amplitude How far the rate swings either side of the mean, as a fraction of it between 0 and 1
+     * @param periodMillis How long one "day" lasts, in milliseconds
+     */
+    public DiurnalArrivals(double meanRate, double amplitude, long periodMillis)
+    {
+        if (amplitude < 0 || amplitude > 1 || periodMillis <= 0)
+            throw new IllegalArgumentException("The amplitude must be between 0 and 1, and the period positive");
+        this.meanRate = meanRate;
+        this.amplitude = amplitude;
+        periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+    }
+
+    @Override
+    public double getRate(long elapsedNanos)
+    {
+        double phase = (double) (elapsedNanos % periodNanos) / periodNanos;
+        return meanRate * (1 + amplitude * Math.sin(2 * Math.PI * phase));
+    }
+
+    @Override
+    public double getPeakRate()
+    {
+        return meanRate * (1 + amplitude);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("diurnal %.1f/s +/-%.0f%% over %dms", meanRate, amplitude * 100,
+                TimeUnit.NANOSECONDS.toMillis(periodNanos));
+    }
+}
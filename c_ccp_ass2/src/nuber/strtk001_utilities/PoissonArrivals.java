@@ -0,0 +1,39 @@
+package nuber.strtk001_utilities;
+
+/**
+ * Arrivals at a steady average rate, each independent of the last, so the gaps between them are
+ * exponentially distributed.
+ *
+ * @author strtk001
+ *
+ */
+public class PoissonArrivals implements ArrivalProcess
+{
+    private final double ratePerSecond;
+
+    /**
+     * @param ratePerSecond The average number of arrivals per second
+     */
+    public PoissonArrivals(double ratePerSecond)
+    {
+        this.ratePerSecond = ratePerSecond;
+    }
+
+    @Override
+    public double getRate(long elapsedNanos)
+    {
+        return ratePerSecond;
+    }
+
+    @Override
+    public double getPeakRate()
+    {
+        return ratePerSecond;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("Poisson %.1f/s", ratePerSecond);
+    }
+}
@@ -0,0 +1,56 @@
+package nuber.strtk001_utilities;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts events into one second slots, so the number of events in the last full second can be
+ * read at any time without a background thread.
+ *
+ * Marking an event is normally a single atomic increment. When a slot is reused for a new second
+ * its count is reset, and an event marked by another thread at that exact moment may be lost,
+ * which is fine for a throughput gauge.
+ */
+public class RateMeter
+{
+    /**
+     * Number of one second slots kept, always a power of two
+     */
+    private static final int SLOTS = 4;
+    /**
+     * The number of events in each slot
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+    /**
+     * The second each slot is currently counting for
+     */
+    private final AtomicLongArray seconds = new AtomicLongArray(SLOTS);
+
+    /**
+     * Counts a single event in the current second
+     */
+    public void mark()
+    {
+        long second = currentSecond();
+        int slot = (int) second & (SLOTS - 1);
+        long slotSecond = seconds.get(slot);
+        if (slotSecond != second && seconds.compareAndSet(slot, slotSecond, second))
+            counts.set(slot, 0);
+        counts.incrementAndGet(slot);
+    }
+
+    /**
+     * @return The number of events marked in the last full second
+     */
+    public long getRatePerSecond()
+    {
+        long previous = currentSecond() - 1;
+        int slot = (int) previous & (SLOTS - 1);
+        return seconds.get(slot) == previous ? counts.get(slot) : 0;
+    }
+
+    private static long currentSecond()
+    {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+    }
+}
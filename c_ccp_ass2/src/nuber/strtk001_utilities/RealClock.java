@@ -0,0 +1,49 @@
+package nuber.strtk001_utilities;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The wall clock, where sleeping really sleeps
+ */
+public class RealClock implements Clock
+{
+    /**
+     * The clock has no state, so everything can share this one
+     */
+    public static final RealClock INSTANCE = new RealClock();
+
+    @Override
+    public long nanoTime()
+    {
+        return System.nanoTime();
+    }
+
+    @Override
+    public void sleep(long millis)
+    {
+        if(millis <= 0)
+            return;
+        try
+        {
+            Thread.sleep(Duration.ofMillis(millis));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> delay(long millis)
+    {
+        if(millis <= 0)
+            return CompletableFuture.completedFuture(null);
+        return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(millis, TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public boolean isSimulated()
+    {
+        return false;
+    }
+}
@@ -0,0 +1,184 @@
+package nuber.strtk001_utilities;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A discrete-event clock. Time stands still while there is work to do, and then jumps straight
+ * to the next scheduled wake-up.
+ *
+ * Every delay() is an event in a queue ordered by wake-up time, with ties woken in the order they
+ * were scheduled. A single event thread takes the earliest event, moves the clock to its time and
+ * completes its future. Anything chained onto that future without an executor runs on the event
+ * thread before it looks at the next event, so work that schedules further delays has always done
+ * so before the clock moves past them.
+ *
+ * Work started from other threads isn't seen by the event thread, so a thread submitting a batch of
+ * work should hold() the clock while it does, and release() it afterwards. Time doesn't move while
+ * the clock is held.
+ *
+ * Blocking in sleep() is allowed from other threads, but their wake-up is only as accurate as the
+ * thread's own progress, and sleeping on the event thread itself is an error.
+ */
+public class SimulatedClock implements Clock
+{
+    /**
+     * A scheduled wake-up
+     */
+    private static class Event implements Comparable<Event>
+    {
+        private final long wakeNanos;
+        private final long sequence;
+        private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+        private Event(long wakeNanos, long sequence)
+        {
+            this.wakeNanos = wakeNanos;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Event other)
+        {
+            if (wakeNanos != other.wakeNanos)
+                return Long.compare(wakeNanos, other.wakeNanos);
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * The scheduled wake-ups, guarded by this clock's monitor
+     */
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+    /**
+     * The current simulated time
+     */
+    private volatile long nowNanos;
+    /**
+     * The sequence number the next event will be given
+     */
+    private long nextSequence;
+    /**
+     * The number of hold() calls not yet released
+     */
+    private int holds;
+    /**
+     * The thread currently waking events, or null if none is running
+     */
+    private Thread eventThread;
+    /**
+     * The number of events woken so far
+     */
+    private long eventsProcessed;
+
+    @Override
+    public long nanoTime()
+    {
+        return nowNanos;
+    }
+
+    @Override
+    public void sleep(long millis)
+    {
+        if (Thread.currentThread() == eventThread)
+            throw new IllegalStateException("Can't sleep on the simulated clock's event thread, use delay() instead");
+        try
+        {
+            delay(millis).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> delay(long millis)
+    {
+        if (millis <= 0)
+            return CompletableFuture.completedFuture(null);
+        Event event;
+        synchronized (this)
+        {
+            event = new Event(nowNanos + millis * 1_000_000, nextSequence++);
+            events.add(event);
+            startEventThread();
+        }
+        return event.future;
+    }
+
+    @Override
+    public boolean isSimulated()
+    {
+        return true;
+    }
+
+    /**
+     * Stops time moving on until release() is called, so work can be started from another thread
+     * without the clock running ahead of it. Holds can be nested.
+     */
+    public synchronized void hold()
+    {
+        holds++;
+    }
+
+    /**
+     * Undoes one call to hold(), letting time move on again once every hold is released
+     */
+    public synchronized void release()
+    {
+        if (holds == 0)
+            throw new IllegalStateException("The clock isn't being held");
+        holds--;
+        startEventThread();
+    }
+
+    /**
+     * @return The number of events woken so far
+     */
+    public synchronized long getEventsProcessed()
+    {
+        return eventsProcessed;
+    }
+
+    /**
+     * Starts the event thread if there are events to wake and nothing is holding the clock.
+     * Must be called while holding this clock's monitor.
+     */
+    private void startEventThread()
+    {
+        if (holds > 0 || eventThread != null || events.isEmpty())
+            return;
+        eventThread = new Thread(this::runEvents, "nuber-simulated-clock");
+        eventThread.start();
+    }
+
+    /**
+     * Body of the event thread. Wakes events in order until there are none left or the clock is held.
+     */
+    private void runEvents()
+    {
+        while (true)
+        {
+            Event event;
+            synchronized (this)
+            {
+                if (holds > 0 || events.isEmpty())
+                {
+                    eventThread = null;
+                    return;
+                }
+                event = events.poll();
+                //a wait that was cancelled no longer needs time to reach it
+                if (event.future.isDone())
+                    continue;
+                if (event.wakeNanos > nowNanos)
+                    nowNanos = event.wakeNanos;
+                eventsProcessed++;
+            }
+            //completing outside the lock, as the work chained onto it will schedule more events
+            event.future.complete(null);
+        }
+    }
+}
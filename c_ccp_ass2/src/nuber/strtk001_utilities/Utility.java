@@ -1,8 +1,6 @@
 package nuber.strtk001_utilities;
 
-import java.time.Duration;
-import java.time.temporal.TemporalUnit;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.CompletableFuture;
 
 public class Utility
 {
@@ -12,14 +10,39 @@ public class Utility
      */
     public static void delay(int maxSleep)
     {
-        try
-        {
-            //using thread local random to reduce overhead instead of java.utils.random or whatever it is.
-            int sleepTime = ThreadLocalRandom.current().nextInt(maxSleep);
-            Thread.sleep(Duration.ofMillis(sleepTime));
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }
+        delay(maxSleep, DelayMode.RANDOM, RealClock.INSTANCE);
+    }
+
+    /**
+     * Puts the current thread to sleep for a time picked by the delay mode
+     * @param maxSleep the maximum ammount of millisconds to sleep.
+     * @param mode how to pick the time to sleep for
+     * @param clock the clock to sleep on
+     */
+    public static void delay(int maxSleep, DelayMode mode, Clock clock)
+    {
+        clock.sleep(mode.sleepTime(maxSleep));
+    }
 
+    /**
+     * Returns a future that completes after a random int milliseconds, without holding a thread while it waits
+     * @param maxSleep the maximum ammount of millisconds to wait.
+     * @return a future that completes once the time has passed
+     */
+    public static CompletableFuture<Void> delayAsync(int maxSleep)
+    {
+        return delayAsync(maxSleep, DelayMode.RANDOM, RealClock.INSTANCE);
+    }
+
+    /**
+     * Returns a future that completes after a time picked by the delay mode, without holding a thread while it waits
+     * @param maxSleep the maximum ammount of millisconds to wait.
+     * @param mode how to pick the time to wait for
+     * @param clock the clock to wait on
+     * @return a future that completes once the time has passed
+     */
+    public static CompletableFuture<Void> delayAsync(int maxSleep, DelayMode mode, Clock clock)
+    {
+        return clock.delay(mode.sleepTime(maxSleep));
     }
 }
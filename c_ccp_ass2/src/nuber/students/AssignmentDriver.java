@@ -65,6 +65,10 @@ public class AssignmentDriver {
         //new Simulation(regions, 10, 10, 1000, logEvents);
         //new Simulation(regions, 10, 100, 1000, logEvents);
         //new Simulation(regions, 1, 50, 1000, logEvents);
+
+        //or run the same configurations side by side, each on its own dispatch, and compare them
+        //ScenarioRunner.printReports(System.out, new ScenarioRunner().run(ScenarioRunner.sweep(2, new int[] {50},
+        //        new int[] {1, 5, 10}, new int[] {2, 10, 50, 100}, new int[] {1000}, DispatchConfig::new)));
     }
 
 }
@@ -0,0 +1,24 @@
+package nuber.students;
+
+/**
+ * What a region does with a new booking when its store of pending bookings is full.
+ *
+ * @author strtk001
+ *
+ */
+public enum BackpressurePolicy
+{
+    /**
+     * The caller waits until there is room for the booking
+     */
+    BLOCK,
+    /**
+     * The booking is rejected straight away with a BookingRejectedException
+     */
+    REJECT,
+    /**
+     * The caller waits up to the configured admission timeout, after which the booking is
+     * rejected with a BookingRejectedException
+     */
+    TIMEOUT
+}
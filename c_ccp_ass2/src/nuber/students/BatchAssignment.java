@@ -0,0 +1,20 @@
+package nuber.students;
+
+/**
+ * How a batch of waiting bookings and idle drivers is paired up when the dispatch matches in batches.
+ *
+ * @author strtk001
+ *
+ */
+public enum BatchAssignment
+{
+    /**
+     * Repeatedly pairs the cheapest remaining booking and driver. Fast, and usually close to optimal.
+     */
+    GREEDY,
+    /**
+     * Finds the pairing with the lowest total cost with the Hungarian algorithm. Batches where both
+     * sides are larger than BatchMatcher.MAX_OPTIMAL_SIZE are paired greedily instead.
+     */
+    OPTIMAL
+}
@@ -0,0 +1,437 @@
+package nuber.students;
+
+import nuber.strtk001_utilities.Clock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Matches bookings to drivers in batches rather than one at a time.
+ *
+ * Bookings asking for a driver and drivers becoming idle are only collected as they arrive. Once a
+ * matching window has passed, everything collected is paired up in one go and every match is handed
+ * out together, so a driver goes to the booking it suits best rather than to whichever booking asked first.
+ *
+ * The cost of a pairing is the pickup distance, less the time the booking has already waited. As
+ * locations are measured in milliseconds of driving, both are in the same unit, and a booking that keeps
+ * losing its nearby drivers to others gets steadily cheaper to serve until it is matched. Bookings or
+ * drivers without a location cost nothing to pair on distance.
+ *
+ * Matching runs on the dispatch's clock, one window at a time, and stops when no bookings are waiting.
+ * As in a DriverPool, there is no limit on idle drivers, and drivers who leave while idle are dropped
+ * at the start of the next window.
+ *
+ * @author strtk001
+ *
+ */
+public class BatchMatcher
+{
+    /**
+     * The largest batch the OPTIMAL assignment is used for. The Hungarian algorithm takes time
+     * proportional to the smaller side squared times the larger side.
+     */
+    public static final int MAX_OPTIMAL_SIZE = 300;
+    /**
+     * The most waiting bookings considered in one window, oldest first, to bound the work per window
+     */
+    private static final int MAX_BATCH = 1000;
+
+    /**
+     * A booking waiting for a driver
+     */
+    private static class Request
+    {
+        private final Location near;
+        private final long requestedNanos;
+        private final CompletableFuture<Driver> driver = new CompletableFuture<Driver>();
+
+        private Request(Location near, long requestedNanos)
+        {
+            this.near = near;
+            this.requestedNanos = requestedNanos;
+        }
+    }
+
+    private final Clock clock;
+    /**
+     * How long bookings and drivers are collected for before they are matched, in milliseconds
+     */
+    private final long windowMillis;
+    private final BatchAssignment assignment;
+    /**
+     * Drivers and bookings that have arrived since the last window
+     */
+    private final ConcurrentLinkedQueue<Driver> arrivingDrivers = new ConcurrentLinkedQueue<Driver>();
+    private final ConcurrentLinkedQueue<Request> arrivingRequests = new ConcurrentLinkedQueue<Request>();
+    /**
+     * Drivers and bookings left unmatched by earlier windows, including drivers who have since left.
+     * Only touched by the window being matched.
+     */
+    private final List<Driver> idleDrivers = new ArrayList<Driver>();
+    private final List<Request> waitingRequests = new ArrayList<Request>();
+    /**
+     * The number of idle drivers and waiting bookings, wherever they are held
+     */
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger waitingCount = new AtomicInteger();
+    /**
+     * Set while a window is scheduled or being matched
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder matches = new LongAdder();
+
+    /**
+     * @param clock The clock windows are timed on
+     * @param windowMillis How long bookings and drivers are collected for before they are matched
+     * @param assignment How each batch is paired up
+     */
+    public BatchMatcher(Clock clock, long windowMillis, BatchAssignment assignment)
+    {
+        this.clock = clock;
+        this.windowMillis = windowMillis;
+        this.assignment = assignment;
+    }
+
+    /**
+     * Adds a driver starting their shift or freed from a booking, to be matched in the next window.
+     * A driver who went off shift while idle and hasn't been dropped yet is idle again where they were.
+     *
+     * @param driver The driver to add
+     * @return true if the driver was added, false if they are already idle, on a break or their shift has ended
+     */
+    public boolean addDriver(Driver driver)
+    {
+        switch (driver.becomeAvailable(DriverState.OFF_SHIFT))
+        {
+            case HAND_OVER:
+                driver.listIdle(null, idleCount);
+                arrivingDrivers.offer(driver);
+                return true;
+            case RELISTED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Asks for a driver in the next window
+     *
+     * @param near Where the driver is needed, or null if it doesn't matter
+     * @return A future that completes with the matched driver
+     */
+    public CompletableFuture<Driver> acquireDriver(Location near)
+    {
+        Request request = new Request(near, clock.nanoTime());
+        waitingCount.incrementAndGet();
+        arrivingRequests.offer(request);
+        scheduleWindow();
+        return request.driver;
+    }
+
+    /**
+     * Schedules the next window, unless one is already scheduled
+     */
+    private void scheduleWindow()
+    {
+        if (scheduled.compareAndSet(false, true))
+            clock.delay(windowMillis).thenRun(this::matchWindow);
+    }
+
+    /**
+     * Matches everything collected so far, then schedules another window if bookings are still waiting
+     */
+    private void matchWindow()
+    {
+        Driver driver;
+        while ((driver = arrivingDrivers.poll()) != null)
+            idleDrivers.add(driver);
+        //drivers who went off shift or on a break since the last window are no longer matched
+        idleDrivers.removeIf(Driver::dropIfStale);
+        Request request;
+        while ((request = arrivingRequests.poll()) != null)
+            waitingRequests.add(request);
+        //bookings that stopped waiting some other way no longer need a driver
+        int before = waitingRequests.size();
+        waitingRequests.removeIf(waiting -> waiting.driver.isDone());
+        waitingCount.addAndGet(waitingRequests.size() - before);
+
+        List<Request> batch = waitingRequests.subList(0, Math.min(MAX_BATCH, waitingRequests.size()));
+        int[] pairing = pair(batch, idleDrivers);
+
+        //hand out every match together, then drop the matched entries, keeping the rest in arrival order
+        boolean[] driverMatched = new boolean[idleDrivers.size()];
+        boolean[] requestMatched = new boolean[batch.size()];
+        int matched = 0;
+        for (int r = 0; r < pairing.length; r++)
+        {
+            if (pairing[r] < 0)
+                continue;
+            //a driver who left since the drop above is dropped now, and their booking keeps waiting
+            driverMatched[pairing[r]] = true;
+            if (!idleDrivers.get(pairing[r]).claim())
+            {
+                pairing[r] = -1;
+                continue;
+            }
+            requestMatched[r] = true;
+            matched++;
+        }
+        List<CompletableFuture<Driver>> futures = new ArrayList<CompletableFuture<Driver>>(matched);
+        List<Driver> drivers = new ArrayList<Driver>(matched);
+        for (int r = 0; r < pairing.length; r++)
+        {
+            if (pairing[r] < 0)
+                continue;
+            futures.add(batch.get(r).driver);
+            drivers.add(idleDrivers.get(pairing[r]));
+        }
+        removeMatched(batch, requestMatched);
+        removeMatched(idleDrivers, driverMatched);
+        waitingCount.addAndGet(-matched);
+        batches.increment();
+        matches.add(matched);
+
+        for (int i = 0; i < futures.size(); i++)
+        {
+            if (futures.get(i).complete(drivers.get(i)))
+                continue;
+            //the booking stopped waiting since the start of this window, so the driver stays idle
+            matches.decrement();
+            drivers.get(i).listIdle(null, idleCount);
+            idleDrivers.add(drivers.get(i));
+        }
+
+        scheduled.set(false);
+        //a booking may have arrived after the queue was drained, and seen this window as still scheduled
+        if (!waitingRequests.isEmpty() || !arrivingRequests.isEmpty())
+            scheduleWindow();
+    }
+
+    /**
+     * Removes the matched entries from a list, keeping the rest in order
+     */
+    private static <T> void removeMatched(List<T> list, boolean[] matched)
+    {
+        int kept = 0;
+        for (int i = 0; i < matched.length; i++)
+        {
+            if (!matched[i])
+                list.set(kept++, list.get(i));
+        }
+        list.subList(kept, matched.length).clear();
+    }
+
+    /**
+     * Pairs up a batch of waiting bookings with idle drivers
+     *
+     * @return For each booking, the index of its driver, or -1 if it wasn't matched
+     */
+    private int[] pair(List<Request> requests, List<Driver> drivers)
+    {
+        int[] pairing = new int[requests.size()];
+        Arrays.fill(pairing, -1);
+        if (requests.isEmpty() || drivers.isEmpty())
+            return pairing;
+
+        long now = clock.nanoTime();
+        double[][] cost = new double[requests.size()][drivers.size()];
+        for (int r = 0; r < requests.size(); r++)
+        {
+            Request request = requests.get(r);
+            double waited = (now - request.requestedNanos) / 1e6;
+            for (int d = 0; d < drivers.size(); d++)
+            {
+                Location location = drivers.get(d).getLocation();
+                double distance = request.near == null || location == null ? 0 : request.near.distanceTo(location);
+                cost[r][d] = distance - waited;
+            }
+        }
+
+        if (assignment == BatchAssignment.OPTIMAL && Math.min(requests.size(), drivers.size()) <= MAX_OPTIMAL_SIZE)
+            hungarian(cost, pairing);
+        else
+            greedy(cost, pairing);
+        return pairing;
+    }
+
+    /**
+     * Repeatedly pairs the cheapest booking and driver that are both still unmatched.
+     *
+     * Only min(bookings, drivers) pairs are ever made, so a pair can only be made if it is one of the
+     * that many cheapest for both its booking and its driver. Each entry on the smaller side keeps just
+     * its cheapest candidates, which leaves far fewer pairs to sort when one side is much larger.
+     */
+    private static void greedy(double[][] cost, int[] pairing)
+    {
+        int rows = cost.length, columns = cost[0].length;
+        int limit = Math.min(rows, columns);
+        boolean byColumn = rows > columns;
+        int shortSide = byColumn ? columns : rows;
+        int longSide = byColumn ? rows : columns;
+
+        long[] pairs = new long[shortSide * limit];
+        long[] cheapest = new long[limit];
+        int count = 0;
+        for (int s = 0; s < shortSide; s++)
+        {
+            int kept = 0;
+            for (int l = 0; l < longSide; l++)
+            {
+                int r = byColumn ? l : s, c = byColumn ? s : l;
+                long pair = pairKey(cost[r][c], r * columns + c);
+                if (kept == limit && pair >= cheapest[limit - 1])
+                    continue;
+                //insertion into the sorted candidates, dropping the most expensive if it is full
+                int i = kept < limit ? kept++ : limit - 1;
+                while (i > 0 && cheapest[i - 1] > pair)
+                {
+                    cheapest[i] = cheapest[i - 1];
+                    i--;
+                }
+                cheapest[i] = pair;
+            }
+            System.arraycopy(cheapest, 0, pairs, count, kept);
+            count += kept;
+        }
+        Arrays.sort(pairs, 0, count);
+
+        boolean[] driverTaken = new boolean[columns];
+        int remaining = limit;
+        for (int i = 0; i < count && remaining > 0; i++)
+        {
+            int index = (int) pairs[i];
+            int r = index / columns, c = index % columns;
+            if (pairing[r] >= 0 || driverTaken[c])
+                continue;
+            pairing[r] = c;
+            driverTaken[c] = true;
+            remaining--;
+        }
+    }
+
+    /**
+     * Packs a pair's cost and index into one long, so that sorting the longs sorts the pairs by cost
+     */
+    private static long pairKey(double cost, int index)
+    {
+        int bits = Float.floatToIntBits((float) cost);
+        //flips negative floats so their bits sort in the same order as their values
+        bits ^= (bits >> 31) & 0x7fffffff;
+        return ((long) bits << 32) | index;
+    }
+
+    /**
+     * Finds the pairing with the lowest total cost, using the Hungarian algorithm with potentials
+     */
+    private static void hungarian(double[][] cost, int[] pairing)
+    {
+        int rows = cost.length, columns = cost[0].length;
+        boolean transposed = rows > columns;
+        //the algorithm needs no more rows than columns, so pair drivers to bookings if there are fewer drivers
+        int n = transposed ? columns : rows;
+        int m = transposed ? rows : columns;
+
+        //1-based, with row and column 0 as the algorithm's scratch space
+        double[] u = new double[n + 1];
+        double[] v = new double[m + 1];
+        int[] rowOfColumn = new int[m + 1];
+        int[] way = new int[m + 1];
+        for (int i = 1; i <= n; i++)
+        {
+            rowOfColumn[0] = i;
+            int j0 = 0;
+            double[] minv = new double[m + 1];
+            Arrays.fill(minv, Double.MAX_VALUE);
+            boolean[] used = new boolean[m + 1];
+            do
+            {
+                used[j0] = true;
+                int i0 = rowOfColumn[j0], j1 = 0;
+                double delta = Double.MAX_VALUE;
+                for (int j = 1; j <= m; j++)
+                {
+                    if (used[j])
+                        continue;
+                    double c = (transposed ? cost[j - 1][i0 - 1] : cost[i0 - 1][j - 1]) - u[i0] - v[j];
+                    if (c < minv[j])
+                    {
+                        minv[j] = c;
+                        way[j] = j0;
+                    }
+                    if (minv[j] < delta)
+                    {
+                        delta = minv[j];
+                        j1 = j;
+                    }
+                }
+                for (int j = 0; j <= m; j++)
+                {
+                    if (used[j])
+                    {
+                        u[rowOfColumn[j]] += delta;
+                        v[j] -= delta;
+                    }
+                    else
+                        minv[j] -= delta;
+                }
+                j0 = j1;
+            } while (rowOfColumn[j0] != 0);
+            do
+            {
+                int j1 = way[j0];
+                rowOfColumn[j0] = rowOfColumn[j1];
+                j0 = j1;
+            } while (j0 != 0);
+        }
+
+        for (int j = 1; j <= m; j++)
+        {
+            if (rowOfColumn[j] == 0)
+                continue;
+            if (transposed)
+                pairing[j - 1] = rowOfColumn[j] - 1;
+            else
+                pairing[rowOfColumn[j] - 1] = j - 1;
+        }
+    }
+
+    /**
+     * @return The number of drivers idle, waiting to be matched
+     */
+    public int getIdleDriverCount()
+    {
+        return Math.max(0, idleCount.get());
+    }
+
+    /**
+     * @return The number of bookings waiting to be matched
+     */
+    public int getWaitingBookingCount()
+    {
+        return waitingCount.get();
+    }
+
+    /**
+     * @return The number of windows matched so far
+     */
+    public long getBatchCount()
+    {
+        return batches.sum();
+    }
+
+    /**
+     * @return The number of bookings matched to a driver so far
+     */
+    public long getMatchCount()
+    {
+        return matches.sum();
+    }
+}
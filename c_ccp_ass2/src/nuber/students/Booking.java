@@ -1,6 +1,12 @@
 package nuber.students;
 
+import nuber.strtk001_utilities.Clock;
+
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  *
@@ -12,7 +18,9 @@ import java.util.concurrent.Callable;
  * a BookingResult object is provided with the overall information for the booking.
  *
  * The Booking must track how long it takes, from the instant it is created, to when the
- * passenger arrives at their destination. This should be done using Date class' getTime().
+ * passenger arrives at their destination. This is done with the dispatch's clock, which is
+ * System.nanoTime() unless the dispatch is running in simulated time, rather than
+ * Date class' getTime(), and is broken down into the phases listed in BookingPhase.
  *
  * Booking's should have a globally unique, sequential ID, allocated on their creation.
  * This should be multi-thread friendly, allowing bookings to be created from different threads.
@@ -22,6 +30,14 @@ import java.util.concurrent.Callable;
  */
 public class Booking implements Callable<BookingResult>
 {
+    /**
+     * Stands in for the driver request of a booking that was cancelled before it asked for a driver
+     */
+    private static final CompletableFuture<Driver> CANCELLED_REQUEST = new CompletableFuture<Driver>();
+    static
+    {
+        CANCELLED_REQUEST.cancel(false);
+    }
     /**
      * Referernce to the central dispatch
      */
@@ -38,7 +54,64 @@ public class Booking implements Callable<BookingResult>
      * our booking Id
      */
     private int bookingID;
-    private static int bookingInstances = 1;
+    /**
+     * The clock the booking's times are read from and its drivers drive on
+     */
+    private Clock clock;
+    /**
+     * clock.nanoTime() at each point in the booking's life, 0 until that point is reached
+     */
+    private long createdNanos;
+    private long startedNanos;
+    private long driverAllocatedNanos;
+    private long pickedUpNanos;
+    private long arrivedNanos;
+    /**
+     * The region running this booking, or null if it isn't being run by a region
+     */
+    private NuberRegion region;
+    /**
+     * The metrics of the region running this booking, or null if it isn't being run by a region
+     */
+    private RegionMetrics metrics;
+    /**
+     * The clock time by which the booking must have started, or Long.MAX_VALUE if it has no deadline
+     */
+    private long deadlineNanos = Long.MAX_VALUE;
+    /**
+     * The booking's request for a driver, null until it asks for one, or CANCELLED_REQUEST if it was
+     * cancelled before it did
+     */
+    private AtomicReference<CompletableFuture<Driver>> driverRequest = new AtomicReference<CompletableFuture<Driver>>();
+    /**
+     * Why the booking stopped waiting for a driver, set by the first call to cancelWaiting()
+     */
+    private AtomicReference<BookingOutcome> cancelReason = new AtomicReference<BookingOutcome>();
+    /**
+     * null while the booking's driver is on the way to the passenger, COMPLETED once the passenger is aboard,
+     * or why the booking was cancelled before then
+     */
+    private AtomicReference<BookingOutcome> tripOutcome = new AtomicReference<BookingOutcome>();
+    /**
+     * The booking's seat on a shared trip, or null if it has its driver to itself
+     */
+    private RidePooler.Seat seat;
+    /**
+     * Gives up on the driver request once the booking's maximum wait has passed, or null if it has none
+     */
+    private CompletableFuture<Void> driverWaitTimer;
+    /**
+     * The journal the booking's progress is recorded in, or null if it isn't journalled
+     */
+    private BookingJournal journal;
+    /**
+     * The journal segment the booking's creation was recorded in
+     */
+    private long journalSegment;
+    /**
+     * The ID the booking had before a restart, if it was recovered from the journal, or 0
+     */
+    private int recoveredFrom;
     /**
      * Creates a new booking for a given Nuber dispatch and passenger, noting that no
      * driver is provided as it will depend on whether one is available when the region
@@ -52,8 +125,25 @@ public class Booking implements Callable<BookingResult>
         this.dispatch = dispatch;
         this.passenger = passenger;
         driver = null;
-        bookingID = bookingInstances;
-        bookingInstances++;
+        bookingID = dispatch.nextBookingId();
+        clock = dispatch.getClock();
+        createdNanos = clock.nanoTime();
+        if(passenger != null && passenger.getMaxWaitMillis() > 0)
+            deadlineNanos = createdNanos + passenger.getMaxWaitMillis() * 1_000_000;
+    }
+
+    /**
+     * Creates a new booking that gets its driver through a region, and reports its progress to the region's metrics.
+     *
+     * @param dispatch
+     * @param passenger
+     * @param region The region that will run the booking
+     */
+    Booking(NuberDispatch dispatch, Passenger passenger, NuberRegion region)
+    {
+        this(dispatch, passenger);
+        this.region = region;
+        this.metrics = region.getMetrics();
     }
 
     /**
@@ -70,22 +160,471 @@ public class Booking implements Callable<BookingResult>
      * 7.	The call() function the returns a BookingResult object, passing in the appropriate
      * 			information required in the BookingResult constructor.
      *
+     * If the booking is cancelled while it waits for a driver, or its thread is interrupted, it stops
+     * waiting and returns a CANCELLED result instead. If it waits longer than its maximum wait for a
+     * driver, it returns a TIMED_OUT result. A booking cancelled once it has a driver hands the driver
+     * back without taking the passenger anywhere, unless the passenger is already aboard.
+     *
+     * If the region pools rides, the booking takes a seat on a shared trip instead, and waits while the
+     * trip's driver collects and drops off its passengers. It is then the trip that frees the driver.
+     *
      * @return A BookingResult containing the final information about the booking
      */
     public BookingResult call()
     {
+        startedNanos = clock.nanoTime();
+        dispatch.logEvent(this,"Started Booking, getting driver.");
+        if(metrics != null)
+            metrics.driverWaitStarted();
+        CompletableFuture<Driver> request = requestDriver();
+        try
+        {
+            driverAllocated(request.get());
+        }catch (CancellationException e)
+        {
+            return cancelWaitingForDriver();
+        }catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            cancel(BookingOutcome.CANCELLED);
+            if(request.isCancelled())
+                return cancelWaitingForDriver();
+            //the driver arrived just as the booking was interrupted, and is handed straight back below
+            driverAllocated(request.join());
+        }catch (ExecutionException e)
+        {
+            throw new IllegalStateException(e.getCause());
+        }
+        //a shared trip may already have collected the passenger by the time this thread wakes
+        if(isTripCancelled())
+            return abandonTrip();
+        if(seat != null)
+            return ridePooled().join();
+        boolean boarded;
+        try
+        {
+            driver.pickUpPassenger(passenger, dispatch.getConfig().getDelayMode(), clock);
+            if(Thread.currentThread().isInterrupted())
+                cancel(BookingOutcome.CANCELLED);
+            boarded = boardPassenger();
+            if(boarded)
+                driver.driveToDestination(dispatch.getConfig().getDelayMode(), clock);
+        }catch (RuntimeException e)
+        {
+            //a leg of the trip failed, so the driver is handed back rather than lost with the booking
+            returnDriver();
+            throw e;
+        }
+        return boarded ? release() : abandonTrip();
+    }
+
+    /**
+     * Runs the same steps as call(), but as a chain of stages that never block a thread:
+     * acquire a driver, pick up the passenger, drive to the destination and release the driver.
+     *
+     * Nothing is held while the booking waits for a driver or a trip is underway, so far more
+     * bookings can be in flight than there are threads.
+     *
+     * @return A future that completes with the BookingResult once the passenger has arrived
+     */
+    public CompletableFuture<BookingResult> callAsync()
+    {
+        startedNanos = clock.nanoTime();
         dispatch.logEvent(this,"Started Booking, getting driver.");
-        driver = dispatch.getDriver();
+        if(metrics != null)
+            metrics.driverWaitStarted();
+        return requestDriver().handle(this::afterDriverRequest).thenCompose(trip -> trip);
+    }
+
+    /**
+     * Asks dispatch for a driver, unless the booking has already been cancelled. If no driver is free,
+     * the request is given up on once the booking's maximum wait for a driver has passed, and straight
+     * away if every driver has gone off shift.
+     *
+     * @return A future that completes with the booking's driver, and is cancelled if the booking is
+     * cancelled or times out before a driver is found
+     */
+    private CompletableFuture<Driver> requestDriver()
+    {
+        //every driver has gone off shift, so none is coming
+        if(dispatch.isOutOfDrivers())
+            cancelWaiting(BookingOutcome.TIMED_OUT);
+        if(driverRequest.get() == CANCELLED_REQUEST)
+            return CANCELLED_REQUEST;
+        //without a passenger there is nowhere to be near, so the booking rides alone with any driver
+        RidePooler pooler = region == null || passenger == null ? null : region.getRidePooler();
+        if(pooler != null)
+            seat = pooler.requestSeat(this, passenger);
+        Location pickUp = passenger == null ? null : passenger.getLocation();
+        CompletableFuture<Driver> request = seat != null ? seat.driver : dispatch.acquireDriver(region, pickUp);
+        if(driverRequest.compareAndSet(null, request))
+        {
+            long maxWait = passenger != null && passenger.getMaxDriverWaitMillis() > 0 ? passenger.getMaxDriverWaitMillis()
+                    : dispatch.getConfig().getDriverWaitTimeoutMillis();
+            if(maxWait > 0 && !request.isDone())
+            {
+                driverWaitTimer = clock.delay(maxWait);
+                driverWaitTimer.thenRun(() -> cancelWaiting(BookingOutcome.TIMED_OUT));
+            }
+            return request;
+        }
+        //cancelled while asking, so a driver that was found straight away goes back, or if they are shared,
+        //carries on with the rest of the trip without this passenger
+        if(!request.cancel(false) && !request.isCompletedExceptionally())
+        {
+            if(seat != null)
+                tripOutcome.compareAndSet(null, BookingOutcome.CANCELLED);
+            else
+                dispatch.addDriver(request.join(), region);
+        }
+        return CANCELLED_REQUEST;
+    }
+
+    /**
+     * Stage that either sets off on the trip with the allocated driver, or ends the booking if it was
+     * cancelled or timed out before a driver was found
+     *
+     * @param allocatedDriver The driver given to this booking by dispatch, or null if there isn't one
+     * @param failure Why no driver was given, or null if one was
+     * @return A future that completes with the final information about the booking
+     */
+    private CompletableFuture<BookingResult> afterDriverRequest(Driver allocatedDriver, Throwable failure)
+    {
+        if(failure instanceof CancellationException)
+            return CompletableFuture.completedFuture(cancelWaitingForDriver());
+        if(failure != null)
+            return CompletableFuture.failedFuture(failure);
+        driverAllocated(allocatedDriver);
+        if(isTripCancelled())
+            return CompletableFuture.completedFuture(abandonTrip());
+        if(seat != null)
+            return ridePooled();
+        return tripAsync().whenComplete((boarded, e) -> {
+            //a leg of the trip failed, so the driver is handed back rather than lost with the booking
+            if(e != null)
+                returnDriver();
+        }).thenApply(boarded -> boarded ? release() : abandonTrip());
+    }
+
+    /**
+     * Stage that collects the passenger and, unless the booking was cancelled on the way, drives them
+     * to their destination
+     *
+     * @return A future that completes with whether the passenger got in, or fails if either leg failed
+     */
+    private CompletableFuture<Boolean> tripAsync()
+    {
+        try
+        {
+            return driver.pickUpPassengerAsync(passenger, dispatch.getConfig().getDelayMode(), clock)
+                    .thenCompose(v -> {
+                        if(!boardPassenger())
+                            return CompletableFuture.completedFuture(false);
+                        return driver.driveToDestinationAsync(dispatch.getConfig().getDelayMode(), clock)
+                                .thenApply(arrived -> true);
+                    });
+        }catch (RuntimeException e)
+        {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Stage that follows the booking's passenger through a shared trip, which the trip's driver drives
+     *
+     * @return A future that completes with the final information about the booking once the passenger
+     * has been dropped off, or the booking was cancelled before they were collected
+     */
+    private CompletableFuture<BookingResult> ridePooled()
+    {
+        return seat.boarded.thenCompose(boarded -> {
+            if(!boarded)
+                return CompletableFuture.completedFuture(abandonTrip());
+            return seat.arrived.thenApply(arrived -> release());
+        });
+    }
+
+    /**
+     * Cancels the booking if it doesn't have a driver yet. A booking that is waiting for a driver stops
+     * waiting, and one that hasn't asked yet never will.
+     *
+     * @param reason How the booking will end, CANCELLED or TIMED_OUT
+     * @return true if the booking will end that way, false if it already has a driver
+     */
+    boolean cancelWaiting(BookingOutcome reason)
+    {
+        cancelReason.compareAndSet(null, reason);
+        while(true)
+        {
+            CompletableFuture<Driver> request = driverRequest.get();
+            if(request != null)
+                return request.cancel(false);
+            if(driverRequest.compareAndSet(null, CANCELLED_REQUEST))
+                return true;
+        }
+    }
+
+    /**
+     * Cancels the booking at whatever point it has reached. A booking without a driver is cancelled as by
+     * cancelWaiting(), and one whose driver is still on the way to the passenger hands the driver back once
+     * the driver gets there.
+     *
+     * @param reason How the booking will end
+     * @return true if the booking will end that way, false if the passenger is already aboard
+     */
+    boolean cancel(BookingOutcome reason)
+    {
+        if(cancelWaiting(reason))
+            return true;
+        return tripOutcome.compareAndSet(null, reason) || tripOutcome.get() != BookingOutcome.COMPLETED;
+    }
+
+    /**
+     * Records that the booking has been given a driver, who is about to set off to the passenger
+     *
+     * @param allocatedDriver The driver given to this booking by dispatch
+     */
+    private void driverAllocated(Driver allocatedDriver)
+    {
+        driverAllocatedNanos = seat != null ? seat.allocatedNanos : clock.nanoTime();
+        if(driverWaitTimer != null)
+            driverWaitTimer.cancel(false);
+        if(metrics != null && seat != null)
+            metrics.seatAllocated(driverAllocatedNanos - startedNanos);
+        else if(metrics != null)
+            metrics.driverAllocated(driverAllocatedNanos - startedNanos);
+        driver = allocatedDriver;
+        if(journal != null)
+            journal.assigned(bookingID);
         dispatch.logEvent(this,"Starting, on way to passenger.");
-        driver.pickUpPassenger(passenger);
+    }
+
+    /**
+     * Called once the driver has reached the passenger, by the booking itself or by its shared trip.
+     * From here on the booking can no longer be cancelled.
+     *
+     * @return true if the passenger got in, false if the booking was cancelled on the way
+     */
+    boolean boardPassenger()
+    {
+        pickedUpNanos = clock.nanoTime();
+        if(!tripOutcome.compareAndSet(null, BookingOutcome.COMPLETED))
+            return false;
+        if(journal != null)
+            journal.pickedUp(bookingID);
         dispatch.logEvent(this,"Collected passenger, on way to destination.");
-        driver.driveToDestination();
+        return true;
+    }
+
+    /**
+     * @return true if the booking was cancelled after it got a driver, before the passenger got in
+     */
+    boolean isTripCancelled()
+    {
+        BookingOutcome outcome = tripOutcome.get();
+        return outcome != null && outcome != BookingOutcome.COMPLETED;
+    }
+
+    /**
+     * Ends a booking that was cancelled after it got a driver, but before the passenger got in,
+     * handing the driver back from wherever they are
+     *
+     * @return The result of the cancelled booking
+     */
+    private BookingResult abandonTrip()
+    {
+        long now = clock.nanoTime();
+        dispatch.logEvent(this,"Cancelled before collecting passenger, driver is now free.");
+        returnDriver();
+        BookingResult result = new BookingResult(bookingID, passenger, driver,
+                startedNanos - createdNanos,
+                driverAllocatedNanos - startedNanos,
+                now - driverAllocatedNanos,
+                0,
+                now - createdNanos);
+        result.outcome = tripOutcome.get();
+        result.priority = getPriority();
+        return result;
+    }
+
+    /**
+     * Stage that hands the driver back to dispatch once the passenger has arrived
+     *
+     * @return The final information about the booking
+     */
+    private BookingResult release()
+    {
+        arrivedNanos = clock.nanoTime();
         dispatch.logEvent(this,"at destination driver is now free.");
-        dispatch.addDriver(driver);
+        returnDriver();
+        return result();
+    }
+
+    /**
+     * Hands the booking's driver back to dispatch, which may send them on a break or off shift instead.
+     * A shared driver is handed back by their trip once every passenger is off.
+     */
+    private void returnDriver()
+    {
+        if(seat != null)
+            return;
+        if(metrics != null)
+            metrics.driverReleased();
+        dispatch.releaseDriver(driver, region);
+    }
+
+    /**
+     * Builds the result for a completed booking from the times recorded along the way
+     *
+     * @return The final information about the booking
+     */
+    private BookingResult result()
+    {
+        BookingResult result = new BookingResult(bookingID, passenger, driver,
+                startedNanos - createdNanos,
+                driverAllocatedNanos - startedNanos,
+                pickedUpNanos - driverAllocatedNanos,
+                arrivedNanos - pickedUpNanos,
+                arrivedNanos - createdNanos);
+        result.priority = getPriority();
+        return result;
+    }
+
+    /**
+     * Gives up on a booking that is still waiting to start after its deadline. It never gets a driver.
+     *
+     * @return The result of the cancelled booking, with all of its time spent queued
+     */
+    BookingResult missDeadline()
+    {
+        dispatch.logEvent(this,"Missed deadline, cancelled before getting a driver.");
+        return unstarted(BookingOutcome.DEADLINE_MISSED);
+    }
+
+    /**
+     * Gives up on a booking that is still waiting to start, because its region is shutting down.
+     * It never gets a driver.
+     *
+     * @return The result of the cancelled booking, with all of its time spent queued
+     */
+    BookingResult cancelBeforeStart()
+    {
+        dispatch.logEvent(this,"Cancelled before starting.");
+        return unstarted(BookingOutcome.CANCELLED);
+    }
+
+    /**
+     * Builds the result of a booking that ended before it started
+     *
+     * @param outcome How the booking ended
+     * @return The final information about the booking
+     */
+    private BookingResult unstarted(BookingOutcome outcome)
+    {
+        long now = clock.nanoTime();
+        BookingResult result = new BookingResult(bookingID, passenger, null,
+                now - createdNanos, 0, 0, 0, now - createdNanos);
+        result.outcome = outcome;
+        result.priority = getPriority();
+        return result;
+    }
+
+    /**
+     * Ends a booking that was cancelled or timed out while it waited for a driver
+     *
+     * @return The result of the booking, which never got a driver
+     */
+    private BookingResult cancelWaitingForDriver()
+    {
+        long now = clock.nanoTime();
+        if(driverWaitTimer != null)
+            driverWaitTimer.cancel(false);
+        BookingOutcome outcome = cancelReason.get() == null ? BookingOutcome.CANCELLED : cancelReason.get();
+        if(metrics != null)
+            metrics.driverWaitCancelled();
+        dispatch.logEvent(this,outcome == BookingOutcome.TIMED_OUT ? "Gave up waiting for a driver."
+                : "Cancelled while waiting for a driver.");
+        BookingResult result = new BookingResult(bookingID, passenger, null,
+                startedNanos - createdNanos, now - startedNanos, 0, 0, now - createdNanos);
+        result.outcome = outcome;
+        result.priority = getPriority();
+        return result;
+    }
+
+    /**
+     * Records the booking's creation in a journal, which its progress is then recorded in too
+     *
+     * @param journal The journal
+     * @param regionName The name of the region that accepted the booking
+     */
+    void journalCreated(BookingJournal journal, String regionName)
+    {
+        if(passenger == null)
+            return;
+        journalSegment = journal.created(bookingID, recoveredFrom, regionName, passenger);
+        this.journal = journal;
+    }
 
-        return new BookingResult(bookingID,passenger,driver,1000);
+    /**
+     * Records in the journal that the booking is over, so it isn't recovered after a restart
+     *
+     * @param outcome How the booking ended, or null if it failed
+     */
+    void journalFinished(BookingOutcome outcome)
+    {
+        if(journal != null)
+            journal.finished(bookingID, outcome, journalSegment);
     }
 
+    /**
+     * Marks the booking as standing in for one that was recovered from the journal after a restart
+     *
+     * @param originalId The ID the booking had before the restart
+     */
+    void setRecoveredFrom(int originalId){recoveredFrom = originalId;}
+
+    /**
+     * Getter method for the booking's priority class
+     *
+     * @return The passenger's priority, or STANDARD if there is no passenger
+     */
+    BookingPriority getPriority(){return passenger == null ? BookingPriority.STANDARD : passenger.getPriority();}
+
+    /**
+     * Getter method for when the booking was created
+     *
+     * @return The clock time the booking was created at, in nanoseconds
+     */
+    long getCreatedNanos(){return createdNanos;}
+
+    /**
+     * Getter method for the booking's deadline
+     *
+     * @return The clock time by which the booking must have started, or Long.MAX_VALUE if it has no deadline
+     */
+    long getDeadlineNanos(){return deadlineNanos;}
+
+    /**
+     * Getter method for the booking's ID
+     *
+     * @return The ID allocated to this booking when it was created
+     */
+    public int getBookingID(){return bookingID;}
+
+    /**
+     * Getter method for the booking's driver
+     *
+     * @return The driver allocated to this booking, or null if it doesn't have one yet
+     */
+    Driver getDriver(){return driver;}
+
+    /**
+     * Getter method for the booking's passenger
+     *
+     * @return The passenger being booked
+     */
+    Passenger getPassenger(){return passenger;}
+
     /***
      * Should return the:
      * - booking ID,
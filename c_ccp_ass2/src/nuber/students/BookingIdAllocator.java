@@ -0,0 +1,106 @@
+package nuber.students;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out booking IDs that are unique across every thread booking through a dispatch.
+ *
+ * With a block size of 1 every ID comes straight off a shared atomic counter, so IDs are
+ * sequential in the order bookings are created. With a larger block size each thread reserves
+ * a block of IDs at a time and hands them out without touching the shared counter again until
+ * the block runs out. IDs are then only sequential per thread, but the counter stops being a
+ * point of contention when many threads create bookings at once.
+ *
+ * A thread keeps one reserved block for every allocator together, marked with the allocator it came
+ * from, so pool threads that outlive a dispatch hold nothing of it. A thread that switches between
+ * dispatches reserves a new block each time, leaving the rest of the old one unused.
+ *
+ * @author strtk001
+ *
+ */
+public class BookingIdAllocator
+{
+    /**
+     * A block of IDs reserved by one thread
+     */
+    private static final class Block
+    {
+        /**
+         * The allocator the block was reserved from
+         */
+        private long owner;
+        /**
+         * The next ID to hand out
+         */
+        private int next;
+        /**
+         * The first ID past the end of the block
+         */
+        private int end;
+    }
+
+    /**
+     * Numbers each allocator, so a thread can tell which allocator its block came from
+     */
+    private static final AtomicLong allocators = new AtomicLong();
+    /**
+     * Each thread's reserved block
+     */
+    private static final ThreadLocal<Block> reservedBlock = ThreadLocal.withInitial(Block::new);
+
+    /**
+     * The first ID that has not been handed out or reserved by any thread
+     */
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    /**
+     * The number of IDs a thread reserves at a time
+     */
+    private final int blockSize;
+    /**
+     * This allocator's number, which marks the blocks reserved from it
+     */
+    private final long id = allocators.incrementAndGet();
+
+    /**
+     * @param blockSize The number of IDs a thread reserves at a time, 1 for strictly sequential IDs
+     */
+    public BookingIdAllocator(int blockSize)
+    {
+        if(blockSize < 1)
+            throw new IllegalArgumentException("blockSize must be at least 1");
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Gets the next booking ID for the calling thread
+     *
+     * @return An ID that no other call to this allocator has returned
+     */
+    public int nextId()
+    {
+        if(blockSize == 1)
+            return nextId.getAndIncrement();
+
+        Block block = reservedBlock.get();
+        if(block.owner != id || block.next == block.end)
+        {
+            block.owner = id;
+            block.next = nextId.getAndAdd(blockSize);
+            block.end = block.next + blockSize;
+        }
+        return block.next++;
+    }
+
+    /**
+     * Makes sure no ID up to a given one is handed out from now on. Only call this before any thread has
+     * reserved a block.
+     *
+     * @param id The highest ID already in use elsewhere
+     */
+    public void skipPast(int id)
+    {
+        nextId.accumulateAndGet(id + 1, Math::max);
+    }
+
+}
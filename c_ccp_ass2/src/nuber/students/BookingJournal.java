@@ -0,0 +1,689 @@
+package nuber.students;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A write-ahead journal of what happens to each booking, so the bookings that hadn't finished when the
+ * process died can be booked again once it restarts.
+ *
+ * The journal is a directory of fixed size segment files, each mapped into memory. A booking thread
+ * reserves room for its record with a single getAndAdd on the journal's tail, writes the record straight
+ * into the mapped segment, and writes the record's length last so a reader only ever sees whole records.
+ * Nothing is allocated and no lock is taken, and once the record is in the mapping it survives the process
+ * dying. A record that doesn't fit in what is left of a segment pads it out and goes in the next one.
+ *
+ * A single flusher thread commits everything written since its last pass together, forcing it to disk in
+ * one call per segment, so many records share the cost of each force. sync() waits for the next commit.
+ * The flusher also maps the next segment before it is needed, so the booking threads never wait on a file
+ * being created.
+ *
+ * A segment is deleted once it has been committed in full and every booking created in it has finished, so
+ * a dispatch that keeps up with its bookings only ever keeps a couple of segments.
+ *
+ * When a journal is opened it replays the segments already in its directory, oldest first, to find the
+ * bookings that were created but never finished. Those segments are only deleted once the bookings they
+ * hold have been booked again and their new records committed, and each new record names the booking it
+ * replaces, so dying part way through recovering doesn't lose or duplicate any booking.
+ *
+ * @author strtk001
+ *
+ */
+public class BookingJournal
+{
+    /**
+     * A booking that was created but hadn't finished when the journal was last written to
+     */
+    public static class RecoveredBooking
+    {
+        /**
+         * The booking's ID before the restart
+         */
+        public final int bookingId;
+        /**
+         * The name of the region the booking was made in
+         */
+        public final String regionName;
+        /**
+         * The passenger, as they were when booked. Their maximum wait has had the time already spent taken off it.
+         */
+        public final Passenger passenger;
+        /**
+         * The ID of the booking this one replaced when it was recovered itself, or 0
+         */
+        private final int replacesId;
+        /**
+         * How far the booking got: QUEUED if it never got a driver, PICKUP if its driver was on the way,
+         * DRIVE if the passenger was aboard
+         */
+        private BookingPhase phase = BookingPhase.QUEUED;
+
+        private RecoveredBooking(int bookingId, String regionName, Passenger passenger, int replacesId)
+        {
+            this.bookingId = bookingId;
+            this.regionName = regionName;
+            this.passenger = passenger;
+            this.replacesId = replacesId;
+        }
+
+        /**
+         * @return How far the booking got before the restart: QUEUED, PICKUP or DRIVE
+         */
+        public BookingPhase getPhase()
+        {
+            return phase;
+        }
+    }
+
+    /**
+     * A segment file written to by this journal, mapped into memory
+     */
+    private static class Segment
+    {
+        private final long index;
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        /**
+         * One for each booking created in the segment that hasn't finished, plus one until the segment has been
+         * committed in full. The segment is deleted when this reaches zero.
+         */
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Segment(long index, Path path, MappedByteBuffer buffer)
+        {
+            this.index = index;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final byte CREATED = 1;
+    private static final byte ASSIGNED = 2;
+    private static final byte PICKED_UP = 3;
+    private static final byte FINISHED = 4;
+    private static final byte PADDING = 5;
+    /**
+     * Records start on and are a multiple of this many bytes, so every length can be written atomically
+     */
+    private static final int ALIGNMENT = 8;
+    /**
+     * The size of every record but a CREATED record
+     */
+    private static final int EVENT_BYTES = 16;
+    /**
+     * The size of a CREATED record before its region and passenger names
+     */
+    private static final int CREATED_BYTES = 80;
+    private static final int MIN_SEGMENT_BYTES = 64 * 1024;
+    private static final int MAX_SEGMENT_BYTES = 1 << 30;
+    /**
+     * Set in a CREATED record if the passenger has a location, and a destination
+     */
+    private static final short HAS_LOCATION = 1;
+    private static final short HAS_DESTINATION = 2;
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+    /**
+     * How often sync() checks whether its records have been committed, in nanoseconds
+     */
+    private static final long POLL_NANOS = 100_000;
+    /**
+     * Reads and writes record lengths with the ordering that publishes the rest of the record
+     */
+    private static final VarHandle LENGTH = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final Path directory;
+    private final int segmentBytes;
+    /**
+     * log2(segmentBytes), for turning a position in the journal into a segment index
+     */
+    private final int segmentShift;
+    /**
+     * How long the flusher waits between commits, in nanoseconds
+     */
+    private final long commitIntervalNanos;
+    /**
+     * The position the next record will be written at. Positions count bytes across every segment the
+     * journal has ever had, so segment n covers positions n * segmentBytes up to (n + 1) * segmentBytes.
+     */
+    private final AtomicLong tail;
+    /**
+     * Every record before this position has been written and forced to disk
+     */
+    private volatile long committed;
+    /**
+     * The segment most records are being written to
+     */
+    private volatile Segment current;
+    /**
+     * The segments this journal has mapped and not yet deleted, by index
+     */
+    private final Map<Long, Segment> segments = new ConcurrentHashMap<Long, Segment>();
+    /**
+     * The segment files that were replayed when the journal was opened
+     */
+    private final List<Path> replayedSegments = new ArrayList<Path>();
+    /**
+     * The bookings replay found unfinished, in the order they were created
+     */
+    private List<RecoveredBooking> recovered;
+    /**
+     * The highest booking ID in the replayed segments
+     */
+    private int maxBookingId;
+    private final Thread flusher;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Opens the journal in a directory, replaying any segments already there, and starts its flusher
+     *
+     * @param directory The directory the segment files are kept in, created if it doesn't exist
+     * @param segmentBytes The size of each segment file, rounded up to a power of two of at least 64KiB
+     * @param commitIntervalMillis How long the flusher waits between commits, in milliseconds
+     * @throws IOException if the directory or its segments couldn't be read
+     */
+    public BookingJournal(Path directory, int segmentBytes, long commitIntervalMillis) throws IOException
+    {
+        this.directory = directory;
+        this.segmentBytes = Math.min(MAX_SEGMENT_BYTES, Integer.highestOneBit(Math.max(MIN_SEGMENT_BYTES, segmentBytes) - 1) << 1);
+        segmentShift = Integer.numberOfTrailingZeros(this.segmentBytes);
+        commitIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, commitIntervalMillis));
+        Files.createDirectories(directory);
+        long firstSegment = replay();
+        tail = new AtomicLong(firstSegment << segmentShift);
+        committed = tail.get();
+        current = segment(firstSegment);
+        flusher = new Thread(this::runFlusher, "nuber-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Records that a booking has been accepted by a region
+     *
+     * @param bookingId The booking's ID
+     * @param replacesId The ID of the booking this one replaces after a restart, or 0
+     * @param regionName The name of the booking's region
+     * @param passenger The booking's passenger
+     * @return The index of the segment the record went in, to pass to finished()
+     */
+    public long created(int bookingId, int replacesId, String regionName, Passenger passenger)
+    {
+        String name = passenger.name == null ? "" : passenger.name;
+        int length = align(CREATED_BYTES + 2 * (regionName.length() + name.length()));
+        if(length > segmentBytes || regionName.length() > Character.MAX_VALUE || name.length() > Character.MAX_VALUE)
+            throw new IllegalArgumentException("Names too long to journal booking " + bookingId);
+        long position = reserve(length);
+        Segment segment = segment(position >>> segmentShift);
+        ByteBuffer buffer = segment.buffer;
+        int at = offset(position);
+        Location location = passenger.getLocation();
+        Location destination = passenger.getDestination();
+        buffer.put(at + 4, CREATED);
+        buffer.put(at + 5, (byte) passenger.getPriority().ordinal());
+        buffer.putChar(at + 6, (char) regionName.length());
+        buffer.putInt(at + 8, bookingId);
+        buffer.putInt(at + 12, replacesId);
+        buffer.putLong(at + 16, System.currentTimeMillis());
+        buffer.putInt(at + 24, passenger.maxSleep);
+        buffer.putChar(at + 28, (char) name.length());
+        buffer.putShort(at + 30, (short) ((location != null ? HAS_LOCATION : 0) | (destination != null ? HAS_DESTINATION : 0)));
+        buffer.putLong(at + 32, passenger.getMaxWaitMillis());
+        buffer.putLong(at + 40, passenger.getMaxDriverWaitMillis());
+        if(location != null)
+        {
+            buffer.putDouble(at + 48, location.x);
+            buffer.putDouble(at + 56, location.y);
+        }
+        if(destination != null)
+        {
+            buffer.putDouble(at + 64, destination.x);
+            buffer.putDouble(at + 72, destination.y);
+        }
+        int chars = at + CREATED_BYTES;
+        for(int i = 0; i < regionName.length(); i++, chars += 2)
+            buffer.putChar(chars, regionName.charAt(i));
+        for(int i = 0; i < name.length(); i++, chars += 2)
+            buffer.putChar(chars, name.charAt(i));
+        //taken before the record is published, so the segment can't be committed in full and deleted first
+        segment.references.incrementAndGet();
+        publish(buffer, at, length);
+        return segment.index;
+    }
+
+    /**
+     * Records that a booking has been given a driver
+     *
+     * @param bookingId The booking's ID
+     */
+    public void assigned(int bookingId)
+    {
+        event(ASSIGNED, bookingId, 0);
+    }
+
+    /**
+     * Records that a booking's passenger has been picked up
+     *
+     * @param bookingId The booking's ID
+     */
+    public void pickedUp(int bookingId)
+    {
+        event(PICKED_UP, bookingId, 0);
+    }
+
+    /**
+     * Records that a booking is over, however it ended. It won't be recovered after a restart.
+     *
+     * @param bookingId The booking's ID
+     * @param outcome How the booking ended, or null if it failed
+     * @param createdSegment The segment index created() returned for the booking
+     */
+    public void finished(int bookingId, BookingOutcome outcome, long createdSegment)
+    {
+        event(FINISHED, bookingId, outcome == null ? -1 : outcome.ordinal());
+        Segment segment = segments.get(createdSegment);
+        if(segment != null)
+            release(segment);
+    }
+
+    /**
+     * Writes one of the fixed size records
+     */
+    private void event(byte type, int bookingId, int detail)
+    {
+        long position = reserve(EVENT_BYTES);
+        ByteBuffer buffer = segment(position >>> segmentShift).buffer;
+        int at = offset(position);
+        buffer.put(at + 4, type);
+        buffer.put(at + 5, (byte) detail);
+        buffer.putInt(at + 8, bookingId);
+        publish(buffer, at, EVENT_BYTES);
+    }
+
+    /**
+     * Reserves room for a record, all within one segment
+     *
+     * @param length The record's length, a multiple of ALIGNMENT no bigger than a segment
+     * @return The position to write the record at
+     */
+    private long reserve(int length)
+    {
+        while(true)
+        {
+            long start = tail.getAndAdd(length);
+            long end = start + length;
+            if(start >>> segmentShift == (end - 1) >>> segmentShift)
+                return start;
+            //the record would straddle two segments, so the room is padded out on both sides of the boundary
+            long boundary = (end - 1) >>> segmentShift << segmentShift;
+            pad(start, (int) (boundary - start));
+            pad(boundary, (int) (end - boundary));
+        }
+    }
+
+    /**
+     * Fills reserved room that won't hold a record, so replay and the flusher step over it
+     */
+    private void pad(long position, int length)
+    {
+        ByteBuffer buffer = segment(position >>> segmentShift).buffer;
+        int at = offset(position);
+        buffer.put(at + 4, PADDING);
+        publish(buffer, at, length);
+    }
+
+    /**
+     * Writes a record's length, which makes the record visible to the flusher
+     */
+    private static void publish(ByteBuffer buffer, int offset, int length)
+    {
+        LENGTH.setRelease(buffer, offset, length);
+    }
+
+    private int offset(long position)
+    {
+        return (int) (position & (segmentBytes - 1));
+    }
+
+    private static int align(int length)
+    {
+        return (length + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    /**
+     * Gets a segment by index, mapping it if it hasn't been already
+     *
+     * @param index The segment's index
+     * @return The segment
+     */
+    private Segment segment(long index)
+    {
+        Segment segment = current;
+        if(segment != null && segment.index == index)
+            return segment;
+        segment = segments.get(index);
+        if(segment == null)
+            segment = map(index);
+        if(current == null || current.index < index)
+            current = segment;
+        return segment;
+    }
+
+    /**
+     * Creates and maps a segment file, unless another thread already has
+     */
+    private synchronized Segment map(long index)
+    {
+        Segment segment = segments.get(index);
+        if(segment != null)
+            return segment;
+        Path path = directory.resolve(String.format("%s%016x%s", PREFIX, index, SUFFIX));
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            //the mapping stays valid once the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            segment = new Segment(index, path, buffer);
+        }catch (IOException e)
+        {
+            throw new UncheckedIOException("Couldn't map journal segment " + path, e);
+        }
+        segments.put(index, segment);
+        return segment;
+    }
+
+    /**
+     * Drops a reference to a segment, deleting it once nothing needs it
+     */
+    private void release(Segment segment)
+    {
+        if(segment.references.decrementAndGet() != 0)
+            return;
+        segments.remove(segment.index);
+        try
+        {
+            Files.deleteIfExists(segment.path);
+        }catch (IOException e)
+        {
+            System.err.println("Couldn't delete journal segment " + segment.path + ": " + e);
+        }
+    }
+
+    /**
+     * Body of the flusher thread
+     */
+    private void runFlusher()
+    {
+        while(!closed.get())
+        {
+            commit();
+            //map the next segment ahead of the booking threads reaching it
+            long next = (tail.get() >>> segmentShift) + 1;
+            if(!segments.containsKey(next))
+                map(next);
+            LockSupport.parkNanos(commitIntervalNanos);
+        }
+    }
+
+    /**
+     * Forces every record written since the last commit to disk, up to the first record still being written.
+     * Only run by one thread at a time.
+     */
+    private void commit()
+    {
+        long position = committed;
+        while(true)
+        {
+            Segment segment = segments.get(position >>> segmentShift);
+            if(segment == null)
+                break;
+            int from = offset(position);
+            int to = from;
+            while(to < segmentBytes)
+            {
+                int length = (int) LENGTH.getAcquire(segment.buffer, to);
+                if(length == 0)
+                    break;
+                to += length;
+            }
+            if(to > from)
+                segment.buffer.force(from, to - from);
+            position += to - from;
+            if(to < segmentBytes)
+                break;
+            //nothing more will be written to this segment
+            release(segment);
+        }
+        committed = position;
+    }
+
+    /**
+     * Waits until every record written before this call has been forced to disk
+     */
+    public void sync()
+    {
+        long target = tail.get();
+        while(committed < target && !closed.get())
+        {
+            LockSupport.unpark(flusher);
+            LockSupport.parkNanos(POLL_NANOS);
+        }
+    }
+
+    /**
+     * @return The position every record before has been forced to disk, counting bytes across every segment
+     */
+    public long getCommittedPosition()
+    {
+        return committed;
+    }
+
+    /**
+     * Hands over the bookings replay found unfinished. Only the first call gets them.
+     *
+     * @return The bookings, in the order they were created
+     */
+    public synchronized List<RecoveredBooking> takeRecovered()
+    {
+        List<RecoveredBooking> taken = recovered;
+        recovered = new ArrayList<RecoveredBooking>();
+        return taken;
+    }
+
+    /**
+     * @return The highest booking ID in the replayed segments, or 0 if there were none
+     */
+    public int getMaxBookingId()
+    {
+        return maxBookingId;
+    }
+
+    /**
+     * Deletes the segments that were replayed when the journal was opened. Only call this once every
+     * recovered booking has been created again and sync() has returned.
+     */
+    public void deleteReplayedSegments()
+    {
+        for(Path path : replayedSegments)
+        {
+            try
+            {
+                Files.deleteIfExists(path);
+            }catch (IOException e)
+            {
+                System.err.println("Couldn't delete journal segment " + path + ": " + e);
+            }
+        }
+        replayedSegments.clear();
+    }
+
+    /**
+     * Commits everything written so far and stops the flusher. Segments holding unfinished bookings are
+     * kept, to be replayed next time, and the rest are deleted. No records may be written once closed.
+     */
+    public void close()
+    {
+        if(!closed.compareAndSet(false, true))
+            return;
+        LockSupport.unpark(flusher);
+        boolean interrupted = false;
+        while(flusher.isAlive())
+        {
+            try
+            {
+                flusher.join();
+            }catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        commit();
+        for(Segment segment : new ArrayList<Segment>(segments.values()))
+        {
+            //the segment being written to, and any mapped ahead, were never committed in full
+            if(segment.index >= committed >>> segmentShift)
+                release(segment);
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Reads every segment already in the directory, to find the bookings that never finished
+     *
+     * @return The index the journal's first new segment should have
+     */
+    private long replay() throws IOException
+    {
+        TreeMap<Long, Path> files = new TreeMap<Long, Path>();
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX))
+        {
+            for(Path file : stream)
+            {
+                String name = file.getFileName().toString();
+                try
+                {
+                    files.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()), 16), file);
+                }catch (NumberFormatException e)
+                {
+                    //not a segment
+                }
+            }
+        }
+        Map<Integer, RecoveredBooking> unfinished = new LinkedHashMap<Integer, RecoveredBooking>();
+        for(Path file : files.values())
+        {
+            try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+            {
+                replay(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN), unfinished);
+            }
+            replayedSegments.add(file);
+        }
+        recovered = new ArrayList<RecoveredBooking>(unfinished.values());
+        return files.isEmpty() ? 0 : files.lastKey() + 1;
+    }
+
+    /**
+     * Applies the records in one segment to the unfinished bookings, stopping at the first record that was
+     * never written or was only partly written
+     */
+    private void replay(ByteBuffer buffer, Map<Integer, RecoveredBooking> unfinished)
+    {
+        int at = 0;
+        while(at + ALIGNMENT <= buffer.limit())
+        {
+            int length = buffer.getInt(at);
+            if(length < ALIGNMENT || length % ALIGNMENT != 0 || length > buffer.limit() - at)
+                return;
+            byte type = buffer.get(at + 4);
+            if(type != PADDING)
+            {
+                if(length < EVENT_BYTES)
+                    return;
+                int bookingId = buffer.getInt(at + 8);
+                maxBookingId = Math.max(maxBookingId, bookingId);
+                RecoveredBooking booking = unfinished.get(bookingId);
+                switch (type)
+                {
+                    case CREATED:
+                        booking = readCreated(buffer, at, length);
+                        if(booking == null)
+                            return;
+                        unfinished.remove(booking.replacesId);
+                        unfinished.put(bookingId, booking);
+                        break;
+                    case ASSIGNED:
+                        if(booking != null)
+                            booking.phase = BookingPhase.PICKUP;
+                        break;
+                    case PICKED_UP:
+                        if(booking != null)
+                            booking.phase = BookingPhase.DRIVE;
+                        break;
+                    case FINISHED:
+                        unfinished.remove(bookingId);
+                        break;
+                    default:
+                        return;
+                }
+            }
+            at += length;
+        }
+    }
+
+    /**
+     * Rebuilds a booking's passenger from its CREATED record
+     *
+     * @return The booking, or null if the record is damaged
+     */
+    private static RecoveredBooking readCreated(ByteBuffer buffer, int at, int length)
+    {
+        int regionLength = buffer.getChar(at + 6);
+        int nameLength = buffer.getChar(at + 28);
+        int priority = buffer.get(at + 5);
+        if(length < CREATED_BYTES + 2 * (regionLength + nameLength) || priority < 0 || priority >= BookingPriority.values().length)
+            return null;
+        char[] chars = new char[regionLength + nameLength];
+        for(int i = 0; i < chars.length; i++)
+            chars[i] = buffer.getChar(at + CREATED_BYTES + 2 * i);
+
+        Passenger passenger = new Passenger(new String(chars, regionLength, nameLength), buffer.getInt(at + 24));
+        passenger.setPriority(BookingPriority.values()[priority]);
+        long maxWait = buffer.getLong(at + 32);
+        if(maxWait > 0)
+        {
+            //the time spent waiting before the restart counts, and a booking already past its deadline misses it straight away
+            long waited = System.currentTimeMillis() - buffer.getLong(at + 16);
+            passenger.setMaxWaitMillis(Math.max(1, maxWait - waited));
+        }
+        passenger.setMaxDriverWaitMillis(buffer.getLong(at + 40));
+        short flags = buffer.getShort(at + 30);
+        if((flags & HAS_LOCATION) != 0)
+            passenger.setLocation(new Location(buffer.getDouble(at + 48), buffer.getDouble(at + 56)));
+        if((flags & HAS_DESTINATION) != 0)
+            passenger.setDestination(new Location(buffer.getDouble(at + 64), buffer.getDouble(at + 72)));
+        return new RecoveredBooking(buffer.getInt(at + 8), new String(chars, 0, regionLength), passenger, buffer.getInt(at + 12));
+    }
+
+}
@@ -0,0 +1,84 @@
+package nuber.students;
+
+import nuber.strtk001_utilities.LatencyHistogram;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency histograms for every phase of the bookings completed by a region.
+ *
+ * Completed bookings are recorded without locking, so the histograms can be kept up to date on
+ * every booking and read at any time while bookings are still running.
+ *
+ * @author strtk001
+ *
+ */
+public class BookingLatencies
+{
+    /**
+     * One histogram per phase, indexed by the phase's ordinal
+     */
+    private final LatencyHistogram[] histograms = new LatencyHistogram[BookingPhase.values().length];
+
+    public BookingLatencies()
+    {
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i] = new LatencyHistogram();
+    }
+
+    /**
+     * Records the phase timings of a completed booking
+     *
+     * @param result The completed booking's result
+     */
+    public void record(BookingResult result)
+    {
+        for (BookingPhase phase : BookingPhase.values())
+            histograms[phase.ordinal()].record(result.getPhaseNanos(phase));
+    }
+
+    /**
+     * Adds everything recorded in another set of latencies to this one
+     *
+     * @param other The latencies to add
+     */
+    public void add(BookingLatencies other)
+    {
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i].add(other.histograms[i]);
+    }
+
+    /**
+     * @param phase The phase to get the histogram for
+     * @return The histogram of the given phase's durations
+     */
+    public LatencyHistogram get(BookingPhase phase)
+    {
+        return histograms[phase.ordinal()];
+    }
+
+    /**
+     * Lists the p50, p99 and p999 of each phase in milliseconds
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder s = new StringBuilder();
+        s.append(get(BookingPhase.TOTAL).getCount()).append(" bookings");
+        for (BookingPhase phase : BookingPhase.values())
+        {
+            LatencyHistogram histogram = get(phase);
+            s.append(String.format(", %s p50/p99/p999 %.1f/%.1f/%.1fms", phase,
+                    millis(histogram.getPercentile(0.5)),
+                    millis(histogram.getPercentile(0.99)),
+                    millis(histogram.getPercentile(0.999))));
+        }
+        return s.toString();
+    }
+
+    private static double millis(long nanos)
+    {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+}
@@ -0,0 +1,30 @@
+package nuber.students;
+
+/**
+ * How a booking ended.
+ *
+ * @author strtk001
+ *
+ */
+public enum BookingOutcome
+{
+    /**
+     * The passenger arrived at their destination
+     */
+    COMPLETED,
+    /**
+     * The booking was still waiting to start when its deadline passed, so it was cancelled
+     * without taking a driver
+     */
+    DEADLINE_MISSED,
+    /**
+     * The booking was cancelled before its passenger was picked up, because its region was shutting down,
+     * its future was cancelled or its thread was interrupted. If it already had a driver, the driver was
+     * returned without taking the passenger anywhere.
+     */
+    CANCELLED,
+    /**
+     * The booking gave up after waiting longer than its maximum wait for a driver
+     */
+    TIMED_OUT
+}
@@ -0,0 +1,31 @@
+package nuber.students;
+
+/**
+ * The stretches of time a booking's life is divided into for timing.
+ *
+ * @author strtk001
+ *
+ */
+public enum BookingPhase
+{
+    /**
+     * From the booking being created to the region starting it
+     */
+    QUEUED,
+    /**
+     * From the region starting the booking to a driver being allocated
+     */
+    WAITING_FOR_DRIVER,
+    /**
+     * From a driver being allocated to the passenger being collected
+     */
+    PICKUP,
+    /**
+     * From the passenger being collected to arriving at their destination
+     */
+    DRIVE,
+    /**
+     * From the booking being created to the passenger arriving
+     */
+    TOTAL
+}
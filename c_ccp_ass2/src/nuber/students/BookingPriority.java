@@ -0,0 +1,37 @@
+package nuber.students;
+
+/**
+ * How urgently a booking should be started, relative to the other bookings waiting in its region.
+ *
+ * A waiting booking is ranked by the time it was made plus its class's head start, so a booking
+ * of a lower class still goes ahead of any higher class booking made more than the difference in
+ * head starts after it. That way a busy stream of premium bookings delays economy bookings by a
+ * bounded amount, rather than starving them.
+ *
+ * @author strtk001
+ *
+ */
+public enum BookingPriority
+{
+    PREMIUM(0),
+    STANDARD(10_000),
+    ECONOMY(60_000);
+
+    /**
+     * How far back in the queue this class starts, in milliseconds
+     */
+    private final long agingOffsetMillis;
+
+    BookingPriority(long agingOffsetMillis)
+    {
+        this.agingOffsetMillis = agingOffsetMillis;
+    }
+
+    /**
+     * @return How far back in the queue bookings of this class start, in milliseconds
+     */
+    public long getAgingOffsetMillis()
+    {
+        return agingOffsetMillis;
+    }
+}
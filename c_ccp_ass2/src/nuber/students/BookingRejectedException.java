@@ -0,0 +1,39 @@
+package nuber.students;
+
+/**
+ * Thrown when a region refuses a booking because its store of pending bookings is full.
+ *
+ * @author strtk001
+ *
+ */
+public class BookingRejectedException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The name of the region that refused the booking
+     */
+    private final String regionName;
+    /**
+     * The policy that led to the booking being refused
+     */
+    private final BackpressurePolicy policy;
+
+    public BookingRejectedException(String regionName, BackpressurePolicy policy, String message)
+    {
+        super(message);
+        this.regionName = regionName;
+        this.policy = policy;
+    }
+
+    public String getRegionName()
+    {
+        return regionName;
+    }
+
+    public BackpressurePolicy getPolicy()
+    {
+        return policy;
+    }
+
+}
@@ -1,11 +1,29 @@
 package nuber.students;
 
+import java.util.concurrent.TimeUnit;
+
 public class BookingResult {
 
     public int jobID;
     public Passenger passenger;
     public Driver driver;
     public long tripDuration;
+    /**
+     * How long each phase of the booking took, in nanoseconds
+     */
+    public long queuedNanos;
+    public long waitingForDriverNanos;
+    public long pickupNanos;
+    public long driveNanos;
+    public long totalNanos;
+    /**
+     * How the booking ended
+     */
+    public BookingOutcome outcome = BookingOutcome.COMPLETED;
+    /**
+     * The class the booking was made in
+     */
+    public BookingPriority priority = BookingPriority.STANDARD;
 
     public BookingResult(int jobID, Passenger passenger, Driver driver, long tripDuration)
     {
@@ -15,4 +33,35 @@ public class BookingResult {
         this.tripDuration = tripDuration;
     }
 
+    /**
+     * Creates a result with the time taken by each phase of the booking.
+     * The trip duration is the total time, in milliseconds.
+     */
+    public BookingResult(int jobID, Passenger passenger, Driver driver,
+                         long queuedNanos, long waitingForDriverNanos, long pickupNanos, long driveNanos, long totalNanos)
+    {
+        this(jobID, passenger, driver, TimeUnit.NANOSECONDS.toMillis(totalNanos));
+        this.queuedNanos = queuedNanos;
+        this.waitingForDriverNanos = waitingForDriverNanos;
+        this.pickupNanos = pickupNanos;
+        this.driveNanos = driveNanos;
+        this.totalNanos = totalNanos;
+    }
+
+    /**
+     * @param phase The phase of the booking
+     * @return How long the phase took, in nanoseconds
+     */
+    public long getPhaseNanos(BookingPhase phase)
+    {
+        switch (phase)
+        {
+            case QUEUED: return queuedNanos;
+            case WAITING_FOR_DRIVER: return waitingForDriverNanos;
+            case PICKUP: return pickupNanos;
+            case DRIVE: return driveNanos;
+            default: return totalNanos;
+        }
+    }
+
 }
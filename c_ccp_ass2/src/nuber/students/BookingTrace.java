@@ -0,0 +1,261 @@
+package nuber.students;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A recorded sequence of bookings, read one at a time from a CSV file so a trace of any length can be
+ * replayed without loading it into memory.
+ *
+ * Each line is one booking:
+ *
+ *     offset_ms,region,passenger,priority,max_wait_ms[,x,y,dest_x,dest_y]
+ *
+ * where offset_ms is when the booking was made, in milliseconds since the trace started, and may have a
+ * fractional part. priority and max_wait_ms may be left empty for STANDARD and no deadline, and the
+ * passenger's location and destination may be left off. Lines must be in order of offset. Blank lines,
+ * and lines that don't start with a digit, such as a header or a # comment, are skipped.
+ *
+ * The file is read through a FileChannel into a reused buffer, and numbers are parsed straight from
+ * its bytes, so only the names of each booking are turned into strings.
+ *
+ * @author strtk001
+ *
+ */
+public class BookingTrace implements Closeable
+{
+    private static final int BUFFER_BYTES = 64 * 1024;
+    /**
+     * The most fields a line can have
+     */
+    private static final int FIELDS = 9;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    /**
+     * The bytes of the current line, grown if a line doesn't fit
+     */
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private long lineNumber;
+    /**
+     * Where each field of the current line starts and ends
+     */
+    private final int[] fieldStarts = new int[FIELDS];
+    private final int[] fieldEnds = new int[FIELDS];
+    private int fieldCount;
+
+    /**
+     * The current booking
+     */
+    private long offsetNanos;
+    private String region;
+    private String passengerName;
+    private BookingPriority priority;
+    private long maxWaitMillis;
+    private Location location;
+    private Location destination;
+
+    /**
+     * Opens a trace, ready for next() to read its first booking
+     *
+     * @param path The CSV file
+     * @throws IOException if the file couldn't be opened
+     */
+    public BookingTrace(Path path) throws IOException
+    {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        buffer.flip();
+    }
+
+    /**
+     * Moves on to the next booking in the trace
+     *
+     * @return false once there are no more bookings
+     * @throws IOException if the file couldn't be read
+     * @throws IllegalArgumentException if the line is not a valid booking
+     */
+    public boolean next() throws IOException
+    {
+        while (readLine())
+        {
+            lineNumber++;
+            if (lineLength == 0 || line[0] < '0' || line[0] > '9')
+                continue;
+            parse();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads the next line into line, without its line ending
+     *
+     * @return false once the end of the file has been reached
+     */
+    private boolean readLine() throws IOException
+    {
+        lineLength = 0;
+        while (true)
+        {
+            if (!buffer.hasRemaining())
+            {
+                buffer.clear();
+                int read = channel.read(buffer);
+                buffer.flip();
+                if (read < 0)
+                    return lineLength > 0;
+            }
+            byte b = buffer.get();
+            if (b == '\n')
+                return true;
+            if (b == '\r')
+                continue;
+            if (lineLength == line.length)
+                line = Arrays.copyOf(line, line.length * 2);
+            line[lineLength++] = b;
+        }
+    }
+
+    /**
+     * Splits the current line into fields and reads the booking from them
+     */
+    private void parse()
+    {
+        fieldCount = 0;
+        int start = 0;
+        for (int i = 0; i <= lineLength; i++)
+        {
+            if (i < lineLength && line[i] != ',')
+                continue;
+            if (fieldCount == FIELDS)
+                throw invalid("more than " + FIELDS + " fields");
+            fieldStarts[fieldCount] = start;
+            fieldEnds[fieldCount++] = i;
+            start = i + 1;
+        }
+        if (fieldCount < 3 || (fieldCount > 5 && fieldCount < FIELDS))
+            throw invalid("expected 3 to 5 or " + FIELDS + " fields but found " + fieldCount);
+
+        offsetNanos = parseMillisAsNanos(0);
+        region = text(1);
+        passengerName = text(2);
+        String priorityName = fieldCount > 3 ? text(3) : "";
+        try
+        {
+            priority = priorityName.isEmpty() ? BookingPriority.STANDARD : BookingPriority.valueOf(priorityName);
+        }catch (IllegalArgumentException e)
+        {
+            throw invalid("unknown priority " + priorityName);
+        }
+        maxWaitMillis = fieldCount > 4 && fieldEnds[4] > fieldStarts[4] ? parseMillisAsNanos(4) / 1_000_000 : 0;
+        location = null;
+        destination = null;
+        if (fieldCount == FIELDS)
+        {
+            location = new Location(number(5), number(6));
+            destination = new Location(number(7), number(8));
+        }
+    }
+
+    /**
+     * Parses a field of whole or fractional milliseconds
+     *
+     * @return The time in nanoseconds
+     */
+    private long parseMillisAsNanos(int field)
+    {
+        long millis = 0;
+        long fraction = 0;
+        long scale = 1_000_000;
+        boolean point = false;
+        int start = fieldStarts[field], end = fieldEnds[field];
+        if (start == end)
+            throw invalid("empty time in field " + (field + 1));
+        for (int i = start; i < end; i++)
+        {
+            byte b = line[i];
+            if (b == '.' && !point)
+                point = true;
+            else if (b < '0' || b > '9')
+                throw invalid("bad time in field " + (field + 1));
+            else if (!point)
+                millis = millis * 10 + (b - '0');
+            else if (scale > 1)
+            {
+                scale /= 10;
+                fraction += (b - '0') * scale;
+            }
+        }
+        return TimeUnit.MILLISECONDS.toNanos(millis) + fraction;
+    }
+
+    private double number(int field)
+    {
+        try
+        {
+            return Double.parseDouble(text(field));
+        }catch (NumberFormatException e)
+        {
+            throw invalid("bad number in field " + (field + 1));
+        }
+    }
+
+    private String text(int field)
+    {
+        return new String(line, fieldStarts[field], fieldEnds[field] - fieldStarts[field], StandardCharsets.UTF_8).trim();
+    }
+
+    private IllegalArgumentException invalid(String problem)
+    {
+        return new IllegalArgumentException(path + " line " + lineNumber + ": " + problem);
+    }
+
+    /**
+     * @return When the current booking was made, in nanoseconds since the trace started
+     */
+    public long getOffsetNanos()
+    {
+        return offsetNanos;
+    }
+
+    /**
+     * @return The name of the region the current booking was made in
+     */
+    public String getRegion()
+    {
+        return region;
+    }
+
+    /**
+     * Creates the passenger of the current booking
+     *
+     * @param maxSleep The most the passenger's trips may take, in milliseconds
+     * @return A new passenger with the booking's name, priority, deadline, location and destination
+     */
+    public Passenger createPassenger(int maxSleep)
+    {
+        Passenger passenger = new Passenger(passengerName, maxSleep);
+        passenger.setPriority(priority);
+        passenger.setMaxWaitMillis(maxWaitMillis);
+        passenger.setLocation(location);
+        passenger.setDestination(destination);
+        return passenger;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+}
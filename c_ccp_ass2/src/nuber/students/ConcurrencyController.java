@@ -0,0 +1,171 @@
+package nuber.students;
+
+import nuber.strtk001_utilities.Clock;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adjusts how many bookings each region of a dispatch runs at once, so its capacity follows demand
+ * without anyone having to choose maxSimultaneousJobs up front.
+ *
+ * Every interval each region is looked at in turn. If bookings are waiting for an active spot while
+ * the bookings that have one are getting drivers quickly, the spot limit is what holds them back, so
+ * the limit is raised by a tenth. If bookings that hold a spot are waiting longer than the target for
+ * a driver, or drivers have stopped being handed out while bookings wait for them, the drivers are
+ * what holds them back, and the limit is cut by a tenth. Extra spots would only move bookings from
+ * the pending queue, where they are started in order of priority and deadline, to waiting for a
+ * driver, where they are not. Otherwise the limit is left alone.
+ *
+ * Adjustments run on the dispatch's clock, one interval at a time, and stop while the dispatch has no
+ * unfinished bookings.
+ *
+ * @author strtk001
+ *
+ */
+public class ConcurrencyController
+{
+    /**
+     * How much of the current limit is added or taken away at each adjustment
+     */
+    private static final double STEP = 0.1;
+
+    private final NuberDispatch dispatch;
+    private final Clock clock;
+    /**
+     * How long between adjustments, in milliseconds
+     */
+    private final long intervalMillis;
+    /**
+     * The bounds each region's limit is kept within
+     */
+    private final int minLimit;
+    private final int maxLimit;
+    /**
+     * The longest bookings should wait for a driver on average, in nanoseconds
+     */
+    private final long targetDriverWaitNanos;
+    /**
+     * The drivers allocated and their total wait in each region, as of the last adjustment.
+     * Only touched by the adjustment being made.
+     */
+    private final Map<NuberRegion, long[]> lastSeen = new HashMap<NuberRegion, long[]>();
+    /**
+     * Set while an adjustment is scheduled or being made
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final LongAdder raises = new LongAdder();
+    private final LongAdder cuts = new LongAdder();
+
+    /**
+     * @param dispatch The dispatch whose regions are adjusted
+     * @param intervalMillis How long between adjustments, in milliseconds
+     * @param minLimit The lowest a region's limit is cut to
+     * @param maxLimit The highest a region's limit is raised to
+     * @param targetDriverWaitMillis The longest bookings should wait for a driver on average, in milliseconds
+     */
+    public ConcurrencyController(NuberDispatch dispatch, long intervalMillis, int minLimit, int maxLimit, long targetDriverWaitMillis)
+    {
+        if (intervalMillis <= 0)
+            throw new IllegalArgumentException("intervalMillis must be positive but was " + intervalMillis);
+        if (minLimit < 1 || maxLimit < minLimit)
+            throw new IllegalArgumentException("Limits must satisfy 1 <= min <= max but were " + minLimit + " and " + maxLimit);
+        this.dispatch = dispatch;
+        this.clock = dispatch.getClock();
+        this.intervalMillis = intervalMillis;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.targetDriverWaitNanos = targetDriverWaitMillis * 1_000_000;
+    }
+
+    /**
+     * Schedules the next adjustment, unless one is already scheduled. Called whenever a region accepts bookings.
+     */
+    void wake()
+    {
+        if (scheduled.compareAndSet(false, true))
+            clock.delay(intervalMillis).thenRun(this::adjust);
+    }
+
+    /**
+     * Adjusts every region, then schedules another adjustment if any bookings are unfinished
+     */
+    private void adjust()
+    {
+        Collection<NuberRegion> regions = dispatch.getRegions();
+        //forget regions that have been removed
+        lastSeen.keySet().retainAll(regions);
+        for (NuberRegion region : regions)
+            adjust(region);
+        scheduled.set(false);
+        //a region may have accepted a booking after it was looked at, while the adjustment was still scheduled
+        if (hasUnfinishedBookings(dispatch.getRegions()))
+            wake();
+    }
+
+    /**
+     * Raises or cuts one region's limit, from what its bookings have been waiting for since the last adjustment
+     *
+     * @param region The region
+     */
+    private void adjust(NuberRegion region)
+    {
+        RegionMetrics metrics = region.getMetrics();
+        long[] last = lastSeen.computeIfAbsent(region, r -> new long[2]);
+        long allocated = metrics.getDriversAllocated();
+        long waited = metrics.getDriverWaitNanos();
+        long newlyAllocated = allocated - last[0];
+        long newlyWaited = waited - last[1];
+        last[0] = allocated;
+        last[1] = waited;
+
+        int limit = region.getMaxSimultaneousJobs();
+        int step = Math.max(1, (int) (limit * STEP));
+        boolean waitingForDrivers = metrics.getWaitingForDriver() > 0
+                && (newlyAllocated == 0 || newlyWaited / newlyAllocated > targetDriverWaitNanos);
+        int next = limit;
+        if (waitingForDrivers)
+            next = Math.max(minLimit, limit - step);
+        else if (region.getBookingQueueLength() > 0)
+            next = Math.min(maxLimit, limit + step);
+        if (next == limit)
+            return;
+        region.setMaxSimultaneousJobs(next);
+        if (next > limit)
+            raises.increment();
+        else
+            cuts.increment();
+    }
+
+    /**
+     * @return true if any of the regions has bookings that haven't finished
+     */
+    private static boolean hasUnfinishedBookings(Collection<NuberRegion> regions)
+    {
+        for (NuberRegion region : regions)
+        {
+            if (region.getUnfinishedBookings() > 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of times a region's limit has been raised
+     */
+    public long getRaises()
+    {
+        return raises.sum();
+    }
+
+    /**
+     * @return The number of times a region's limit has been cut
+     */
+    public long getCuts()
+    {
+        return cuts.sum();
+    }
+}
@@ -0,0 +1,586 @@
+package nuber.students;
+
+import nuber.strtk001_utilities.Clock;
+import nuber.strtk001_utilities.DelayMode;
+import nuber.strtk001_utilities.RealClock;
+
+import java.nio.file.Path;
+
+/**
+ * Optional settings for a NuberDispatch and the regions it creates.
+ *
+ * Every setting has a default matching the original behaviour, so a dispatch created without a
+ * config behaves as it always has. Setters return the config so they can be chained.
+ *
+ * @author strtk001
+ *
+ */
+public class DispatchConfig
+{
+    /**
+     * How regions run their bookings
+     */
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+    /**
+     * The maximum number of bookings each region holds waiting for an active spot
+     */
+    private int pendingBookingLimit = Integer.MAX_VALUE;
+    /**
+     * What a region does with a booking when its pending bookings are at the limit
+     */
+    private BackpressurePolicy backpressurePolicy = BackpressurePolicy.BLOCK;
+    /**
+     * How long a booking waits for room under the TIMEOUT policy, in milliseconds
+     */
+    private long admissionTimeoutMillis = 1000;
+    /**
+     * The number of booking IDs each thread reserves at a time, 1 for strictly sequential IDs
+     */
+    private int bookingIdBlockSize = 1;
+    /**
+     * The number of events the event log can hold before it starts dropping them
+     */
+    private int eventLogCapacity = 8192;
+    /**
+     * The name the dispatch's metrics are registered with JMX under, or null to make one up
+     */
+    private String dispatchName = null;
+    /**
+     * Whether to register the dispatch's and regions' metrics as JMX MBeans
+     */
+    private boolean registerMBeans = true;
+    /**
+     * How long drivers take to pick up and drop off passengers
+     */
+    private DelayMode delayMode = DelayMode.RANDOM;
+    /**
+     * The clock bookings are timed with and drivers drive on
+     */
+    private Clock clock = RealClock.INSTANCE;
+    /**
+     * How the dispatch decides which idle driver a booking gets
+     */
+    private DriverMatching driverMatching = DriverMatching.FIFO;
+    /**
+     * The width of the cells NEAREST matching divides the city into
+     */
+    private double gridCellSize = 10;
+    /**
+     * Whether each region keeps its own drivers, rather than all regions sharing one pool
+     */
+    private boolean regionDriverPools = false;
+    /**
+     * How long bookings and drivers are collected for before being matched in one batch,
+     * in milliseconds, or 0 to match each booking as soon as it asks for a driver
+     */
+    private long matchingWindowMillis = 0;
+    /**
+     * How each batch is paired up when matching in batches
+     */
+    private BatchAssignment batchAssignment = BatchAssignment.GREEDY;
+    /**
+     * How long a booking waits for a driver before giving up, in milliseconds, or 0 to wait for as long as it takes
+     */
+    private long driverWaitTimeoutMillis = 0;
+    /**
+     * Where every finished booking is recorded, or null to not record them
+     */
+    private ResultStore resultStore = null;
+    /**
+     * The directory bookings are journalled to, so unfinished ones can be recovered after a restart, or null to not journal them
+     */
+    private Path journalDirectory = null;
+    /**
+     * The size of each journal segment file, in bytes
+     */
+    private int journalSegmentBytes = 16 * 1024 * 1024;
+    /**
+     * How long the journal waits between forcing what has been written to disk, in milliseconds
+     */
+    private long journalCommitIntervalMillis = 10;
+    /**
+     * How often each region's maxSimultaneousJobs is adjusted to demand, in milliseconds, or 0 to keep it fixed
+     */
+    private long concurrencyControlIntervalMillis = 0;
+    /**
+     * The bounds an adjusted maxSimultaneousJobs is kept within
+     */
+    private int minConcurrencyLimit = 1;
+    private int maxConcurrencyLimit = 256;
+    /**
+     * The longest bookings should wait for a driver on average before a region's maxSimultaneousJobs is cut, in milliseconds
+     */
+    private long targetDriverWaitMillis = 100;
+    /**
+     * How long a driver's shift lasts from when they are added, in milliseconds, or 0 for shifts that only end when asked
+     */
+    private long maxShiftMillis = 0;
+    /**
+     * How long a driver works before taking a break between bookings, in milliseconds, or 0 for no breaks
+     */
+    private long breakIntervalMillis = 0;
+    /**
+     * How long each break lasts, in milliseconds
+     */
+    private long breakMillis = 1000;
+    /**
+     * The most passengers a driver takes on one trip, or 1 to give every booking a driver of its own
+     */
+    private int vehicleCapacity = 1;
+    /**
+     * How far apart two passengers' pick ups, and their destinations, can be for them to share a trip
+     */
+    private double poolingRadius = 100;
+
+    public ExecutionMode getExecutionMode()
+    {
+        return executionMode;
+    }
+
+    /**
+     * @param executionMode How regions should run their bookings
+     * @return this config
+     */
+    public DispatchConfig setExecutionMode(ExecutionMode executionMode)
+    {
+        this.executionMode = executionMode;
+        return this;
+    }
+
+    public int getPendingBookingLimit()
+    {
+        return pendingBookingLimit;
+    }
+
+    /**
+     * @param pendingBookingLimit The maximum number of bookings each region holds waiting for an active spot
+     * @return this config
+     */
+    public DispatchConfig setPendingBookingLimit(int pendingBookingLimit)
+    {
+        this.pendingBookingLimit = pendingBookingLimit;
+        return this;
+    }
+
+    public BackpressurePolicy getBackpressurePolicy()
+    {
+        return backpressurePolicy;
+    }
+
+    /**
+     * @param backpressurePolicy What a region does with a booking when its pending bookings are at the limit
+     * @return this config
+     */
+    public DispatchConfig setBackpressurePolicy(BackpressurePolicy backpressurePolicy)
+    {
+        this.backpressurePolicy = backpressurePolicy;
+        return this;
+    }
+
+    public long getAdmissionTimeoutMillis()
+    {
+        return admissionTimeoutMillis;
+    }
+
+    /**
+     * @param admissionTimeoutMillis How long a booking waits for room under the TIMEOUT policy, in milliseconds
+     * @return this config
+     */
+    public DispatchConfig setAdmissionTimeoutMillis(long admissionTimeoutMillis)
+    {
+        this.admissionTimeoutMillis = admissionTimeoutMillis;
+        return this;
+    }
+
+    public int getBookingIdBlockSize()
+    {
+        return bookingIdBlockSize;
+    }
+
+    /**
+     * @param bookingIdBlockSize The number of booking IDs each thread reserves at a time, 1 for strictly sequential IDs
+     * @return this config
+     */
+    public DispatchConfig setBookingIdBlockSize(int bookingIdBlockSize)
+    {
+        this.bookingIdBlockSize = bookingIdBlockSize;
+        return this;
+    }
+
+    public int getEventLogCapacity()
+    {
+        return eventLogCapacity;
+    }
+
+    /**
+     * @param eventLogCapacity The number of events the event log can hold before it starts dropping them
+     * @return this config
+     */
+    public DispatchConfig setEventLogCapacity(int eventLogCapacity)
+    {
+        this.eventLogCapacity = eventLogCapacity;
+        return this;
+    }
+
+    public String getDispatchName()
+    {
+        return dispatchName;
+    }
+
+    /**
+     * @param dispatchName The name the dispatch's metrics are registered with JMX under
+     * @return this config
+     */
+    public DispatchConfig setDispatchName(String dispatchName)
+    {
+        this.dispatchName = dispatchName;
+        return this;
+    }
+
+    public boolean isRegisterMBeans()
+    {
+        return registerMBeans;
+    }
+
+    /**
+     * @param registerMBeans Whether to register the dispatch's and regions' metrics as JMX MBeans
+     * @return this config
+     */
+    public DispatchConfig setRegisterMBeans(boolean registerMBeans)
+    {
+        this.registerMBeans = registerMBeans;
+        return this;
+    }
+
+    public DelayMode getDelayMode()
+    {
+        return delayMode;
+    }
+
+    /**
+     * @param delayMode How long drivers take to pick up and drop off passengers, e.g. NONE to benchmark
+     *                  coordination overhead without simulated driving
+     * @return this config
+     */
+    public DispatchConfig setDelayMode(DelayMode delayMode)
+    {
+        this.delayMode = delayMode;
+        return this;
+    }
+
+    public Clock getClock()
+    {
+        return clock;
+    }
+
+    /**
+     * @param clock The clock bookings are timed with and drivers drive on. With a SimulatedClock every
+     *              region runs its bookings as in ASYNC mode, whatever the execution mode.
+     * @return this config
+     */
+    public DispatchConfig setClock(Clock clock)
+    {
+        this.clock = clock;
+        return this;
+    }
+
+    public DriverMatching getDriverMatching()
+    {
+        return driverMatching;
+    }
+
+    /**
+     * @param driverMatching How the dispatch decides which idle driver a booking gets
+     * @return this config
+     */
+    public DispatchConfig setDriverMatching(DriverMatching driverMatching)
+    {
+        this.driverMatching = driverMatching;
+        return this;
+    }
+
+    public double getGridCellSize()
+    {
+        return gridCellSize;
+    }
+
+    /**
+     * @param gridCellSize The width of the cells NEAREST matching divides the city into, ideally
+     *                     about the distance between neighbouring idle drivers
+     * @return this config
+     */
+    public DispatchConfig setGridCellSize(double gridCellSize)
+    {
+        this.gridCellSize = gridCellSize;
+        return this;
+    }
+
+    public boolean isRegionDriverPools()
+    {
+        return regionDriverPools;
+    }
+
+    /**
+     * @param regionDriverPools Whether each region keeps its own drivers, stealing from other regions when
+     *                          it runs out, rather than all regions sharing one pool
+     * @return this config
+     */
+    public DispatchConfig setRegionDriverPools(boolean regionDriverPools)
+    {
+        this.regionDriverPools = regionDriverPools;
+        return this;
+    }
+
+    public long getMatchingWindowMillis()
+    {
+        return matchingWindowMillis;
+    }
+
+    /**
+     * @param matchingWindowMillis How long bookings and drivers are collected for before being matched in one batch,
+     *                             in milliseconds, or 0 to match each booking as soon as it asks for a driver.
+     *                             Batch matching takes the place of region driver pools.
+     * @return this config
+     */
+    public DispatchConfig setMatchingWindowMillis(long matchingWindowMillis)
+    {
+        this.matchingWindowMillis = matchingWindowMillis;
+        return this;
+    }
+
+    public BatchAssignment getBatchAssignment()
+    {
+        return batchAssignment;
+    }
+
+    /**
+     * @param batchAssignment How each batch is paired up when matching in batches
+     * @return this config
+     */
+    public DispatchConfig setBatchAssignment(BatchAssignment batchAssignment)
+    {
+        this.batchAssignment = batchAssignment;
+        return this;
+    }
+
+    public long getDriverWaitTimeoutMillis()
+    {
+        return driverWaitTimeoutMillis;
+    }
+
+    /**
+     * @param driverWaitTimeoutMillis How long a booking waits for a driver before giving up, in milliseconds, or 0 to
+     *                                wait for as long as it takes. A passenger's own maximum wait takes its place.
+     * @return this config
+     */
+    public DispatchConfig setDriverWaitTimeoutMillis(long driverWaitTimeoutMillis)
+    {
+        this.driverWaitTimeoutMillis = driverWaitTimeoutMillis;
+        return this;
+    }
+
+    public ResultStore getResultStore()
+    {
+        return resultStore;
+    }
+
+    /**
+     * @param resultStore Where every finished booking is recorded as a compact record, or null to not record them
+     * @return this config
+     */
+    public DispatchConfig setResultStore(ResultStore resultStore)
+    {
+        this.resultStore = resultStore;
+        return this;
+    }
+
+    public Path getJournalDirectory()
+    {
+        return journalDirectory;
+    }
+
+    /**
+     * @param journalDirectory The directory bookings are journalled to, or null to not journal them. Bookings left
+     *                         unfinished in it by an earlier dispatch are booked again by NuberDispatch.recover().
+     * @return this config
+     */
+    public DispatchConfig setJournalDirectory(Path journalDirectory)
+    {
+        this.journalDirectory = journalDirectory;
+        return this;
+    }
+
+    public int getJournalSegmentBytes()
+    {
+        return journalSegmentBytes;
+    }
+
+    /**
+     * @param journalSegmentBytes The size of each journal segment file, in bytes, rounded up to a power of two
+     * @return this config
+     */
+    public DispatchConfig setJournalSegmentBytes(int journalSegmentBytes)
+    {
+        this.journalSegmentBytes = journalSegmentBytes;
+        return this;
+    }
+
+    public long getJournalCommitIntervalMillis()
+    {
+        return journalCommitIntervalMillis;
+    }
+
+    /**
+     * @param journalCommitIntervalMillis How long the journal waits between forcing what has been written to disk,
+     *                                    in milliseconds. Everything written in between is forced together.
+     * @return this config
+     */
+    public DispatchConfig setJournalCommitIntervalMillis(long journalCommitIntervalMillis)
+    {
+        this.journalCommitIntervalMillis = journalCommitIntervalMillis;
+        return this;
+    }
+
+    public long getConcurrencyControlIntervalMillis()
+    {
+        return concurrencyControlIntervalMillis;
+    }
+
+    /**
+     * @param concurrencyControlIntervalMillis How often each region's maxSimultaneousJobs is adjusted to demand, in
+     *                                         milliseconds, or 0 to keep it fixed. See ConcurrencyController.
+     * @return this config
+     */
+    public DispatchConfig setConcurrencyControlIntervalMillis(long concurrencyControlIntervalMillis)
+    {
+        this.concurrencyControlIntervalMillis = concurrencyControlIntervalMillis;
+        return this;
+    }
+
+    public int getMinConcurrencyLimit()
+    {
+        return minConcurrencyLimit;
+    }
+
+    /**
+     * @param minConcurrencyLimit The lowest an adjusted maxSimultaneousJobs is cut to
+     * @return this config
+     */
+    public DispatchConfig setMinConcurrencyLimit(int minConcurrencyLimit)
+    {
+        this.minConcurrencyLimit = minConcurrencyLimit;
+        return this;
+    }
+
+    public int getMaxConcurrencyLimit()
+    {
+        return maxConcurrencyLimit;
+    }
+
+    /**
+     * @param maxConcurrencyLimit The highest an adjusted maxSimultaneousJobs is raised to
+     * @return this config
+     */
+    public DispatchConfig setMaxConcurrencyLimit(int maxConcurrencyLimit)
+    {
+        this.maxConcurrencyLimit = maxConcurrencyLimit;
+        return this;
+    }
+
+    public long getTargetDriverWaitMillis()
+    {
+        return targetDriverWaitMillis;
+    }
+
+    /**
+     * @param targetDriverWaitMillis The longest bookings should wait for a driver on average, in milliseconds. A region
+     *                               whose bookings wait longer has its maxSimultaneousJobs cut.
+     * @return this config
+     */
+    public DispatchConfig setTargetDriverWaitMillis(long targetDriverWaitMillis)
+    {
+        this.targetDriverWaitMillis = targetDriverWaitMillis;
+        return this;
+    }
+
+    public long getMaxShiftMillis()
+    {
+        return maxShiftMillis;
+    }
+
+    /**
+     * @param maxShiftMillis How long a driver's shift lasts from when they are added, in milliseconds, or 0 for shifts
+     *                       that only end when asked. A driver who is busy when it is up finishes their booking first.
+     * @return this config
+     */
+    public DispatchConfig setMaxShiftMillis(long maxShiftMillis)
+    {
+        this.maxShiftMillis = maxShiftMillis;
+        return this;
+    }
+
+    public long getBreakIntervalMillis()
+    {
+        return breakIntervalMillis;
+    }
+
+    /**
+     * @param breakIntervalMillis How long a driver works before taking a break, in milliseconds, or 0 for no breaks.
+     *                            Breaks are only taken between bookings.
+     * @return this config
+     */
+    public DispatchConfig setBreakIntervalMillis(long breakIntervalMillis)
+    {
+        this.breakIntervalMillis = breakIntervalMillis;
+        return this;
+    }
+
+    public long getBreakMillis()
+    {
+        return breakMillis;
+    }
+
+    /**
+     * @param breakMillis How long each break lasts, in milliseconds
+     * @return this config
+     */
+    public DispatchConfig setBreakMillis(long breakMillis)
+    {
+        this.breakMillis = breakMillis;
+        return this;
+    }
+
+    public int getVehicleCapacity()
+    {
+        return vehicleCapacity;
+    }
+
+    /**
+     * @param vehicleCapacity The most passengers a driver takes on one trip. Above 1, bookings waiting for a driver
+     *                        in the same region are grouped into shared trips. 1 or less turns pooling off.
+     * @return this config
+     */
+    public DispatchConfig setVehicleCapacity(int vehicleCapacity)
+    {
+        this.vehicleCapacity = vehicleCapacity;
+        return this;
+    }
+
+    public double getPoolingRadius()
+    {
+        return poolingRadius;
+    }
+
+    /**
+     * @param poolingRadius How far apart two passengers' pick ups, and their destinations, can be for them to
+     *                      share a trip, in milliseconds of driving. Passengers without locations can only share
+     *                      with each other.
+     * @return this config
+     */
+    public DispatchConfig setPoolingRadius(double poolingRadius)
+    {
+        this.poolingRadius = poolingRadius;
+        return this;
+    }
+
+}
@@ -0,0 +1,79 @@
+package nuber.students;
+
+import java.util.function.ToLongFunction;
+
+/**
+ * The metrics of a dispatch, totalled across all of its regions on every read. Regions that have been
+ * removed still count, both while they finish their bookings and afterwards, so the totals never go
+ * backwards when a region is removed.
+ *
+ * Registered with JMX alongside each region's RegionMetrics, and used to build MetricsSnapshots.
+ *
+ * @author strtk001
+ *
+ */
+public class DispatchMetrics implements DispatchMetricsMBean
+{
+    /**
+     * The dispatch these metrics belong to
+     */
+    private final NuberDispatch dispatch;
+
+    public DispatchMetrics(NuberDispatch dispatch)
+    {
+        this.dispatch = dispatch;
+    }
+
+    /**
+     * Reads every counter of the dispatch and its regions
+     *
+     * @return The current metrics
+     */
+    public MetricsSnapshot snapshot()
+    {
+        return new MetricsSnapshot(dispatch.getRegions(), dispatch.getRemovedRegionMetrics(), dispatch.getIdleDriverCount());
+    }
+
+    public long getSubmitted() { return sum(RegionMetrics::getSubmitted); }
+    public long getRejected() { return sum(RegionMetrics::getRejected); }
+    public long getPending() { return sum(RegionMetrics::getPending); }
+    public long getActive() { return sum(RegionMetrics::getActive); }
+    public long getWaitingForDriver() { return sum(RegionMetrics::getWaitingForDriver); }
+    public long getCompleted() { return sum(RegionMetrics::getCompleted); }
+    public long getFailed() { return sum(RegionMetrics::getFailed); }
+    public long getDeadlinesMissed() { return sum(RegionMetrics::getDeadlinesMissed); }
+    public long getCancelled() { return sum(RegionMetrics::getCancelled); }
+    public long getDriverTimeouts() { return sum(RegionMetrics::getDriverTimeouts); }
+    public long getThroughputPerSecond() { return sum(RegionMetrics::getThroughputPerSecond); }
+
+    public int getIdleDrivers()
+    {
+        return dispatch.getIdleDriverCount();
+    }
+
+    public long getBusyDrivers() { return sum(RegionMetrics::getOnTrip); }
+
+    public double getDriverUtilization()
+    {
+        long busy = getBusyDrivers();
+        long idle = getIdleDrivers();
+        return busy + idle == 0 ? 0 : busy / (double) (busy + idle);
+    }
+
+    /**
+     * Adds up one counter across every region, including removed ones
+     *
+     * @param counter The counter to read from each region's metrics
+     * @return The total
+     */
+    private long sum(ToLongFunction<RegionMetrics> counter)
+    {
+        long total = 0;
+        for (NuberRegion region : dispatch.getRegions())
+            total += counter.applyAsLong(region.getMetrics());
+        for (RegionMetrics removed : dispatch.getRemovedRegionMetrics())
+            total += counter.applyAsLong(removed);
+        return total;
+    }
+
+}
@@ -0,0 +1,25 @@
+package nuber.students;
+
+/**
+ * The JMX view of a dispatch's metrics, totalled across all of its regions.
+ *
+ * @author strtk001
+ *
+ */
+public interface DispatchMetricsMBean
+{
+    long getSubmitted();
+    long getRejected();
+    long getPending();
+    long getActive();
+    long getWaitingForDriver();
+    long getCompleted();
+    long getFailed();
+    long getDeadlinesMissed();
+    long getCancelled();
+    long getDriverTimeouts();
+    long getThroughputPerSecond();
+    int getIdleDrivers();
+    long getBusyDrivers();
+    double getDriverUtilization();
+}
@@ -0,0 +1,327 @@
+package nuber.students;
+
+import nuber.strtk001_utilities.ConsistentHashRing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One node of a dispatch sharded over several nodes. Every node is given the same node IDs and regions,
+ * and places the nodes on a consistent hash ring, so they all agree on which node owns each region
+ * without having to ask. Each node runs its own NuberDispatch holding just the regions it owns.
+ *
+ * A booking made through any node is sent to the node that owns its region, over the transport. Drivers
+ * are added to the node they join, and when one of a node's bookings has to wait because none of its
+ * drivers are idle, it borrows idle drivers from the other nodes, one at a time, for as long as its
+ * bookings are waiting. A borrowed driver joins the borrowing node, and can be lent on again from there.
+ *
+ * @author strtk001
+ *
+ */
+public class DispatchNode
+{
+    /**
+     * The number of points each node is placed at on the ring
+     */
+    private static final int RING_POINTS = 128;
+    /**
+     * How long a node whose bookings are still waiting for drivers waits before asking the other nodes
+     * again, once none of them had one to lend, in milliseconds
+     */
+    private static final long BORROW_RETRY_MILLIS = 20;
+
+    private final String nodeId;
+    private final NodeTransport transport;
+    /**
+     * Which node owns each region
+     */
+    private final ConsistentHashRing<String> ring = new ConsistentHashRing<String>(RING_POINTS);
+    /**
+     * The other nodes, in the order they are asked for drivers
+     */
+    private final List<String> peers = new ArrayList<String>();
+    /**
+     * Runs the regions this node owns
+     */
+    private final NuberDispatch dispatch;
+    /**
+     * Set while this node is borrowing drivers, so only one request for a driver is out at a time
+     */
+    private final AtomicBoolean borrowing = new AtomicBoolean();
+    private final LongAdder driversBorrowed = new LongAdder();
+    private final LongAdder driversLent = new LongAdder();
+    private final LongAdder bookingsForwarded = new LongAdder();
+
+    /**
+     * Creates a node, starts the regions it owns and connects it to the transport
+     *
+     * @param nodeId This node's ID, which must be one of nodeIds
+     * @param nodeIds The IDs of every node, the same on every node
+     * @param regionInfo Map of every region name and the max simultaneous bookings it can handle, the same on every node
+     * @param transport How the nodes reach each other
+     * @param config The settings for this node's dispatch
+     * @throws IOException if the node couldn't be connected to the transport
+     */
+    public DispatchNode(String nodeId, Collection<String> nodeIds, Map<String, Integer> regionInfo,
+                        NodeTransport transport, DispatchConfig config) throws IOException
+    {
+        if(!nodeIds.contains(nodeId))
+            throw new IllegalArgumentException(nodeId + " isn't one of the nodes " + nodeIds);
+        this.nodeId = nodeId;
+        this.transport = transport;
+        for(String id : nodeIds)
+            ring.addNode(id, id);
+        //each node starts with a different peer, so they don't all ask the same one first
+        List<String> ids = ring.getNodes();
+        int self = ids.indexOf(nodeId);
+        for(int i = 1; i < ids.size(); i++)
+            peers.add(ids.get((self + i) % ids.size()));
+
+        HashMap<String, Integer> owned = new HashMap<String, Integer>();
+        for(Map.Entry<String, Integer> region : regionInfo.entrySet())
+        {
+            if(nodeId.equals(ring.nodeFor(region.getKey())))
+                owned.put(region.getKey(), region.getValue());
+        }
+        dispatch = new NuberDispatch(owned, false, config);
+        if(!peers.isEmpty())
+            dispatch.setDriverShortageListener(near -> borrowDrivers(near));
+        transport.connect(this);
+    }
+
+    /**
+     * Getter method for this node's ID.
+     *
+     * @return The node's ID
+     */
+    public String getNodeId(){return nodeId;}
+    /**
+     * Getter method for the dispatch running the regions this node owns.
+     *
+     * @return The node's dispatch
+     */
+    public NuberDispatch getDispatch(){return dispatch;}
+    /**
+     * Gets the node that owns a region, whether or not the region exists
+     *
+     * @param region The region's name
+     * @return The ID of the node that owns it
+     */
+    public String getOwner(String region){return ring.nodeFor(region);}
+    /**
+     * Gets the IDs of every node, including this one
+     *
+     * @return The node IDs, in order
+     */
+    public List<String> getNodeIds(){return ring.getNodes();}
+    /**
+     * Gets the names of the regions this node owns
+     *
+     * @return The region names
+     */
+    public Collection<String> getRegionNames(){return Collections.unmodifiableCollection(dispatch.getRegionNames());}
+
+    /**
+     * Books a passenger into a region, on whichever node owns it.
+     *
+     * Unlike NuberDispatch, a booking that is refused never gives null or throws, as a refusal from another
+     * node only arrives later. The future completes exceptionally with a BookingRejectedException instead.
+     *
+     * @param passenger The passenger to book
+     * @param region The region to book them into
+     * @return A future that completes with the BookingResult once the passenger has arrived
+     */
+    public CompletableFuture<BookingResult> bookPassenger(Passenger passenger, String region)
+    {
+        String owner = ring.nodeFor(region);
+        if(owner.equals(nodeId))
+            return acceptBooking(region, passenger);
+        bookingsForwarded.increment();
+        //the result carries a copy of the passenger if it came back over the wire, so give the caller theirs back
+        return transport.bookPassenger(owner, region, passenger).thenApply(result -> {
+            result.passenger = passenger;
+            return result;
+        });
+    }
+
+    /**
+     * Books a passenger into one of this node's own regions, for a booking made through this node or sent
+     * by another one.
+     *
+     * @param region The region's name
+     * @param passenger The passenger to book
+     * @return A future that completes with the BookingResult, or completes exceptionally with a
+     * BookingRejectedException if the region doesn't exist here or refused the booking
+     */
+    CompletableFuture<BookingResult> acceptBooking(String region, Passenger passenger)
+    {
+        NuberRegion local = dispatch.getRegion(region);
+        if(local == null)
+            return CompletableFuture.failedFuture(new BookingRejectedException(region, null,
+                    "No region " + region + " on node " + nodeId));
+        try
+        {
+            CompletableFuture<BookingResult> booking = local.bookPassenger(passenger);
+            if(booking == null)
+                return CompletableFuture.failedFuture(new BookingRejectedException(region, null,
+                        "Rejected booking, " + region + " is shut down"));
+            return booking;
+        }catch (BookingRejectedException e)
+        {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Adds a driver to this node
+     *
+     * @param newDriver The driver to add
+     * @return true if the driver was added
+     */
+    public boolean addDriver(Driver newDriver)
+    {
+        return dispatch.addDriver(newDriver);
+    }
+
+    /**
+     * Gives one of this node's idle drivers to another node that asked for one
+     *
+     * @param near Where the driver is needed, or null if it doesn't matter
+     * @return The driver, which has left this node, or null if none was idle
+     */
+    Driver lendDriver(Location near)
+    {
+        Driver driver = dispatch.pollIdleDriver(near);
+        if(driver == null)
+            return null;
+        driversLent.increment();
+        //the driver is on shift at whichever node takes them, even if it only gets a copy over the wire
+        dispatch.driverLent(driver);
+        return driver;
+    }
+
+    /**
+     * Starts borrowing drivers from the other nodes for bookings that are waiting, unless this node is
+     * already borrowing
+     *
+     * @param near Where the first driver is needed, or null if it doesn't matter
+     */
+    private void borrowDrivers(Location near)
+    {
+        if(borrowing.compareAndSet(false, true))
+            borrowFrom(0, near);
+    }
+
+    /**
+     * Asks the other nodes for a driver in turn, starting with one of them. Once a driver arrives it is
+     * added here, where it goes to a waiting booking, and the next driver is asked for while bookings are
+     * still waiting. If no node had one, it tries again shortly for as long as bookings are waiting.
+     *
+     * @param peer The index of the node to ask first
+     * @param near Where the driver is needed, or null if it doesn't matter
+     */
+    private void borrowFrom(int peer, Location near)
+    {
+        //answers that are already there are handled in this loop, so borrowing many drivers doesn't recurse
+        while(true)
+        {
+            if(!hasBookingsWaitingForDrivers())
+            {
+                finishBorrowing();
+                return;
+            }
+            if(peer == peers.size())
+            {
+                dispatch.getClock().delay(BORROW_RETRY_MILLIS).thenRun(() -> borrowFrom(0, null));
+                return;
+            }
+            CompletableFuture<Driver> request = transport.borrowDriver(peers.get(peer), near)
+                    .exceptionally(failure -> null);
+            if(!request.isDone())
+            {
+                int asked = peer;
+                Location wanted = near;
+                request.thenAccept(driver -> borrowFrom(received(driver, asked), driver == null ? wanted : null));
+                return;
+            }
+            Driver driver = request.join();
+            peer = received(driver, peer);
+            if(driver != null)
+                near = null;
+        }
+    }
+
+    /**
+     * Adds a borrowed driver to this node, where it goes to a waiting booking
+     *
+     * @param driver The driver, or null if the node asked had none to lend
+     * @param peer The index of the node asked
+     * @return The index of the node to ask next
+     */
+    private int received(Driver driver, int peer)
+    {
+        if(driver == null)
+            return peer + 1;
+        driversBorrowed.increment();
+        dispatch.addDriver(driver);
+        return peer;
+    }
+
+    /**
+     * Stops borrowing, starting again if a booking started waiting before it stopped
+     */
+    private void finishBorrowing()
+    {
+        borrowing.set(false);
+        //a booking that started waiting while this node was finishing saw it still borrowing
+        if(hasBookingsWaitingForDrivers() && borrowing.compareAndSet(false, true))
+            borrowFrom(0, null);
+    }
+
+    /**
+     * @return true if any of this node's bookings are waiting for a driver
+     */
+    private boolean hasBookingsWaitingForDrivers()
+    {
+        return dispatch.getMetrics().getWaitingForDriver() > 0;
+    }
+
+    /**
+     * Getter method for the number of drivers this node has borrowed from the other nodes.
+     *
+     * @return Drivers borrowed
+     */
+    public long getDriversBorrowed(){return driversBorrowed.sum();}
+    /**
+     * Getter method for the number of drivers this node has lent to the other nodes.
+     *
+     * @return Drivers lent
+     */
+    public long getDriversLent(){return driversLent.sum();}
+    /**
+     * Getter method for the number of bookings made through this node that were sent to the node owning their region.
+     *
+     * @return Bookings forwarded
+     */
+    public long getBookingsForwarded(){return bookingsForwarded.sum();}
+
+    /**
+     * Tells this node's regions to finish their bookings and stop accepting new ones, and disconnects the node
+     * from the transport once they have finished, so bookings sent by other nodes still get their results.
+     *
+     * @return A future that completes once the node has finished its bookings and been disconnected
+     */
+    public CompletableFuture<Void> shutdown()
+    {
+        dispatch.shutdown();
+        return dispatch.getTermination().thenRun(() -> transport.disconnect(nodeId));
+    }
+}
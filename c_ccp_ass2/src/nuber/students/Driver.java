@@ -2,20 +2,333 @@ package nuber.students;
 
 
 
+import nuber.strtk001_utilities.Clock;
+import nuber.strtk001_utilities.DelayMode;
+import nuber.strtk001_utilities.RealClock;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static nuber.strtk001_utilities.Utility.delay;
+import static nuber.strtk001_utilities.Utility.delayAsync;
 
 public class Driver extends Person
 {
+    /**
+     * What adding a driver to an idle pool has to do with them
+     */
+    enum Availability
+    {
+        /**
+         * The driver left while still listed in an idle pool, and is idle there again
+         */
+        RELISTED,
+        /**
+         * The driver is now busy, and must be handed to a waiting booking or listed as idle
+         */
+        HAND_OVER,
+        /**
+         * The driver can't be added, as they are already idle, on a break or their shift has ended
+         */
+        REFUSED
+    }
+
+    /**
+     * Set in the status while the driver has an entry in an idle pool. The entry is stale if they went
+     * off shift or on a break while idle.
+     */
+    private static final int LISTED = 1 << 4;
+    private static final int STATE = LISTED - 1;
+    private static final DriverState[] STATES = DriverState.values();
+
     /**
      * The current passenger
      */
     private Passenger myPassenger;
+    /**
+     * The driver's state's ordinal, with LISTED set while they have an entry in an idle pool. Both are
+     * changed together, so a driver coming back can't miss their entry being dropped.
+     */
+    private final AtomicInteger status = new AtomicInteger(DriverState.OFF_SHIFT.ordinal());
+    /**
+     * The idle driver count of whatever the driver was last listed in, which goes down when they stop being idle
+     */
+    private volatile AtomicInteger idleCount;
+    /**
+     * The pool the driver was last listed in, or null if it wasn't a DriverPool
+     */
+    private volatile DriverPool listedIn;
+    /**
+     * Set once the driver's shift is to end, so they leave rather than take another booking
+     */
+    private final AtomicBoolean shiftEnding = new AtomicBoolean();
+    /**
+     * The number of shifts the driver has started, so a timer set for the end of one shift can tell it is
+     * no longer running
+     */
+    private final AtomicInteger shifts = new AtomicInteger();
+    /**
+     * The dispatch whose roster the driver is on, which counts the drivers on shift, or null if they are on
+     * none. That is the dispatch that started their shift, or the one that last borrowed them.
+     */
+    private volatile NuberDispatch rosteredWith;
+    /**
+     * When the driver's shift started or they last came back from a break, on the dispatch's clock
+     */
+    private volatile long lastBreakNanos;
 
     public Driver(String driverName, int maxSleep)
     {
         super(driverName, maxSleep);
     }
 
+    /**
+     * Gets where the driver is in their shift
+     *
+     * @return The driver's state
+     */
+    public DriverState getState()
+    {
+        return STATES[status.get() & STATE];
+    }
+
+    /**
+     * Makes the driver available for bookings, as they start a shift, come back from a break or are freed
+     * from a booking. A driver that is freed once their shift is due to end goes off shift instead.
+     *
+     * @param from The state, other than BUSY, the driver may become available from
+     * @return What the pool adding the driver has to do with them
+     */
+    Availability becomeAvailable(DriverState from)
+    {
+        while(true)
+        {
+            int current = status.get();
+            DriverState state = STATES[current & STATE];
+            if(state == DriverState.BUSY && shiftEnding.get())
+            {
+                if(status.compareAndSet(current, DriverState.OFF_SHIFT.ordinal()))
+                {
+                    leftShift();
+                    return Availability.REFUSED;
+                }
+                continue;
+            }
+            if(state != from && state != DriverState.BUSY)
+                return Availability.REFUSED;
+            if((current & LISTED) == 0)
+            {
+                if(status.compareAndSet(current, DriverState.BUSY.ordinal()))
+                {
+                    if(state == DriverState.OFF_SHIFT)
+                        joinedShift();
+                    return Availability.HAND_OVER;
+                }
+            }
+            //their entry hasn't been dropped yet, so they take it up again rather than being listed twice
+            else if(status.compareAndSet(current, DriverState.IDLE.ordinal() | LISTED))
+            {
+                idleCount.incrementAndGet();
+                if(state == DriverState.OFF_SHIFT)
+                    joinedShift();
+                return Availability.RELISTED;
+            }
+        }
+    }
+
+    /**
+     * Marks a busy driver as idle, just before their entry is added to an idle pool
+     *
+     * @param pool The pool they are listed in, or null if it isn't a DriverPool
+     * @param count The idle driver count of whatever they are listed in
+     */
+    void listIdle(DriverPool pool, AtomicInteger count)
+    {
+        listedIn = pool;
+        idleCount = count;
+        count.incrementAndGet();
+        status.set(DriverState.IDLE.ordinal() | LISTED);
+        //their shift may have been ended while they were being listed, when they still looked busy
+        if(shiftEnding.get())
+            leave(DriverState.OFF_SHIFT);
+    }
+
+    /**
+     * Takes the driver for a booking, once their entry has been removed from an idle pool. If they
+     * left while idle, the entry was stale, and is just dropped.
+     *
+     * @return true if the driver was idle and is now busy
+     */
+    boolean claim()
+    {
+        while(true)
+        {
+            int current = status.get();
+            if(current == (DriverState.IDLE.ordinal() | LISTED))
+            {
+                if(status.compareAndSet(current, DriverState.BUSY.ordinal()))
+                {
+                    idleCount.decrementAndGet();
+                    return true;
+                }
+            }
+            else if(status.compareAndSet(current, current & STATE))
+                return false;
+        }
+    }
+
+    /**
+     * Drops the driver's entry if they left while idle, for whatever holds the entry to remove it
+     *
+     * @return true if the entry was stale, and has been dropped
+     */
+    boolean dropIfStale()
+    {
+        while(true)
+        {
+            int current = status.get();
+            if((current & LISTED) == 0 || current == (DriverState.IDLE.ordinal() | LISTED))
+                return false;
+            if(status.compareAndSet(current, current & STATE))
+                return true;
+        }
+    }
+
+    /**
+     * Takes an idle driver off shift or on a break where they are, without looking for them in their pool.
+     * Their entry is left behind, to be dropped when the pool next reaches it, or taken up again if they
+     * come back first. A driver on a break can also go off shift.
+     *
+     * @param to OFF_SHIFT or ON_BREAK
+     * @return true if the driver left
+     */
+    boolean leave(DriverState to)
+    {
+        while(true)
+        {
+            int current = status.get();
+            DriverState state = STATES[current & STATE];
+            boolean idle = state == DriverState.IDLE;
+            if(!idle && !(state == DriverState.ON_BREAK && to == DriverState.OFF_SHIFT))
+                return false;
+            if(status.compareAndSet(current, to.ordinal() | (current & LISTED)))
+            {
+                if(idle)
+                    idleCount.decrementAndGet();
+                if(to == DriverState.OFF_SHIFT)
+                    leftShift();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes a busy driver off shift or on a break, instead of making them available again
+     *
+     * @param to OFF_SHIFT or ON_BREAK
+     * @return true if the driver was busy
+     */
+    boolean stepAway(DriverState to)
+    {
+        if(!status.compareAndSet(DriverState.BUSY.ordinal(), to.ordinal()))
+            return false;
+        if(to == DriverState.OFF_SHIFT)
+            leftShift();
+        return true;
+    }
+
+    /**
+     * Tells the dispatch whose roster the driver is on that they are now on shift
+     */
+    private void joinedShift()
+    {
+        NuberDispatch dispatch = rosteredWith;
+        if(dispatch != null)
+            dispatch.driverJoinedShift();
+    }
+
+    /**
+     * Tells the dispatch whose roster the driver is on that they have gone off shift
+     */
+    private void leftShift()
+    {
+        NuberDispatch dispatch = rosteredWith;
+        if(dispatch != null)
+            dispatch.driverLeftShift();
+    }
+
+    /**
+     * Moves the driver onto a dispatch's roster, so their shift changes are counted there
+     *
+     * @param dispatch The dispatch the driver has been added to
+     * @return true if the driver wasn't already on its roster, and so joins its count of drivers on shift
+     */
+    boolean joinRoster(NuberDispatch dispatch)
+    {
+        if(rosteredWith == dispatch)
+            return false;
+        rosteredWith = dispatch;
+        return true;
+    }
+
+    /**
+     * Takes the driver off a dispatch's roster, as they are handed to another one
+     *
+     * @param dispatch The dispatch lending the driver
+     * @return true if the driver was on its roster, and so leaves its count of drivers on shift
+     */
+    boolean leaveRoster(NuberDispatch dispatch)
+    {
+        if(rosteredWith != dispatch)
+            return false;
+        rosteredWith = null;
+        return true;
+    }
+
+    /**
+     * @return The pool the driver was last listed in, or null if it wasn't a DriverPool
+     */
+    DriverPool getListedIn(){return listedIn;}
+
+    /**
+     * Starts a new shift, forgetting any end asked for in the last one. The driver is counted as on shift
+     * once they are made available.
+     *
+     * @param nowNanos The time on the dispatch's clock
+     * @param dispatch The dispatch starting the shift
+     * @return The number of the new shift
+     */
+    int startShift(long nowNanos, NuberDispatch dispatch)
+    {
+        rosteredWith = dispatch;
+        shiftEnding.set(false);
+        lastBreakNanos = nowNanos;
+        return shifts.incrementAndGet();
+    }
+    /**
+     * Asks for the driver's shift to end once they finish what they are doing
+     *
+     * @return true if this call ended the shift, false if it was already ending
+     */
+    boolean endShift(){return shiftEnding.compareAndSet(false, true);}
+    /**
+     * @return true if the driver's shift is to end
+     */
+    boolean isShiftEnding(){return shiftEnding.get();}
+    /**
+     * @return The number of shifts the driver has started
+     */
+    int getShifts(){return shifts.get();}
+    /**
+     * @return When the driver's shift started or they last came back from a break, on the dispatch's clock
+     */
+    long getLastBreakNanos(){return lastBreakNanos;}
+    /**
+     * @param nowNanos When the driver came back from a break, on the dispatch's clock
+     */
+    void breakEnded(long nowNanos){lastBreakNanos = nowNanos;}
+
     /**
      * Stores the provided passenger as the driver's current passenger and then
      * sleeps the thread for between 0-maxDelay milliseconds.
@@ -24,9 +337,27 @@ public class Driver extends Person
      * @throws InterruptedException
      */
     public void pickUpPassenger(Passenger newPassenger)
+    {
+        pickUpPassenger(newPassenger, DelayMode.RANDOM, RealClock.INSTANCE);
+    }
+
+    /**
+     * Stores the provided passenger as the driver's current passenger and then
+     * sleeps the thread for a time between 0-maxDelay milliseconds picked by the delay mode.
+     * If both the driver and the passenger have a location, the sleep is the distance between them instead.
+     *
+     * @param newPassenger Passenger to collect
+     * @param mode How to pick the time the pick up takes
+     * @param clock The clock the time passes on
+     */
+    public void pickUpPassenger(Passenger newPassenger, DelayMode mode, Clock clock)
     {
         myPassenger = newPassenger;
-        delay(maxSleep);
+        int distance = distanceTo(newPassenger == null ? null : newPassenger.getLocation());
+        if(distance >= 0)
+            delay(distance, exactly(mode), clock);
+        else
+            delay(maxSleep, mode, clock);
     }
 
     /**
@@ -37,7 +368,114 @@ public class Driver extends Person
      */
     public void driveToDestination()
     {
-        delay(myPassenger.getTravelTime());
+        driveToDestination(DelayMode.RANDOM, RealClock.INSTANCE);
+    }
+
+    /**
+     * Sleeps the thread for the current passenger's travel time, picked by the delay mode.
+     * If the passenger has a destination, the sleep is the distance to it instead.
+     *
+     * @param mode How to pick the time the trip takes
+     * @param clock The clock the time passes on
+     */
+    public void driveToDestination(DelayMode mode, Clock clock)
+    {
+        int distance = distanceTo(myPassenger == null ? null : myPassenger.getDestination());
+        if(distance >= 0)
+            delay(distance, exactly(mode), clock);
+        else
+            delay(travelTime(mode), mode, clock);
+    }
+
+    /**
+     * Stores the provided passenger as the driver's current passenger, without
+     * blocking the calling thread for the pick up.
+     *
+     * @param newPassenger Passenger to collect
+     * @param mode How to pick the time the pick up takes
+     * @param clock The clock the time passes on
+     * @return A future that completes once the passenger has been collected
+     */
+    public CompletableFuture<Void> pickUpPassengerAsync(Passenger newPassenger, DelayMode mode, Clock clock)
+    {
+        myPassenger = newPassenger;
+        int distance = distanceTo(newPassenger == null ? null : newPassenger.getLocation());
+        if(distance >= 0)
+            return delayAsync(distance, exactly(mode), clock);
+        return delayAsync(maxSleep, mode, clock);
+    }
+
+    /**
+     * Drives the current passenger to their destination, without blocking the
+     * calling thread for the trip.
+     *
+     * @param mode How to pick the time the trip takes
+     * @param clock The clock the time passes on
+     * @return A future that completes once the passenger has arrived
+     */
+    public CompletableFuture<Void> driveToDestinationAsync(DelayMode mode, Clock clock)
+    {
+        int distance = distanceTo(myPassenger == null ? null : myPassenger.getDestination());
+        if(distance >= 0)
+            return delayAsync(distance, exactly(mode), clock);
+        return delayAsync(travelTime(mode), mode, clock);
+    }
+
+    /**
+     * Drives one of the passengers on a shared trip to their destination, without blocking the
+     * calling thread. The passenger becomes the current passenger for the rest of the drive.
+     *
+     * @param passenger Passenger to drop off, who must already have been collected
+     * @param mode How to pick the time the drive takes
+     * @param clock The clock the time passes on
+     * @return A future that completes once the passenger has arrived
+     */
+    public CompletableFuture<Void> dropOffPassengerAsync(Passenger passenger, DelayMode mode, Clock clock)
+    {
+        myPassenger = passenger;
+        return driveToDestinationAsync(mode, clock);
+    }
+
+    /**
+     * Moves the driver to a location, and works out how long it takes to get there.
+     * The driver is treated as already there once they set off.
+     *
+     * @param target Where the driver is going
+     * @return The driving time in milliseconds, or -1 if the driver or the target has no location
+     */
+    private int distanceTo(Location target)
+    {
+        Location current = getLocation();
+        if(current == null || target == null)
+            return -1;
+        setLocation(target);
+        return (int) Math.round(current.distanceTo(target));
+    }
+
+    /**
+     * A known distance takes as long as it takes, so a random delay becomes the full distance.
+     *
+     * @param mode The configured delay mode
+     * @return The delay mode to drive a known distance with
+     */
+    private static DelayMode exactly(DelayMode mode)
+    {
+        return mode == DelayMode.RANDOM ? DelayMode.FIXED : mode;
+    }
+
+    /**
+     * Gets the most the current trip may take. Random travel times keep the passenger's
+     * getTravelTime(), any other mode uses the passenger's full maxSleep. Without a passenger
+     * the driver's own maxSleep is used, as it is for a pick up.
+     *
+     * @param mode How the trip time is being picked
+     * @return The longest the trip may take, in milliseconds
+     */
+    private int travelTime(DelayMode mode)
+    {
+        if(myPassenger == null)
+            return maxSleep;
+        return mode == DelayMode.RANDOM ? myPassenger.getTravelTime() : myPassenger.maxSleep;
     }
 
 
@@ -0,0 +1,20 @@
+package nuber.students;
+
+/**
+ * How the dispatch decides which idle driver a booking gets.
+ *
+ * @author strtk001
+ *
+ */
+public enum DriverMatching
+{
+    /**
+     * The driver that has been idle the longest, wherever they are
+     */
+    FIFO,
+    /**
+     * The idle driver nearest to the passenger, found through a GridDriverIndex.
+     * Drivers and passengers without a location are matched as if by FIFO.
+     */
+    NEAREST
+}
@@ -0,0 +1,344 @@
+package nuber.students;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * The pool of idle drivers that bookings draw from.
+ *
+ * Idle drivers are kept in a lock-free IdleDriverIndex, which decides which idle driver a booking
+ * gets, and waiting bookings in a lock-free queue, rather than a queue guarded by a monitor. A
+ * booking that finds no idle driver leaves a future in the waiting queue, and a driver added while
+ * bookings are waiting completes exactly one of those futures, so a freed driver no longer wakes
+ * every waiting booking in every region.
+ *
+ * A driver freed while bookings are waiting goes to the longest waiting booking, wherever it is,
+ * so bookings can't be starved by ones that happen to be closer to where drivers finish.
+ *
+ * Because waiting is done through a future, a booking can either block on it or chain the rest
+ * of its trip onto it without holding a thread.
+ *
+ * The pool has no limit on how many drivers can be idle, so adding a driver never blocks. A driver
+ * that goes off shift or on a break while idle leaves in constant time, by changing their state, and
+ * their entry is dropped the next time a booking reaches it rather than being searched for.
+ *
+ * @author strtk001
+ *
+ */
+public class DriverPool
+{
+    /**
+     * The number of drivers idle in the pool, not counting stale entries for drivers who have left
+     */
+    private final AtomicInteger idleCount = new AtomicInteger();
+    /**
+     * The idle drivers, and stale entries for drivers who left while idle
+     */
+    private final IdleDriverIndex idleDrivers;
+    /**
+     * The bookings waiting for a driver. Futures that were completed some other way are skipped.
+     */
+    private final ConcurrentLinkedQueue<CompletableFuture<Driver>> waitingBookings = new ConcurrentLinkedQueue<CompletableFuture<Driver>>();
+    /**
+     * The number of futures in waitingBookings that have not been completed yet
+     */
+    private final AtomicInteger waitingCount = new AtomicInteger();
+
+    /**
+     * Creates an empty driver pool that hands out drivers in the order they became idle
+     */
+    public DriverPool()
+    {
+        this(new FifoDriverIndex());
+    }
+
+    /**
+     * Creates an empty driver pool
+     *
+     * @param idleDrivers Where the idle drivers are kept, which decides which driver a booking gets
+     */
+    public DriverPool(IdleDriverIndex idleDrivers)
+    {
+        this.idleDrivers = idleDrivers;
+    }
+
+    /**
+     * Adds a driver starting their shift or freed from a booking to the pool, handing it straight to a
+     * waiting booking if there is one. A driver who went off shift while idle and still has an entry in
+     * a pool is idle there again instead, which may be another pool.
+     *
+     * @param driver The driver to add
+     * @return true if the driver was added, false if they are already idle, on a break or their shift has ended
+     */
+    public boolean addDriver(Driver driver)
+    {
+        switch (driver.becomeAvailable(DriverState.OFF_SHIFT))
+        {
+            case HAND_OVER:
+                handOver(driver);
+                return true;
+            case RELISTED:
+                DriverPool pool = driver.getListedIn();
+                if (pool != null)
+                    pool.relisted();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Called once a driver has taken up their stale entry in this pool again, which bookings waiting
+     * since they left can't have seen
+     */
+    void relisted()
+    {
+        if (waitingBookings.isEmpty())
+            return;
+        Driver driver = claimIdleDriver(null);
+        if (driver != null)
+            handOver(driver);
+    }
+
+    /**
+     * Takes a driver out of the pool, waiting until one is available.
+     *
+     * The wait is not cut short by an interrupt, as bookings rely on always getting a driver back.
+     * The thread's interrupt status is restored once a driver has been taken.
+     *
+     * @return The driver that has been removed from the pool
+     */
+    public Driver getDriver()
+    {
+        return getDriver(null);
+    }
+
+    /**
+     * Takes the driver nearest a location out of the pool, waiting until one is available.
+     * Otherwise the same as getDriver().
+     *
+     * @param near Where the driver is needed, or null if it doesn't matter
+     * @return The driver that has been removed from the pool
+     */
+    public Driver getDriver(Location near)
+    {
+        return await(acquireDriver(near));
+    }
+
+    /**
+     * Takes the driver nearest a location out of the pool, waiting up to a time limit for one to be available.
+     *
+     * Unlike getDriver(), the wait is cut short by an interrupt.
+     *
+     * @param near Where the driver is needed, or null if it doesn't matter
+     * @param timeout How long to wait for a driver
+     * @param unit The unit of the timeout
+     * @return The driver that has been removed from the pool, or null if none was available in time
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public Driver getDriver(Location near, long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return await(acquireDriver(near), timeout, unit, this::addDriver);
+    }
+
+    /**
+     * Waits up to a time limit for a booking's driver to be handed over. If the wait is given up on, the
+     * booking stops waiting, so the driver goes to someone else.
+     *
+     * A driver that is handed over just as time runs out is kept, and one handed over just as the thread
+     * is interrupted is given back.
+     *
+     * @param driver The future the driver will be handed over through
+     * @param timeout How long to wait for the driver
+     * @param unit The unit of the timeout
+     * @param giveBack Where to give back a driver that arrived as the thread was interrupted
+     * @return The driver, or null if it didn't arrive in time
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    static Driver await(CompletableFuture<Driver> driver, long timeout, TimeUnit unit, Consumer<Driver> giveBack)
+            throws InterruptedException
+    {
+        try {
+            return driver.get(timeout, unit);
+        } catch (TimeoutException e) {
+            return driver.cancel(false) ? null : driver.join();
+        } catch (InterruptedException e) {
+            if (!driver.cancel(false))
+                giveBack.accept(driver.join());
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Waits for a booking's driver to be handed over. The wait is not cut short by an interrupt,
+     * and the thread's interrupt status is restored once the driver has arrived.
+     *
+     * @param driver The future the driver will be handed over through
+     * @return The driver
+     * @throws java.util.concurrent.CancellationException if the booking stopped waiting because it was cancelled
+     */
+    static Driver await(CompletableFuture<Driver> driver)
+    {
+        boolean interrupted = false;
+        try {
+            while (true)
+            {
+                try {
+                    return driver.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Asks for a driver without waiting for one.
+     *
+     * The returned future is already complete if a driver was idle, and is otherwise completed
+     * by whichever thread next adds a driver to the pool.
+     *
+     * @return A future that completes with the driver removed from the pool
+     */
+    public CompletableFuture<Driver> acquireDriver()
+    {
+        return acquireDriver(null);
+    }
+
+    /**
+     * Asks for the driver nearest a location without waiting for one. If no driver is idle, the
+     * booking gets the next driver to be added, wherever it is.
+     *
+     * @param near Where the driver is needed, or null if it doesn't matter
+     * @return A future that completes with the driver removed from the pool
+     */
+    public CompletableFuture<Driver> acquireDriver(Location near)
+    {
+        Driver driver = pollIdleDriver(near);
+        if (driver != null)
+            return CompletableFuture.completedFuture(driver);
+
+        CompletableFuture<Driver> waiting = new CompletableFuture<Driver>();
+        waitingCount.incrementAndGet();
+        //drivers only ever complete a booking normally, so anything else means it stopped waiting, e.g. by being cancelled
+        waiting.whenComplete((d, e) -> {
+            if (e != null)
+                waitingCount.decrementAndGet();
+        });
+        waitingBookings.offer(waiting);
+
+        //a driver may have been added between the poll above and joining the queue
+        driver = claimIdleDriver(near);
+        if (driver != null)
+        {
+            if (complete(waiting, driver))
+                return waiting;
+            handOver(driver);
+        }
+        return waiting;
+    }
+
+    /**
+     * Takes an idle driver out of the pool if there is one, without waiting or joining the bookings
+     * waiting for a driver. Used to steal drivers for bookings waiting in another pool.
+     *
+     * @param near Where the driver is needed, or null if it doesn't matter
+     * @return The driver that has been removed from the pool, or null if none was idle
+     */
+    public Driver pollIdleDriver(Location near)
+    {
+        return claimIdleDriver(near);
+    }
+
+    /**
+     * Takes an idle driver out of the index, dropping any stale entries for drivers who left on the way
+     *
+     * @param near Where the driver is needed, or null if it doesn't matter
+     * @return The driver, who is now busy, or null if none was idle
+     */
+    private Driver claimIdleDriver(Location near)
+    {
+        while (true)
+        {
+            Driver driver = idleDrivers.poll(near);
+            if (driver == null || driver.claim())
+                return driver;
+        }
+    }
+
+    /**
+     * Gives a busy driver to the longest waiting booking, or leaves it idle if no booking is waiting.
+     *
+     * @param driver The driver to hand over
+     */
+    private void handOver(Driver driver)
+    {
+        while (true)
+        {
+            CompletableFuture<Driver> waiting = waitingBookings.poll();
+            if (waiting != null)
+            {
+                if (complete(waiting, driver))
+                    return;
+                continue;
+            }
+
+            driver.listIdle(this, idleCount);
+            idleDrivers.add(driver);
+
+            //a booking may have started waiting after the poll above, and missed this driver
+            if (waitingBookings.isEmpty())
+                return;
+            driver = claimIdleDriver(null);
+            if (driver == null)
+                return;
+        }
+    }
+
+    /**
+     * Completes a waiting booking's future with a driver, if nothing else has completed it first
+     *
+     * @return true if the booking got the driver
+     */
+    private boolean complete(CompletableFuture<Driver> waiting, Driver driver)
+    {
+        if (!waiting.complete(driver))
+            return false;
+        waitingCount.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Gets the number of drivers currently sitting in the pool.
+     * A driver that is in the middle of being handed over may still be counted.
+     *
+     * @return The number of idle drivers
+     */
+    public int getIdleDriverCount()
+    {
+        return Math.max(0, idleCount.get());
+    }
+
+    /**
+     * Gets the number of bookings currently waiting for a driver
+     *
+     * @return The number of waiting bookings
+     */
+    public int getWaitingBookingCount()
+    {
+        return waitingCount.get();
+    }
+
+}
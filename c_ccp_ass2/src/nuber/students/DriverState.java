@@ -0,0 +1,27 @@
+package nuber.students;
+
+/**
+ * Where a driver is in their shift.
+ *
+ * @author strtk001
+ *
+ */
+public enum DriverState
+{
+    /**
+     * Not working. Every driver starts off shift until they are added to a dispatch.
+     */
+    OFF_SHIFT,
+    /**
+     * On shift and waiting in an idle pool for a booking
+     */
+    IDLE,
+    /**
+     * On shift and taken out of the idle pools, to drive a booking or to be handed to one
+     */
+    BUSY,
+    /**
+     * On shift but taking a break, so not given bookings until it is over
+     */
+    ON_BREAK
+}
@@ -0,0 +1,228 @@
+package nuber.students;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes booking events to an output stream without making the booking threads wait for it.
+ *
+ * Booking threads claim a slot in a fixed size ring buffer with a single compare-and-set and
+ * store the raw parts of the event in it. Nothing is formatted and nothing is allocated on the
+ * booking thread. A single writer thread formats the events in batches and prints each batch
+ * with one call, so booking threads no longer queue up on the stream's lock.
+ *
+ * If the writer falls so far behind that the buffer is full, new events are dropped and counted
+ * rather than blocking the booking. The writer thread stops after a second without events, so it
+ * doesn't keep the JVM alive, and is started again by the next event.
+ *
+ * @author strtk001
+ *
+ */
+public class EventLogger
+{
+    /**
+     * How long the writer waits between checks for new events, in nanoseconds
+     */
+    private static final long POLL_NANOS = 1_000_000;
+    /**
+     * How long the writer keeps running without any events, in nanoseconds
+     */
+    private static final long IDLE_NANOS = 1_000_000_000;
+
+    /**
+     * Where formatted events are written
+     */
+    private final PrintStream out;
+    /**
+     * Number of slots in the ring buffer, always a power of two
+     */
+    private final int capacity;
+    /**
+     * capacity - 1, for turning a sequence number into a slot index
+     */
+    private final int mask;
+    /**
+     * For each slot, the sequence number of the event in it plus one, once the event has been stored
+     */
+    private final AtomicLongArray published;
+    /**
+     * The parts of the event in each slot
+     */
+    private final int[] bookingIds;
+    private final String[] driverNames;
+    private final String[] passengerNames;
+    private final String[] messages;
+    /**
+     * The sequence number the next event will be given
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * The sequence number of the next event to be written. Only changed by the writer.
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * Number of events that were dropped because the buffer was full
+     */
+    private final LongAdder dropped = new LongAdder();
+    /**
+     * Set while a writer thread is running
+     */
+    private final AtomicBoolean writerRunning = new AtomicBoolean();
+
+    /**
+     * Creates a logger writing to the given stream
+     *
+     * @param out Where to write events
+     * @param capacity The number of events the buffer can hold, rounded up to a power of two
+     */
+    public EventLogger(PrintStream out, int capacity)
+    {
+        this.out = out;
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = this.capacity - 1;
+        published = new AtomicLongArray(this.capacity);
+        bookingIds = new int[this.capacity];
+        driverNames = new String[this.capacity];
+        passengerNames = new String[this.capacity];
+        messages = new String[this.capacity];
+    }
+
+    /**
+     * Adds an event to the buffer, to be written out as
+     * 	    bookingId:driverName:passengerName: message
+     * which is the same as the booking's toString() followed by the message.
+     *
+     * Never blocks. If the buffer is full the event is dropped.
+     *
+     * @param bookingId The booking's ID
+     * @param driver The booking's driver, which may be null
+     * @param passenger The booking's passenger, which may be null
+     * @param message The message to show
+     * @return false if the event was dropped
+     */
+    public boolean log(int bookingId, Driver driver, Passenger passenger, String message)
+    {
+        long sequence;
+        do
+        {
+            sequence = tail.get();
+            if (sequence - head.get() >= capacity)
+            {
+                dropped.increment();
+                return false;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & mask;
+        bookingIds[slot] = bookingId;
+        driverNames[slot] = driver == null ? null : driver.name;
+        passengerNames[slot] = passenger == null ? null : passenger.name;
+        messages[slot] = message;
+        //publishing the sequence number makes the fields above visible to the writer
+        published.set(slot, sequence + 1);
+
+        if (!writerRunning.get())
+            startWriter();
+        return true;
+    }
+
+    /**
+     * Waits until every event logged before this call has been written
+     */
+    public void flush()
+    {
+        long target = tail.get();
+        while (head.get() < target)
+        {
+            if (!writerRunning.get())
+                startWriter();
+            LockSupport.parkNanos(POLL_NANOS);
+        }
+    }
+
+    /**
+     * @return The number of events dropped because the buffer was full
+     */
+    public long getDroppedEvents()
+    {
+        return dropped.sum();
+    }
+
+    /**
+     * Starts a writer thread, unless one is already running
+     */
+    private void startWriter()
+    {
+        if (!writerRunning.compareAndSet(false, true))
+            return;
+        Thread writer = new Thread(this::runWriter, "nuber-event-writer");
+        writer.setDaemon(false);
+        writer.start();
+    }
+
+    /**
+     * Body of the writer thread. Writes batches until no events have arrived for IDLE_NANOS.
+     */
+    private void runWriter()
+    {
+        StringBuilder batch = new StringBuilder();
+        long idleSince = System.nanoTime();
+        while (true)
+        {
+            if (writeBatch(batch))
+            {
+                idleSince = System.nanoTime();
+                continue;
+            }
+            if (System.nanoTime() - idleSince < IDLE_NANOS)
+            {
+                LockSupport.parkNanos(POLL_NANOS);
+                continue;
+            }
+
+            writerRunning.set(false);
+            //an event may have been logged after the last batch, but seen the writer as still running
+            if (head.get() == tail.get() || !writerRunning.compareAndSet(false, true))
+                return;
+        }
+    }
+
+    /**
+     * Formats every event that is ready and prints them in one go
+     *
+     * @param batch A builder to reuse for the formatted events
+     * @return false if there were no events ready
+     */
+    private boolean writeBatch(StringBuilder batch)
+    {
+        long sequence = head.get();
+        long end = sequence;
+        batch.setLength(0);
+        while (end - sequence < capacity)
+        {
+            int slot = (int) end & mask;
+            if (published.get(slot) != end + 1)
+                break;
+            batch.append(bookingIds[slot]).append(':')
+                    .append(driverNames[slot]).append(':')
+                    .append(passengerNames[slot]).append(": ")
+                    .append(messages[slot]).append(System.lineSeparator());
+            driverNames[slot] = null;
+            passengerNames[slot] = null;
+            messages[slot] = null;
+            end++;
+        }
+        if (end == sequence)
+            return false;
+
+        out.print(batch);
+        out.flush();
+        head.set(end);
+        return true;
+    }
+
+}
@@ -0,0 +1,26 @@
+package nuber.students;
+
+/**
+ * How a region runs its bookings.
+ *
+ * @author strtk001
+ *
+ */
+public enum ExecutionMode
+{
+    /**
+     * Bookings run on a pool of platform threads owned by the region
+     */
+    PLATFORM,
+    /**
+     * Every booking gets its own virtual thread, with a semaphore limiting how many are active.
+     * Suited to regions with a very large number of concurrent bookings, as a booking spends
+     * nearly all of its time blocked waiting for a driver or sleeping.
+     */
+    VIRTUAL,
+    /**
+     * Bookings run as chains of CompletableFuture stages, and no thread is held while a booking
+     * waits for a driver or a trip is underway
+     */
+    ASYNC
+}
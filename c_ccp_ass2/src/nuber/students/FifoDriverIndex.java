@@ -0,0 +1,29 @@
+package nuber.students;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hands out idle drivers in the order they became idle, wherever they are.
+ *
+ * @author strtk001
+ *
+ */
+public class FifoDriverIndex implements IdleDriverIndex
+{
+    /**
+     * The idle drivers, longest idle first
+     */
+    private final ConcurrentLinkedQueue<Driver> idleDrivers = new ConcurrentLinkedQueue<Driver>();
+
+    @Override
+    public void add(Driver driver)
+    {
+        idleDrivers.offer(driver);
+    }
+
+    @Override
+    public Driver poll(Location near)
+    {
+        return idleDrivers.poll();
+    }
+}
@@ -0,0 +1,176 @@
+package nuber.students;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out the idle driver nearest to where it is needed.
+ *
+ * The city is divided into square cells, each holding a lock-free queue of the idle drivers in it.
+ * A search starts at the cell the booking is in and works outwards a ring of cells at a time, and
+ * stops once no cell in the next ring can be closer than the best driver found so far. With a cell
+ * size close to the typical distance between idle drivers, a match only looks at the few cells around
+ * the passenger however many drivers are idle.
+ *
+ * Two bookings can pick the same driver, in which case only one manages to remove it from its cell
+ * and the other searches again.
+ *
+ * Drivers without a location are kept separately, and are only handed out once there are no
+ * drivers with a location idle.
+ *
+ * @author strtk001
+ *
+ */
+public class GridDriverIndex implements IdleDriverIndex
+{
+    /**
+     * The width and height of each cell
+     */
+    private final double cellSize;
+    /**
+     * The idle drivers in each cell, keyed by cellKey(). Cells are never removed once created.
+     */
+    private final ConcurrentHashMap<Long, ConcurrentLinkedQueue<Driver>> cells = new ConcurrentHashMap<Long, ConcurrentLinkedQueue<Driver>>();
+    /**
+     * Idle drivers that have no location
+     */
+    private final ConcurrentLinkedQueue<Driver> unlocated = new ConcurrentLinkedQueue<Driver>();
+    /**
+     * The number of idle drivers in cells
+     */
+    private final AtomicInteger located = new AtomicInteger();
+    /**
+     * The range of cells that have ever held a driver, so searches know when to stop
+     */
+    private final AtomicInteger minCellX = new AtomicInteger(Integer.MAX_VALUE);
+    private final AtomicInteger maxCellX = new AtomicInteger(Integer.MIN_VALUE);
+    private final AtomicInteger minCellY = new AtomicInteger(Integer.MAX_VALUE);
+    private final AtomicInteger maxCellY = new AtomicInteger(Integer.MIN_VALUE);
+
+    /**
+     * @param cellSize The width and height of each cell, ideally about the distance between neighbouring idle drivers
+     */
+    public GridDriverIndex(double cellSize)
+    {
+        if (cellSize <= 0)
+            throw new IllegalArgumentException("cellSize must be positive");
+        this.cellSize = cellSize;
+    }
+
+    @Override
+    public void add(Driver driver)
+    {
+        Location location = driver.getLocation();
+        if (location == null)
+        {
+            unlocated.offer(driver);
+            return;
+        }
+        int cellX = cell(location.x);
+        int cellY = cell(location.y);
+        minCellX.accumulateAndGet(cellX, Math::min);
+        maxCellX.accumulateAndGet(cellX, Math::max);
+        minCellY.accumulateAndGet(cellY, Math::min);
+        maxCellY.accumulateAndGet(cellY, Math::max);
+        cells.computeIfAbsent(cellKey(cellX, cellY), key -> new ConcurrentLinkedQueue<Driver>()).offer(driver);
+        located.incrementAndGet();
+    }
+
+    @Override
+    public Driver poll(Location near)
+    {
+        if (near == null)
+            return pollAny();
+        while (located.get() > 0)
+        {
+            int centreX = cell(near.x);
+            int centreY = cell(near.y);
+            int lastRing = Math.max(
+                    Math.max(centreX - minCellX.get(), maxCellX.get() - centreX),
+                    Math.max(centreY - minCellY.get(), maxCellY.get() - centreY));
+
+            Driver best = null;
+            ConcurrentLinkedQueue<Driver> bestCell = null;
+            double bestDistance = Double.MAX_VALUE;
+            for (int ring = 0; ring <= lastRing; ring++)
+            {
+                //every cell in this ring is at least ring - 1 cells away from the booking
+                if (best != null && (ring - 1) * cellSize >= bestDistance)
+                    break;
+                for (int x = centreX - ring; x <= centreX + ring; x++)
+                {
+                    //the top and bottom rows are full, the columns in between only have their two ends in the ring
+                    int step = (x == centreX - ring || x == centreX + ring) ? 1 : Math.max(1, 2 * ring);
+                    for (int y = centreY - ring; y <= centreY + ring; y += step)
+                    {
+                        ConcurrentLinkedQueue<Driver> cell = cells.get(cellKey(x, y));
+                        if (cell == null)
+                            continue;
+                        for (Driver driver : cell)
+                        {
+                            double distance = near.distanceTo(driver.getLocation());
+                            if (distance < bestDistance)
+                            {
+                                best = driver;
+                                bestCell = cell;
+                                bestDistance = distance;
+                            }
+                        }
+                    }
+                }
+            }
+            if (best == null)
+                break;
+            if (bestCell.remove(best))
+            {
+                located.decrementAndGet();
+                return best;
+            }
+            //another booking took this driver first, look again
+        }
+        return unlocated.poll();
+    }
+
+    /**
+     * Removes any idle driver, wherever it is
+     *
+     * @return The removed driver, or null if no driver was idle
+     */
+    private Driver pollAny()
+    {
+        Driver driver = unlocated.poll();
+        if (driver != null)
+            return driver;
+        if (located.get() == 0)
+            return null;
+        for (ConcurrentLinkedQueue<Driver> cell : cells.values())
+        {
+            driver = cell.poll();
+            if (driver != null)
+            {
+                located.decrementAndGet();
+                return driver;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The index of the cell a coordinate falls in
+     */
+    private int cell(double coordinate)
+    {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    /**
+     * @return A single key for a cell's x and y indexes
+     */
+    private static long cellKey(int cellX, int cellY)
+    {
+        //Long.hashCode() of the packed indexes would just be cellX ^ cellY, which piles neighbouring cells
+        //into the same few buckets. Multiplying by an odd constant mixes the bits and keeps every key unique.
+        return (((long) cellX << 32) | (cellY & 0xffffffffL)) * 0x9E3779B97F4A7C15L;
+    }
+}
@@ -0,0 +1,28 @@
+package nuber.students;
+
+/**
+ * How a DriverPool keeps its idle drivers, and decides which one a booking gets.
+ *
+ * Implementations must be safe to add to and poll from any number of threads at once, and a
+ * driver that has been added must only ever be returned by one poll.
+ *
+ * @author strtk001
+ *
+ */
+public interface IdleDriverIndex
+{
+    /**
+     * Adds an idle driver
+     *
+     * @param driver The driver to add
+     */
+    void add(Driver driver);
+
+    /**
+     * Removes an idle driver, preferring one near the given location
+     *
+     * @param near Where the driver is needed, or null if it doesn't matter
+     * @return The removed driver, or null if no driver was idle
+     */
+    Driver poll(Location near);
+}
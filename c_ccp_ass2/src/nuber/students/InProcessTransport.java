@@ -0,0 +1,56 @@
+package nuber.students;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connects dispatch nodes running in the same JVM by calling them directly.
+ *
+ * Requests are handled on the sending thread, and bookings and drivers are handed over as they are,
+ * so this measures what sharding itself costs, without any serialisation or network in the way.
+ *
+ * @author strtk001
+ *
+ */
+public class InProcessTransport implements NodeTransport
+{
+    /**
+     * The connected nodes, keyed by their IDs
+     */
+    private final Map<String, DispatchNode> nodes = new ConcurrentHashMap<String, DispatchNode>();
+
+    @Override
+    public void connect(DispatchNode node)
+    {
+        nodes.put(node.getNodeId(), node);
+    }
+
+    @Override
+    public void disconnect(String nodeId)
+    {
+        nodes.remove(nodeId);
+    }
+
+    @Override
+    public CompletableFuture<BookingResult> bookPassenger(String nodeId, String region, Passenger passenger)
+    {
+        DispatchNode node = nodes.get(nodeId);
+        if (node == null)
+            return CompletableFuture.failedFuture(new BookingRejectedException(region, null, "Node " + nodeId + " isn't connected"));
+        return node.acceptBooking(region, passenger);
+    }
+
+    @Override
+    public CompletableFuture<Driver> borrowDriver(String nodeId, Location near)
+    {
+        DispatchNode node = nodes.get(nodeId);
+        return CompletableFuture.completedFuture(node == null ? null : node.lendDriver(near));
+    }
+
+    @Override
+    public void close()
+    {
+        nodes.clear();
+    }
+}
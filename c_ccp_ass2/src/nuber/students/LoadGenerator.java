@@ -0,0 +1,352 @@
+package nuber.students;
+
+import nuber.strtk001_utilities.ArrivalProcess;
+import nuber.strtk001_utilities.Clock;
+import nuber.strtk001_utilities.LatencyHistogram;
+import nuber.strtk001_utilities.SimulatedClock;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.random.RandomGenerator;
+
+/**
+ * Makes bookings with a dispatch as they arrive, either from an arrival process for a set time, or by
+ * replaying a recorded trace, and reports how the dispatch kept up.
+ *
+ * The load is open-loop: each booking is made when it is due, whether or not earlier bookings have
+ * finished, so a dispatch that can't keep up shows it in latency and in how far behind the generator
+ * falls, rather than by quietly slowing the load down. Running the same configuration at rising rates
+ * shows where the achieved rate stops following the offered rate, which is its saturation point.
+ *
+ * On the wall clock the bookings are made by a generator thread that parks until each one is due. On a
+ * simulated clock they are made on the clock's event thread, each batch scheduling the next with delay(),
+ * so the load runs in simulated time like everything else.
+ *
+ * @author strtk001
+ *
+ */
+public class LoadGenerator
+{
+    private final NuberDispatch dispatch;
+    private final Clock clock;
+    /**
+     * Where generated bookings arrive from, or null if replaying a trace
+     */
+    private final ArrivalProcess arrivals;
+    /**
+     * How long generated bookings keep arriving for, in nanoseconds
+     */
+    private final long durationNanos;
+    /**
+     * The trace being replayed, or null if generating bookings
+     */
+    private final BookingTrace trace;
+    /**
+     * The regions generated bookings are spread over
+     */
+    private final String[] regionNames;
+    /**
+     * The most a passenger's trips may take, in milliseconds
+     */
+    private final int maxSleep;
+    private RandomGenerator random = new SplittableRandom();
+
+    /**
+     * Only touched by whichever thread is making bookings
+     */
+    private long startNanos;
+    /**
+     * When the next booking is due, in nanoseconds since the load started, or Long.MAX_VALUE once there are no more
+     */
+    private long nextArrivalNanos;
+    private long offered;
+    private long lastArrivalNanos;
+    private long maxLagNanos;
+    /**
+     * Why the trace couldn't be read, if it couldn't
+     */
+    private RuntimeException traceError;
+
+    /**
+     * One for each booking that hasn't finished, plus one until every booking has been made
+     */
+    private final AtomicLong outstanding = new AtomicLong(1);
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder endedEarly = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    /**
+     * The clock time the last booking finished at
+     */
+    private final AtomicLong lastFinishNanos = new AtomicLong();
+    private final CompletableFuture<LoadReport> report = new CompletableFuture<LoadReport>();
+
+    /**
+     * Creates a generator that makes bookings as they arrive from an arrival process, spread evenly over
+     * the dispatch's regions
+     *
+     * @param dispatch The dispatch to book with
+     * @param arrivals When bookings arrive
+     * @param durationMillis How long bookings keep arriving for, in milliseconds
+     * @param maxSleep The most a passenger's trips may take, in milliseconds
+     */
+    public LoadGenerator(NuberDispatch dispatch, ArrivalProcess arrivals, long durationMillis, int maxSleep)
+    {
+        this.dispatch = dispatch;
+        this.arrivals = arrivals;
+        this.durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        this.trace = null;
+        this.maxSleep = maxSleep;
+        clock = dispatch.getClock();
+        regionNames = dispatch.getRegionNames().toArray(new String[0]);
+    }
+
+    /**
+     * Creates a generator that replays the bookings in a trace, each in the region it was recorded in
+     *
+     * @param dispatch The dispatch to book with
+     * @param trace The trace, which the generator reads to the end but leaves for the caller to close
+     * @param maxSleep The most a passenger's trips may take, in milliseconds
+     */
+    public LoadGenerator(NuberDispatch dispatch, BookingTrace trace, int maxSleep)
+    {
+        this.dispatch = dispatch;
+        this.arrivals = null;
+        this.durationNanos = 0;
+        this.trace = trace;
+        this.maxSleep = maxSleep;
+        clock = dispatch.getClock();
+        regionNames = new String[0];
+    }
+
+    /**
+     * @param seed Seeds the arrival times, regions and locations of generated bookings, so a run can be repeated
+     * @return this generator
+     */
+    public LoadGenerator setSeed(long seed)
+    {
+        random = new SplittableRandom(seed);
+        return this;
+    }
+
+    /**
+     * Starts making bookings. On a simulated clock the first are made before this returns, with the clock
+     * held so time doesn't move on while they are.
+     *
+     * @return A future that completes with the report once every booking has been made and has finished
+     */
+    public CompletableFuture<LoadReport> start()
+    {
+        startNanos = clock.nanoTime();
+        lastFinishNanos.set(startNanos);
+        advance();
+        if(clock instanceof SimulatedClock)
+        {
+            SimulatedClock simulatedClock = (SimulatedClock) clock;
+            simulatedClock.hold();
+            try
+            {
+                step();
+            }finally
+            {
+                simulatedClock.release();
+            }
+        }
+        else
+        {
+            Thread generator = new Thread(this::runOnWallClock, "nuber-load-generator");
+            generator.start();
+        }
+        return report;
+    }
+
+    /**
+     * Makes every booking and waits for them all to finish
+     *
+     * @return How the dispatch kept up
+     */
+    public LoadReport run()
+    {
+        return start().join();
+    }
+
+    /**
+     * Body of the generator thread on the wall clock
+     */
+    private void runOnWallClock()
+    {
+        while(nextArrivalNanos != Long.MAX_VALUE)
+        {
+            long now = clock.nanoTime() - startNanos;
+            if(nextArrivalNanos > now)
+            {
+                LockSupport.parkNanos(nextArrivalNanos - now);
+                continue;
+            }
+            book(now);
+            advance();
+        }
+        arrivalsFinished();
+    }
+
+    /**
+     * Makes the bookings that are due on the simulated clock, and schedules itself for the next one
+     */
+    private void step()
+    {
+        long now = clock.nanoTime() - startNanos;
+        while(nextArrivalNanos <= now)
+        {
+            book(now);
+            advance();
+        }
+        if(nextArrivalNanos == Long.MAX_VALUE)
+        {
+            arrivalsFinished();
+            return;
+        }
+        //delays are in whole milliseconds, so bookings due within the same millisecond are made together
+        long wait = (nextArrivalNanos - now + 999_999) / 1_000_000;
+        clock.delay(wait).thenRun(this::step);
+    }
+
+    /**
+     * Works out when the next booking is due
+     */
+    private void advance()
+    {
+        if(arrivals != null)
+        {
+            long next = arrivals.nextArrivalNanos(offered == 0 ? 0 : nextArrivalNanos, random);
+            nextArrivalNanos = next > durationNanos ? Long.MAX_VALUE : next;
+            return;
+        }
+        try
+        {
+            nextArrivalNanos = trace.next() ? trace.getOffsetNanos() : Long.MAX_VALUE;
+        }catch (IOException e)
+        {
+            traceError = new UncheckedIOException(e);
+            nextArrivalNanos = Long.MAX_VALUE;
+        }catch (IllegalArgumentException e)
+        {
+            traceError = e;
+            nextArrivalNanos = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Makes the booking that is due
+     *
+     * @param now The time, in nanoseconds since the load started
+     */
+    private void book(long now)
+    {
+        long due = nextArrivalNanos;
+        offered++;
+        lastArrivalNanos = due;
+        maxLagNanos = Math.max(maxLagNanos, now - due);
+
+        String regionName;
+        Passenger passenger;
+        if(trace != null)
+        {
+            regionName = trace.getRegion();
+            passenger = trace.createPassenger(maxSleep);
+        }
+        else
+        {
+            regionName = regionNames[random.nextInt(regionNames.length)];
+            passenger = new Passenger("P-" + offered, maxSleep);
+            //when matching by location, spread everyone over a city a trip of up to maxSleep wide
+            if(dispatch.getConfig().getDriverMatching() == DriverMatching.NEAREST)
+            {
+                passenger.setLocation(new Location(random.nextDouble() * maxSleep, random.nextDouble() * maxSleep));
+                passenger.setDestination(new Location(random.nextDouble() * maxSleep, random.nextDouble() * maxSleep));
+            }
+        }
+
+        NuberRegion region = dispatch.getRegion(regionName);
+        CompletableFuture<BookingResult> booking = null;
+        try
+        {
+            if(region != null)
+                booking = region.bookPassenger(passenger);
+        }catch (BookingRejectedException e)
+        {
+            //counted below
+        }
+        if(booking == null)
+        {
+            rejected.increment();
+            return;
+        }
+        outstanding.incrementAndGet();
+        booking.whenComplete((result, failure) -> finished(due, result, failure));
+    }
+
+    /**
+     * Counts a booking once it has finished
+     *
+     * @param due When the booking was due, in nanoseconds since the load started
+     * @param result The booking's result, if it didn't fail
+     * @param failure Why the booking failed, if it did
+     */
+    private void finished(long due, BookingResult result, Throwable failure)
+    {
+        long now = clock.nanoTime();
+        if(failure != null)
+            failed.increment();
+        else if(result.outcome == BookingOutcome.COMPLETED)
+        {
+            completed.increment();
+            latency.record(now - startNanos - due);
+        }
+        else
+            endedEarly.increment();
+        lastFinishNanos.accumulateAndGet(now, Math::max);
+        if(outstanding.decrementAndGet() == 0)
+            complete();
+    }
+
+    /**
+     * Called once every booking has been made
+     */
+    private void arrivalsFinished()
+    {
+        if(outstanding.decrementAndGet() == 0)
+            complete();
+    }
+
+    /**
+     * Completes the report once every booking has been made and has finished
+     */
+    private void complete()
+    {
+        if(traceError != null)
+        {
+            report.completeExceptionally(traceError);
+            return;
+        }
+        long window = arrivals != null ? durationNanos : lastArrivalNanos;
+        long elapsed = lastFinishNanos.get() - startNanos;
+        report.complete(new LoadReport(offered,
+                window > 0 ? offered * 1e9 / window : 0,
+                completed.sum(),
+                elapsed > 0 ? completed.sum() * 1e9 / elapsed : 0,
+                rejected.sum(),
+                endedEarly.sum(),
+                failed.sum(),
+                latency,
+                maxLagNanos / 1e6,
+                TimeUnit.NANOSECONDS.toMillis(elapsed)));
+    }
+
+}
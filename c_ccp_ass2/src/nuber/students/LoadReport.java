@@ -0,0 +1,81 @@
+package nuber.students;
+
+import nuber.strtk001_utilities.LatencyHistogram;
+
+/**
+ * How a dispatch kept up with the load a LoadGenerator offered it.
+ *
+ * Latency is measured from when each booking was due to arrive, not from when the generator got
+ * round to making it, so a generator that fell behind doesn't hide how long passengers waited.
+ *
+ * @author strtk001
+ *
+ */
+public class LoadReport
+{
+    /**
+     * The number of bookings the generator tried to make
+     */
+    public final long offered;
+    /**
+     * The average rate bookings arrived at, per second over the time they were arriving
+     */
+    public final double offeredPerSecond;
+    /**
+     * The number of bookings that got their passenger to their destination
+     */
+    public final long completed;
+    /**
+     * The rate bookings completed at, per second from the start of the load until the last booking finished
+     */
+    public final double achievedPerSecond;
+    /**
+     * Bookings refused when they were made, because their region was full, shut down or didn't exist
+     */
+    public final long rejected;
+    /**
+     * Bookings that were accepted but ended some other way, such as missing their deadline or timing out
+     */
+    public final long endedEarly;
+    /**
+     * Bookings that failed with an exception
+     */
+    public final long failed;
+    /**
+     * The time from when each completed booking was due to arrive until it finished
+     */
+    public final LatencyHistogram latency;
+    /**
+     * The furthest behind schedule the generator made a booking, in milliseconds
+     */
+    public final double maxLagMillis;
+    /**
+     * How long the load took, from its start until the last booking finished, in milliseconds
+     */
+    public final long elapsedMillis;
+
+    LoadReport(long offered, double offeredPerSecond, long completed, double achievedPerSecond, long rejected,
+               long endedEarly, long failed, LatencyHistogram latency, double maxLagMillis, long elapsedMillis)
+    {
+        this.offered = offered;
+        this.offeredPerSecond = offeredPerSecond;
+        this.completed = completed;
+        this.achievedPerSecond = achievedPerSecond;
+        this.rejected = rejected;
+        this.endedEarly = endedEarly;
+        this.failed = failed;
+        this.latency = latency;
+        this.maxLagMillis = maxLagMillis;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("offered %d (%.1f/s), completed %d (%.1f/s), rejected %d, ended early %d, failed %d, "
+                        + "latency p50/p99/p999 %.1f/%.1f/%.1fms, max lag %.1fms, took %dms",
+                offered, offeredPerSecond, completed, achievedPerSecond, rejected, endedEarly, failed,
+                latency.getPercentile(0.5) / 1e6, latency.getPercentile(0.99) / 1e6, latency.getPercentile(0.999) / 1e6,
+                maxLagMillis, elapsedMillis);
+    }
+}
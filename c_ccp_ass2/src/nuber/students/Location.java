@@ -0,0 +1,53 @@
+package nuber.students;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A point in the city a driver or passenger is at.
+ *
+ * Coordinates are measured in milliseconds of driving, so the distance between two locations is
+ * how long a driver takes to get from one to the other.
+ *
+ * @author strtk001
+ *
+ */
+public final class Location
+{
+    public final double x;
+    public final double y;
+
+    public Location(double x, double y)
+    {
+        this.x = x;
+        this.y = y;
+    }
+
+    /**
+     * Picks a random location in a square city
+     *
+     * @param citySize The width and height of the city
+     * @return A location between (0, 0) and (citySize, citySize)
+     */
+    public static Location random(double citySize)
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return new Location(random.nextDouble() * citySize, random.nextDouble() * citySize);
+    }
+
+    /**
+     * @param other Another location
+     * @return The straight line distance to the other location
+     */
+    public double distanceTo(Location other)
+    {
+        //Math.hypot guards against overflow we can't get at city scale, and is several times slower
+        double dx = x - other.x, dy = y - other.y;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("(%.1f, %.1f)", x, y);
+    }
+}
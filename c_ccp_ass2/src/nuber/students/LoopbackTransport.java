@@ -0,0 +1,625 @@
+package nuber.students;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connects dispatch nodes through sockets on the loopback interface, so nodes in one JVM talk to each
+ * other in the same way as nodes on separate machines would, serialising every booking, result and
+ * driver that crosses between them.
+ *
+ * Each connected node listens on its own port, and the transport keeps the directory of which port
+ * each node is on. A request to a node goes over one connection opened to it the first time it is
+ * needed. Connections are blocking NIO socket channels, each read by its own virtual thread, with
+ * writes to a channel made one frame at a time.
+ *
+ * Every message is a frame: the length of the rest of the frame, a type, the ID of the request it is
+ * or answers, and a body. Strings are UTF-8 preceded by their length, or -1 for null.
+ *
+ * @author strtk001
+ *
+ */
+public class LoopbackTransport implements NodeTransport
+{
+    /**
+     * Frame types. BOOK and BORROW are requests, the rest answer them.
+     */
+    private static final byte BOOK = 1;
+    private static final byte BOOKED = 2;
+    private static final byte REFUSED = 3;
+    private static final byte FAILED = 4;
+    private static final byte BORROW = 5;
+    private static final byte LENT = 6;
+    /**
+     * The largest frame accepted, so a corrupt length can't make a reader allocate without limit
+     */
+    private static final int MAX_FRAME_BYTES = 1024 * 1024;
+
+    /**
+     * A connected node, and the socket it listens on
+     */
+    private static class Listener
+    {
+        private final DispatchNode node;
+        private final ServerSocketChannel server;
+        /**
+         * The connections other transports have opened to the node
+         */
+        private final Set<SocketChannel> accepted = ConcurrentHashMap.newKeySet();
+
+        private Listener(DispatchNode node, ServerSocketChannel server)
+        {
+            this.node = node;
+            this.server = server;
+        }
+    }
+
+    /**
+     * A connection to a node, and the requests sent over it that haven't been answered
+     */
+    private static class Connection
+    {
+        private final String nodeId;
+        private final SocketChannel channel;
+        private final Map<Long, CompletableFuture<Object>> pending = new ConcurrentHashMap<Long, CompletableFuture<Object>>();
+
+        private Connection(String nodeId, SocketChannel channel)
+        {
+            this.nodeId = nodeId;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Builds a frame in a buffer that grows as needed
+     */
+    private static class Encoder
+    {
+        private ByteBuffer buffer = ByteBuffer.allocate(128);
+
+        /**
+         * @param type The frame's type. Room is left for the length and request ID, filled in by finish().
+         */
+        private Encoder(byte type)
+        {
+            buffer.putInt(0);
+            buffer.put(type);
+            buffer.putLong(0);
+        }
+
+        /**
+         * @param requestId The request the frame is, or answers
+         * @return The finished frame, ready to be written
+         */
+        private ByteBuffer finish(long requestId)
+        {
+            buffer.putInt(0, buffer.position() - 4);
+            buffer.putLong(5, requestId);
+            buffer.flip();
+            return buffer;
+        }
+
+        private void ensure(int bytes)
+        {
+            if (buffer.remaining() >= bytes)
+                return;
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+
+        private void putInt(int value)
+        {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        private void putLong(long value)
+        {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        private void putString(String value)
+        {
+            if (value == null)
+            {
+                putInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            ensure(bytes.length);
+            buffer.put(bytes);
+        }
+
+        private void putLocation(Location location)
+        {
+            ensure(17);
+            buffer.put((byte) (location == null ? 0 : 1));
+            if (location != null)
+            {
+                buffer.putDouble(location.x);
+                buffer.putDouble(location.y);
+            }
+        }
+
+        private void putPassenger(Passenger passenger)
+        {
+            putString(passenger.name);
+            putInt(passenger.maxSleep);
+            putInt(passenger.getPriority().ordinal());
+            putLong(passenger.getMaxWaitMillis());
+            putLong(passenger.getMaxDriverWaitMillis());
+            putLocation(passenger.getLocation());
+            putLocation(passenger.getDestination());
+        }
+
+        private void putDriver(Driver driver)
+        {
+            if (driver == null)
+            {
+                putString(null);
+                return;
+            }
+            putString(driver.name);
+            putInt(driver.maxSleep);
+            putLocation(driver.getLocation());
+        }
+
+        private void putResult(BookingResult result)
+        {
+            putInt(result.jobID);
+            putPassenger(result.passenger);
+            putDriver(result.driver);
+            putLong(result.tripDuration);
+            putLong(result.queuedNanos);
+            putLong(result.waitingForDriverNanos);
+            putLong(result.pickupNanos);
+            putLong(result.driveNanos);
+            putLong(result.totalNanos);
+            putInt(result.outcome.ordinal());
+            putInt(result.priority.ordinal());
+        }
+    }
+
+    /**
+     * The nodes connected to this transport, keyed by their IDs
+     */
+    private final Map<String, Listener> listeners = new ConcurrentHashMap<String, Listener>();
+    /**
+     * The connections opened to each node, keyed by its ID
+     */
+    private final Map<String, Connection> connections = new ConcurrentHashMap<String, Connection>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+
+    @Override
+    public void connect(DispatchNode node) throws IOException
+    {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Listener listener = new Listener(node, server);
+        if (listeners.putIfAbsent(node.getNodeId(), listener) != null)
+        {
+            server.close();
+            throw new IllegalStateException("Node " + node.getNodeId() + " is already connected");
+        }
+        Thread acceptor = new Thread(() -> accept(listener), "nuber-transport-" + node.getNodeId());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @Override
+    public void disconnect(String nodeId)
+    {
+        Listener listener = listeners.remove(nodeId);
+        if (listener != null)
+        {
+            closeQuietly(listener.server);
+            for (SocketChannel channel : listener.accepted)
+                closeQuietly(channel);
+        }
+        Connection connection = connections.remove(nodeId);
+        if (connection != null)
+            closeQuietly(connection.channel);
+    }
+
+    @Override
+    public void close()
+    {
+        for (String nodeId : listeners.keySet())
+            disconnect(nodeId);
+        for (String nodeId : connections.keySet())
+            disconnect(nodeId);
+    }
+
+    @Override
+    public CompletableFuture<BookingResult> bookPassenger(String nodeId, String region, Passenger passenger)
+    {
+        Encoder frame = new Encoder(BOOK);
+        frame.putString(region);
+        frame.putPassenger(passenger);
+        return send(nodeId, frame).thenApply(answer -> (BookingResult) answer);
+    }
+
+    @Override
+    public CompletableFuture<Driver> borrowDriver(String nodeId, Location near)
+    {
+        Encoder frame = new Encoder(BORROW);
+        frame.putLocation(near);
+        return send(nodeId, frame).thenApply(answer -> (Driver) answer);
+    }
+
+    /**
+     * Sends a request to a node
+     *
+     * @param nodeId The node's ID
+     * @param frame The request
+     * @return A future that completes with the answer, once it arrives
+     */
+    private CompletableFuture<Object> send(String nodeId, Encoder frame)
+    {
+        CompletableFuture<Object> answer = new CompletableFuture<Object>();
+        Connection connection;
+        try
+        {
+            connection = connection(nodeId);
+        }catch (IOException e)
+        {
+            answer.completeExceptionally(new BookingRejectedException(null, null, "Node " + nodeId + " isn't reachable: " + e.getMessage()));
+            return answer;
+        }
+        long requestId = nextRequestId.incrementAndGet();
+        connection.pending.put(requestId, answer);
+        try
+        {
+            write(connection.channel, frame.finish(requestId));
+        }catch (IOException e)
+        {
+            connection.pending.remove(requestId);
+            connectionLost(connection, e);
+            answer.completeExceptionally(new UncheckedIOException("Couldn't send to node " + nodeId, e));
+        }
+        return answer;
+    }
+
+    /**
+     * Gets the connection to a node, opening it if there isn't one
+     *
+     * @param nodeId The node's ID
+     * @return The connection
+     * @throws IOException if the node isn't connected to this transport or couldn't be reached
+     */
+    private Connection connection(String nodeId) throws IOException
+    {
+        Connection connection = connections.get(nodeId);
+        if (connection != null)
+            return connection;
+        synchronized (connections)
+        {
+            connection = connections.get(nodeId);
+            if (connection != null)
+                return connection;
+            Listener listener = listeners.get(nodeId);
+            if (listener == null)
+                throw new IOException("node isn't connected");
+            SocketChannel channel = SocketChannel.open(listener.server.getLocalAddress());
+            channel.socket().setTcpNoDelay(true);
+            Connection opened = new Connection(nodeId, channel);
+            connections.put(nodeId, opened);
+            Thread.ofVirtual().name("nuber-transport-to-" + nodeId).start(() -> readAnswers(opened));
+            return opened;
+        }
+    }
+
+    /**
+     * Body of the thread that reads the answers to the requests sent over a connection
+     *
+     * @param connection The connection
+     */
+    private void readAnswers(Connection connection)
+    {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        try
+        {
+            while (true)
+            {
+                ByteBuffer frame = read(connection.channel, header);
+                byte type = frame.get();
+                CompletableFuture<Object> answer = connection.pending.remove(frame.getLong());
+                if (answer == null)
+                    continue;
+                switch (type)
+                {
+                    case BOOKED:
+                        answer.complete(getResult(frame));
+                        break;
+                    case REFUSED:
+                        String region = getString(frame);
+                        int policy = frame.getInt();
+                        answer.completeExceptionally(new BookingRejectedException(region,
+                                policy < 0 ? null : BackpressurePolicy.values()[policy], getString(frame)));
+                        break;
+                    case FAILED:
+                        answer.completeExceptionally(new IllegalStateException(
+                                "Booking failed on node " + connection.nodeId + ": " + getString(frame)));
+                        break;
+                    case LENT:
+                        answer.complete(getDriver(frame));
+                        break;
+                    default:
+                        throw new IOException("Unknown answer type " + type);
+                }
+            }
+        }catch (IOException | RuntimeException e)
+        {
+            connectionLost(connection, e);
+        }
+    }
+
+    /**
+     * Closes a connection that has failed, failing every request still waiting for an answer over it.
+     * The next request to the node opens a new connection.
+     *
+     * @param connection The connection
+     * @param cause Why it failed
+     */
+    private void connectionLost(Connection connection, Exception cause)
+    {
+        connections.remove(connection.nodeId, connection);
+        closeQuietly(connection.channel);
+        for (Long requestId : connection.pending.keySet())
+        {
+            CompletableFuture<Object> answer = connection.pending.remove(requestId);
+            if (answer != null)
+                answer.completeExceptionally(new UncheckedIOException("Lost connection to node " + connection.nodeId,
+                        cause instanceof IOException ? (IOException) cause : new IOException(cause)));
+        }
+    }
+
+    /**
+     * Body of the thread that accepts connections to a node
+     *
+     * @param listener The node's listener
+     */
+    private void accept(Listener listener)
+    {
+        try
+        {
+            while (true)
+            {
+                SocketChannel channel = listener.server.accept();
+                channel.socket().setTcpNoDelay(true);
+                listener.accepted.add(channel);
+                Thread.ofVirtual().name("nuber-transport-from-" + listener.node.getNodeId())
+                        .start(() -> readRequests(listener, channel));
+            }
+        }catch (ClosedChannelException e)
+        {
+            //the node has been disconnected
+        }catch (IOException e)
+        {
+            System.err.println("Stopped accepting connections to node " + listener.node.getNodeId() + ": " + e);
+        }
+    }
+
+    /**
+     * Body of the thread that reads the requests another transport sends a node, and answers them
+     *
+     * @param listener The node's listener
+     * @param channel The connection the requests arrive on
+     */
+    private void readRequests(Listener listener, SocketChannel channel)
+    {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        try
+        {
+            while (true)
+            {
+                ByteBuffer frame = read(channel, header);
+                byte type = frame.get();
+                long requestId = frame.getLong();
+                if (type == BOOK)
+                {
+                    String region = getString(frame);
+                    Passenger passenger = getPassenger(frame);
+                    listener.node.acceptBooking(region, passenger)
+                            .whenComplete((result, failure) -> answerBooking(channel, requestId, region, result, failure));
+                }
+                else if (type == BORROW)
+                {
+                    lend(listener.node, channel, requestId, getLocation(frame));
+                }
+                else
+                {
+                    throw new IOException("Unknown request type " + type);
+                }
+            }
+        }catch (EOFException | ClosedChannelException e)
+        {
+            //the other side has gone
+        }catch (IOException | RuntimeException e)
+        {
+            System.err.println("Dropped connection to node " + listener.node.getNodeId() + ": " + e);
+        }finally
+        {
+            listener.accepted.remove(channel);
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Sends the result of a booking back to the node that asked for it
+     */
+    private static void answerBooking(SocketChannel channel, long requestId, String region, BookingResult result, Throwable failure)
+    {
+        Encoder frame;
+        if (failure == null)
+        {
+            frame = new Encoder(BOOKED);
+            frame.putResult(result);
+        }
+        else
+        {
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+            if (cause instanceof BookingRejectedException)
+            {
+                BookingRejectedException rejected = (BookingRejectedException) cause;
+                frame = new Encoder(REFUSED);
+                frame.putString(region);
+                frame.putInt(rejected.getPolicy() == null ? -1 : rejected.getPolicy().ordinal());
+                frame.putString(rejected.getMessage());
+            }
+            else
+            {
+                frame = new Encoder(FAILED);
+                frame.putString(String.valueOf(cause));
+            }
+        }
+        try
+        {
+            write(channel, frame.finish(requestId));
+        }catch (IOException e)
+        {
+            //the node that asked has gone, and its request failed with the connection
+        }
+    }
+
+    /**
+     * Lends one of a node's idle drivers to the node that asked for it. If the answer can't be sent,
+     * the driver stays where it was.
+     */
+    private static void lend(DispatchNode node, SocketChannel channel, long requestId, Location near)
+    {
+        Driver driver = node.lendDriver(near);
+        Encoder frame = new Encoder(LENT);
+        frame.putDriver(driver);
+        try
+        {
+            write(channel, frame.finish(requestId));
+        }catch (IOException e)
+        {
+            if (driver != null)
+                node.addDriver(driver);
+        }
+    }
+
+    /**
+     * Writes a whole frame, waiting for any other frame being written to the channel to finish first
+     */
+    private static void write(SocketChannel channel, ByteBuffer frame) throws IOException
+    {
+        synchronized (channel)
+        {
+            while (frame.hasRemaining())
+                channel.write(frame);
+        }
+    }
+
+    /**
+     * Reads the next frame from a channel
+     *
+     * @param header A buffer for the frame's length
+     * @return The rest of the frame, ready to be read
+     */
+    private static ByteBuffer read(SocketChannel channel, ByteBuffer header) throws IOException
+    {
+        header.clear();
+        readFully(channel, header);
+        int length = header.getInt(0);
+        if (length < 9 || length > MAX_FRAME_BYTES)
+            throw new IOException("Bad frame length " + length);
+        ByteBuffer frame = ByteBuffer.allocate(length);
+        readFully(channel, frame);
+        frame.flip();
+        return frame;
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer) < 0)
+                throw new EOFException();
+        }
+    }
+
+    private static void closeQuietly(Channel channel)
+    {
+        try
+        {
+            channel.close();
+        }catch (IOException e)
+        {
+            //closing anyway
+        }
+    }
+
+    private static String getString(ByteBuffer frame)
+    {
+        int length = frame.getInt();
+        if (length < 0)
+            return null;
+        String value = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+        return value;
+    }
+
+    private static Location getLocation(ByteBuffer frame)
+    {
+        if (frame.get() == 0)
+            return null;
+        return new Location(frame.getDouble(), frame.getDouble());
+    }
+
+    private static Passenger getPassenger(ByteBuffer frame)
+    {
+        Passenger passenger = new Passenger(getString(frame), frame.getInt());
+        passenger.setPriority(BookingPriority.values()[frame.getInt()]);
+        passenger.setMaxWaitMillis(frame.getLong());
+        passenger.setMaxDriverWaitMillis(frame.getLong());
+        passenger.setLocation(getLocation(frame));
+        passenger.setDestination(getLocation(frame));
+        return passenger;
+    }
+
+    private static Driver getDriver(ByteBuffer frame)
+    {
+        String name = getString(frame);
+        if (name == null)
+            return null;
+        Driver driver = new Driver(name, frame.getInt());
+        driver.setLocation(getLocation(frame));
+        return driver;
+    }
+
+    private static BookingResult getResult(ByteBuffer frame)
+    {
+        int jobID = frame.getInt();
+        Passenger passenger = getPassenger(frame);
+        Driver driver = getDriver(frame);
+        long tripDuration = frame.getLong();
+        BookingResult result = new BookingResult(jobID, passenger, driver,
+                frame.getLong(), frame.getLong(), frame.getLong(), frame.getLong(), frame.getLong());
+        result.tripDuration = tripDuration;
+        result.outcome = BookingOutcome.values()[frame.getInt()];
+        result.priority = BookingPriority.values()[frame.getInt()];
+        return result;
+    }
+}
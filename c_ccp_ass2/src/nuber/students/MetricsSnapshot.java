@@ -0,0 +1,149 @@
+package nuber.students;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The metrics of a dispatch and each of its regions, read at one moment.
+ *
+ * Each counter is read separately, so while bookings are running the values may not add up
+ * exactly, e.g. a booking may be counted as both submitted and not yet pending.
+ *
+ * @author strtk001
+ *
+ */
+public class MetricsSnapshot
+{
+    /**
+     * The metrics of a single region
+     */
+    public static class RegionSnapshot
+    {
+        public final String regionName;
+        public final long submitted;
+        public final long rejected;
+        public final long pending;
+        public final long active;
+        public final long waitingForDriver;
+        public final long onTrip;
+        public final long completed;
+        public final long failed;
+        public final long deadlinesMissed;
+        public final long cancelled;
+        public final long driverTimeouts;
+        public final long throughputPerSecond;
+
+        RegionSnapshot(String regionName, RegionMetrics metrics)
+        {
+            this.regionName = regionName;
+            submitted = metrics.getSubmitted();
+            rejected = metrics.getRejected();
+            pending = metrics.getPending();
+            active = metrics.getActive();
+            waitingForDriver = metrics.getWaitingForDriver();
+            onTrip = metrics.getOnTrip();
+            completed = metrics.getCompleted();
+            failed = metrics.getFailed();
+            deadlinesMissed = metrics.getDeadlinesMissed();
+            cancelled = metrics.getCancelled();
+            driverTimeouts = metrics.getDriverTimeouts();
+            throughputPerSecond = metrics.getThroughputPerSecond();
+        }
+
+        @Override
+        public String toString()
+        {
+            return regionName + ": submitted " + submitted + ", pending " + pending + ", active " + active
+                    + ", waiting for driver " + waitingForDriver + ", completed " + completed
+                    + ", rejected " + rejected + ", failed " + failed + ", deadlines missed " + deadlinesMissed
+                    + ", cancelled " + cancelled + ", driver timeouts " + driverTimeouts + ", " + throughputPerSecond + "/s";
+        }
+    }
+
+    /**
+     * System.nanoTime() when the snapshot was taken
+     */
+    public final long timeNanos;
+    public final long submitted;
+    public final long rejected;
+    public final long pending;
+    public final long active;
+    public final long waitingForDriver;
+    public final long completed;
+    public final long failed;
+    public final long deadlinesMissed;
+    public final long cancelled;
+    public final long driverTimeouts;
+    public final long throughputPerSecond;
+    public final int idleDrivers;
+    public final long busyDrivers;
+    /**
+     * The fraction of drivers that are busy with a booking
+     */
+    public final double driverUtilization;
+    /**
+     * The snapshot of each region, keyed by region name. Removed regions count towards the totals but
+     * aren't listed here.
+     */
+    public final Map<String, RegionSnapshot> regions;
+
+    MetricsSnapshot(Iterable<NuberRegion> regionList, Iterable<RegionMetrics> removedRegions, int idleDrivers)
+    {
+        timeNanos = System.nanoTime();
+        Map<String, RegionSnapshot> regionSnapshots = new LinkedHashMap<String, RegionSnapshot>();
+        List<RegionSnapshot> counted = new ArrayList<RegionSnapshot>();
+        for (NuberRegion region : regionList)
+        {
+            RegionSnapshot snapshot = new RegionSnapshot(region.getRegionName(), region.getMetrics());
+            regionSnapshots.put(snapshot.regionName, snapshot);
+            counted.add(snapshot);
+        }
+        for (RegionMetrics removed : removedRegions)
+            counted.add(new RegionSnapshot("removed", removed));
+        long submitted = 0, rejected = 0, pending = 0, active = 0, waitingForDriver = 0, onTrip = 0,
+                completed = 0, failed = 0, deadlinesMissed = 0, cancelled = 0, driverTimeouts = 0,
+                throughputPerSecond = 0;
+        for (RegionSnapshot snapshot : counted)
+        {
+            submitted += snapshot.submitted;
+            rejected += snapshot.rejected;
+            pending += snapshot.pending;
+            active += snapshot.active;
+            waitingForDriver += snapshot.waitingForDriver;
+            onTrip += snapshot.onTrip;
+            completed += snapshot.completed;
+            failed += snapshot.failed;
+            deadlinesMissed += snapshot.deadlinesMissed;
+            cancelled += snapshot.cancelled;
+            driverTimeouts += snapshot.driverTimeouts;
+            throughputPerSecond += snapshot.throughputPerSecond;
+        }
+        this.submitted = submitted;
+        this.rejected = rejected;
+        this.pending = pending;
+        this.active = active;
+        this.waitingForDriver = waitingForDriver;
+        this.completed = completed;
+        this.failed = failed;
+        this.deadlinesMissed = deadlinesMissed;
+        this.cancelled = cancelled;
+        this.driverTimeouts = driverTimeouts;
+        this.throughputPerSecond = throughputPerSecond;
+        this.idleDrivers = idleDrivers;
+        busyDrivers = onTrip;
+        driverUtilization = onTrip + idleDrivers == 0 ? 0 : onTrip / (double) (onTrip + idleDrivers);
+        regions = Collections.unmodifiableMap(regionSnapshots);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("submitted %d, pending %d, active %d, waiting for driver %d, completed %d, rejected %d, "
+                        + "failed %d, deadlines missed %d, cancelled %d, driver timeouts %d, %d/s, drivers idle %d busy %d (%.0f%% utilised)",
+                submitted, pending, active, waitingForDriver, completed, rejected, failed, deadlinesMissed, cancelled, driverTimeouts, throughputPerSecond,
+                idleDrivers, busyDrivers, driverUtilization * 100);
+    }
+}
@@ -0,0 +1,57 @@
+package nuber.students;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * How dispatch nodes reach each other. A node connects itself so the others can send it bookings for
+ * the regions it owns and ask it for idle drivers, and sends its own requests through the same transport.
+ *
+ * Every request is answered through a future, so a node never holds a thread while another node works
+ * on its request, whatever the transport does underneath.
+ *
+ * @author strtk001
+ *
+ */
+public interface NodeTransport
+{
+    /**
+     * Makes a node reachable by the other nodes on this transport
+     *
+     * @param node The node
+     * @throws IOException if the node couldn't be made reachable
+     */
+    void connect(DispatchNode node) throws IOException;
+
+    /**
+     * Stops a node being reachable. Requests already sent to it are still answered.
+     *
+     * @param nodeId The node's ID
+     */
+    void disconnect(String nodeId);
+
+    /**
+     * Books a passenger into a region owned by another node
+     *
+     * @param nodeId The ID of the node that owns the region
+     * @param region The region's name
+     * @param passenger The passenger to book
+     * @return A future that completes with the booking's result, or completes exceptionally with a
+     * BookingRejectedException if the node refused the booking
+     */
+    CompletableFuture<BookingResult> bookPassenger(String nodeId, String region, Passenger passenger);
+
+    /**
+     * Asks another node to lend one of its idle drivers. A lent driver leaves that node for good.
+     *
+     * @param nodeId The ID of the node to ask
+     * @param near Where the driver is needed, or null if it doesn't matter
+     * @return A future that completes with the driver, or with null if the node had none idle
+     */
+    CompletableFuture<Driver> borrowDriver(String nodeId, Location near);
+
+    /**
+     * Disconnects every node and releases whatever the transport holds open
+     */
+    void close();
+}
@@ -1,31 +1,132 @@
 package nuber.students;
 
+import nuber.strtk001_utilities.Clock;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.swing.plaf.synth.Region;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * The core Dispatch class that instantiates and manages everything for Nuber
  *
+ * Regions can be added, removed and resized while the dispatch is running. A removed region stops
+ * accepting bookings straight away, and finishes the ones it has before it is gone.
+ *
  * @author james
  *
  */
 public class NuberDispatch
 {
+    private boolean logEvents = false;
     /**
-     * The maximum number of idle drivers that can be awaiting a booking
+     * The settings this dispatch and its regions were created with
      */
-    private final int MAX_DRIVERS = 999;
-    private boolean logEvents = false;
+    private DispatchConfig config;
+    /**
+     * Hands out the IDs of bookings made through this dispatch
+     */
+    private BookingIdAllocator bookingIds;
+    /**
+     * Writes out logged events in the background, only created if logEvents is true
+     */
+    private EventLogger eventLog;
+    /**
+     * Where the progress of bookings is journalled so they can be recovered after a restart, or null if it isn't
+     */
+    private BookingJournal journal;
+    /**
+     * Adjusts each region's maxSimultaneousJobs as demand changes, or null if they are fixed
+     */
+    private ConcurrencyController concurrencyController;
+    /**
+     * The metrics of this dispatch, totalled across its regions
+     */
+    private DispatchMetrics metrics = new DispatchMetrics(this);
+    /**
+     * The name this dispatch's metrics are registered with JMX under
+     */
+    private String dispatchName;
+    /**
+     * The names of the MBeans registered for this dispatch and its regions
+     */
+    private List<ObjectName> registeredMBeans = new ArrayList<ObjectName>();
+    /**
+     * The names of the MBeans registered for each region, so they can be unregistered when it is removed
+     */
+    private Map<String, ObjectName> regionMBeans = new HashMap<String, ObjectName>();
+    /**
+     * The pool of idle drivers, which hands freed drivers directly to waiting bookings.
+     * Only used by bookings not run by a region once regions keep their own drivers.
+     */
+    private DriverPool idleDrivers;
+    /**
+     * Matches bookings to drivers in batches, or null if each booking is matched as soon as it asks
+     */
+    private BatchMatcher batchMatcher;
     /**
-     * The Queue of idle drivers
+     * Whether each region keeps its own drivers
      */
-    private BlockingQueue<Driver> idleDrivers = new ArrayBlockingQueue<Driver>(MAX_DRIVERS);
+    private boolean regionDriverPools;
+    /**
+     * The regions in the order they were added. A region that runs out of drivers steals from the
+     * regions after it in this order first, so neighbouring regions don't all raid the same one.
+     *
+     * Replaced with a new list whenever a region is added or removed, so readers can go through it without a lock.
+     */
+    private volatile List<NuberRegion> regionOrder = Collections.emptyList();
+    /**
+     * Regions that have been removed but still have bookings to finish
+     */
+    private Set<NuberRegion> drainingRegions = ConcurrentHashMap.newKeySet();
+    /**
+     * The metrics of every region that has been removed, whether or not it has finished its bookings,
+     * which still count towards the dispatch's totals
+     */
+    private final Queue<RegionMetrics> removedRegionMetrics = new ConcurrentLinkedQueue<RegionMetrics>();
+    /**
+     * Set once the dispatch has been told to shutdown, after which no regions can be added.
+     * Guarded by this dispatch's monitor, as are all changes to the regions.
+     */
+    private boolean shutdown = false;
+    /**
+     * Told where a driver is needed whenever a booking has to wait because no driver is idle, or null if nothing is listening
+     */
+    private volatile Consumer<Location> driverShortageListener;
+    /**
+     * Which region the next driver added without a region goes to
+     */
+    private AtomicInteger nextDriverRegion = new AtomicInteger();
+    /**
+     * The drivers on this dispatch's roster who are on shift. A driver joins the roster when they start a
+     * shift here or are borrowed by this dispatch, and leaves it when they go off shift or are lent out.
+     */
+    private AtomicInteger driversOnShift = new AtomicInteger();
+    /**
+     * Set when a driver going off shift leaves no driver on the roster, and cleared when the roster changes
+     * in any other way. Bookings made before the first drivers are added, or after the last one was lent to
+     * another dispatch, wait for one instead of timing out.
+     */
+    private volatile boolean outOfDrivers = false;
     /**
      * Map to store reference to all regions so we can shut them down later.
      */
-    private Map<String,NuberRegion> regions = new HashMap<String,NuberRegion>();
+    private Map<String,NuberRegion> regions = new ConcurrentHashMap<String,NuberRegion>();
     /**
      * Creates a new dispatch objects and instantiates the required regions and any other objects required.
      * It should be able to handle a variable number of regions based on the HashMap provided.
@@ -34,55 +135,554 @@ public class NuberDispatch
      * @param logEvents Whether logEvent should print out events passed to it
      */
     public NuberDispatch(HashMap<String, Integer> regionInfo, boolean logEvents)
+    {
+        this(regionInfo, logEvents, new DispatchConfig());
+    }
+    /**
+     * Creates a new dispatch object with the given settings.
+     *
+     * @param regionInfo Map of region names and the max simultaneous bookings they can handle
+     * @param logEvents Whether logEvent should print out events passed to it
+     * @param config The settings for this dispatch and its regions
+     */
+    public NuberDispatch(HashMap<String, Integer> regionInfo, boolean logEvents, DispatchConfig config)
     {
         this.logEvents = logEvents;
+        this.config = config;
+        bookingIds = new BookingIdAllocator(config.getBookingIdBlockSize());
+        idleDrivers = newDriverPool();
+        if(config.getMatchingWindowMillis() > 0)
+            batchMatcher = new BatchMatcher(config.getClock(), config.getMatchingWindowMillis(),
+                    config.getBatchAssignment());
+        regionDriverPools = config.isRegionDriverPools() && batchMatcher == null;
+        if(logEvents)
+            eventLog = new EventLogger(System.out, config.getEventLogCapacity());
+        dispatchName = config.getDispatchName() != null ? config.getDispatchName()
+                : "dispatch-" + Integer.toHexString(System.identityHashCode(this));
+        if(config.getJournalDirectory() != null)
+            openJournal(config.getJournalDirectory());
+        if(config.getConcurrencyControlIntervalMillis() > 0)
+            concurrencyController = new ConcurrencyController(this, config.getConcurrencyControlIntervalMillis(),
+                    config.getMinConcurrencyLimit(), config.getMaxConcurrencyLimit(), config.getTargetDriverWaitMillis());
         addRegions(regionInfo);
+        if(config.isRegisterMBeans())
+            registerMBean("nuber:type=Dispatch,name=" + ObjectName.quote(dispatchName), metrics);
+    }
+    /**
+     * Getter method for the settings this dispatch was created with.
+     *
+     * @return The dispatch's config
+     */
+    public DispatchConfig getConfig(){return config;}
+    /**
+     * Opens the booking journal, replaying whatever an earlier dispatch left in it, and makes sure new
+     * bookings don't reuse the IDs of the bookings found there.
+     *
+     * @param directory The directory the journal is kept in
+     */
+    private void openJournal(Path directory)
+    {
+        try
+        {
+            journal = new BookingJournal(directory, config.getJournalSegmentBytes(), config.getJournalCommitIntervalMillis());
+        }catch (IOException e)
+        {
+            throw new UncheckedIOException("Couldn't open the booking journal in " + directory, e);
+        }
+        bookingIds.skipPast(journal.getMaxBookingId());
     }
+    /**
+     * Getter method for the journal bookings are recorded in.
+     *
+     * @return The journal, or null if bookings aren't journalled
+     */
+    BookingJournal getJournal(){return journal;}
+    /**
+     * Getter method for the controller that adjusts each region's maxSimultaneousJobs.
+     *
+     * @return The controller, or null if maxSimultaneousJobs is fixed
+     */
+    public ConcurrencyController getConcurrencyController(){return concurrencyController;}
+    /**
+     * Books every passenger whose booking an earlier dispatch left unfinished in the journal, into the
+     * region it was made in. Each starts again from the beginning, however far it had got before the restart.
+     *
+     * Once they are all booked and their new records are on disk, what the earlier dispatch left in the
+     * journal is deleted. If any couldn't be booked, because its region no longer exists or had no room for
+     * it, it is all kept, and the bookings that weren't recovered are found again next time.
+     *
+     * @return The futures for each recovered booking, in the order they were first made
+     */
+    public List<CompletableFuture<BookingResult>> recover()
+    {
+        List<CompletableFuture<BookingResult>> bookings = new ArrayList<CompletableFuture<BookingResult>>();
+        if(journal == null)
+            return bookings;
+        boolean all = true;
+        for(BookingJournal.RecoveredBooking recovered : journal.takeRecovered())
+        {
+            NuberRegion region = regions.get(recovered.regionName);
+            CompletableFuture<BookingResult> booking = null;
+            try
+            {
+                if(region != null)
+                    booking = region.recoverBooking(recovered);
+            }catch (BookingRejectedException e)
+            {
+                //left in the journal for next time
+            }
+            if(booking == null)
+            {
+                all = false;
+                System.err.println("Couldn't recover booking " + recovered.bookingId + " into " + recovered.regionName);
+                continue;
+            }
+            bookings.add(booking);
+        }
+        journal.sync();
+        if(all)
+            journal.deleteReplayedSegments();
+        return bookings;
+    }
+    /**
+     * Getter method for the clock bookings are timed with and drivers drive on.
+     *
+     * @return The configured clock
+     */
+    public Clock getClock(){return config.getClock();}
+    /**
+     * Allocates the ID for a new booking. Safe to call from any number of threads at once.
+     *
+     * @return A booking ID that is unique within this dispatch
+     */
+    public int nextBookingId(){return bookingIds.nextId();}
+    /**
+     * Creates an empty driver pool, matching drivers in the way this dispatch is configured to.
+     *
+     * @return The new pool
+     */
+    DriverPool newDriverPool()
+    {
+        if(config.getDriverMatching() == DriverMatching.NEAREST)
+            return new DriverPool(new GridDriverIndex(config.getGridCellSize()));
+        return new DriverPool();
+    }
+    /**
+     * @return true if each region keeps its own drivers
+     */
+    boolean hasRegionDriverPools(){return regionDriverPools;}
     /**
      * Adds drivers to a queue of idle driver.
      *
-     * Must be able to have drivers added from multiple threads.
+     * Must be able to have drivers added from multiple threads, and never blocks, however many drivers are idle.
+     *
+     * A driver who is off shift starts a new shift, which ends after the configured maxShiftMillis if there is one.
+     * If regions keep their own drivers, new drivers are spread over the regions in turn.
      *
      * @param newDriver The driver to add to the queue.
-     * @return Returns true if driver was added to the queue
+     * @return Returns true if driver was added to the queue, false if they are already idle or on a break
      */
-    public synchronized boolean addDriver(Driver newDriver)
+    public boolean addDriver(Driver newDriver)
     {
-        while(idleDrivers.size() >= MAX_DRIVERS)
+        if(newDriver.getState() == DriverState.OFF_SHIFT)
+            startShift(newDriver);
+        //a driver lent by another dispatch is already on shift, and now counts as one of this dispatch's
+        else if(newDriver.joinRoster(this))
+            driverJoinedShift();
+        if(batchMatcher != null)
+            return batchMatcher.addDriver(newDriver);
+        List<NuberRegion> order = regionOrder;
+        if(regionDriverPools && !order.isEmpty())
+            return addDriver(newDriver, order.get(Math.floorMod(nextDriverRegion.getAndIncrement(), order.size())));
+        return idleDrivers.addDriver(newDriver);
+    }
+    /**
+     * Starts a driver's shift, and sets it to end once it has lasted maxShiftMillis
+     *
+     * @param driver The driver, who is off shift
+     */
+    private void startShift(Driver driver)
+    {
+        int shift = driver.startShift(getClock().nanoTime(), this);
+        long maxShift = config.getMaxShiftMillis();
+        if(maxShift <= 0)
+            return;
+        getClock().delay(maxShift).thenRun(() -> {
+            //the driver may have gone off shift and started another since
+            if(driver.getShifts() == shift)
+                endShift(driver);
+        });
+    }
+    /**
+     * Ends a driver's shift. An idle driver leaves straight away, by changing their state rather than being
+     * searched for in the idle pools, so it takes the same time however many drivers are idle. A busy driver
+     * leaves once they have finished with their booking, and a driver on a break doesn't come back from it.
+     *
+     * Once every driver has gone off shift, bookings waiting for a driver time out rather than wait for one
+     * that isn't coming.
+     *
+     * @param driver The driver
+     * @return true if this call ended the driver's shift, false if they were off shift or their shift was already ending
+     */
+    public boolean endShift(Driver driver)
+    {
+        if(driver.getState() == DriverState.OFF_SHIFT || !driver.endShift())
+            return false;
+        //a busy driver sees their shift is ending when they are next made available
+        driver.leave(DriverState.OFF_SHIFT);
+        return true;
+    }
+    /**
+     * Counts a driver whose shift this dispatch started as on shift, once they have been made available
+     */
+    void driverJoinedShift()
+    {
+        driversOnShift.incrementAndGet();
+        outOfDrivers = false;
+    }
+    /**
+     * Takes a driver that has been handed to another dispatch off this dispatch's roster. Lending its last
+     * driver doesn't leave the dispatch out of drivers, as it can borrow one back.
+     *
+     * @param driver The driver, who is busy and has left this dispatch's idle pools
+     */
+    void driverLent(Driver driver)
+    {
+        if(!driver.leaveRoster(this))
+            return;
+        driversOnShift.decrementAndGet();
+        outOfDrivers = false;
+    }
+    /**
+     * Counts a driver whose shift this dispatch started as off shift. If they were the last driver on shift,
+     * every booking waiting for a driver times out.
+     */
+    void driverLeftShift()
+    {
+        if(driversOnShift.decrementAndGet() > 0)
+            return;
+        outOfDrivers = true;
+        for(NuberRegion region : regions.values())
+            region.timeOutWaitingForDrivers();
+        for(NuberRegion region : drainingRegions)
+            region.timeOutWaitingForDrivers();
+    }
+    /**
+     * @return true if the last driver on the roster has gone off shift and none has joined since, so a
+     * booking waiting for a driver would never get one
+     */
+    boolean isOutOfDrivers(){return outOfDrivers && driversOnShift.get() == 0;}
+    /**
+     * Sends an idle driver on a break, leaving the idle pools in the same way as endShift(). They come
+     * back once the break is over, unless their shift ends first.
+     *
+     * @param driver The driver
+     * @param breakMillis How long the break lasts, in milliseconds
+     * @return true if the driver was idle and is now on a break
+     */
+    public boolean startBreak(Driver driver, long breakMillis)
+    {
+        if(!driver.leave(DriverState.ON_BREAK))
+            return false;
+        getClock().delay(breakMillis).thenRun(() -> endBreak(driver));
+        return true;
+    }
+    /**
+     * Brings a driver back from a break, to the pool they took it in if their entry is still there, and
+     * otherwise in the same way as a driver freed from a booking
+     *
+     * @param driver The driver, who is on a break unless their shift has ended since
+     */
+    private void endBreak(Driver driver)
+    {
+        driver.breakEnded(getClock().nanoTime());
+        switch(driver.becomeAvailable(DriverState.ON_BREAK))
+        {
+            case HAND_OVER:
+                addDriver(driver);
+                break;
+            case RELISTED:
+                DriverPool pool = driver.getListedIn();
+                if(pool != null)
+                    pool.relisted();
+                break;
+            default:
+                break;
+        }
+    }
+    /**
+     * Takes back a driver who has finished a booking. If they have worked for breakIntervalMillis since
+     * their last break they take one now, and otherwise they go back to the region they are in.
+     *
+     * @param driver The driver, who is busy
+     * @param home The region the driver is in, or null if it isn't in one
+     */
+    void releaseDriver(Driver driver, NuberRegion home)
+    {
+        long breakInterval = config.getBreakIntervalMillis();
+        if(breakInterval > 0 && !driver.isShiftEnding()
+                && getClock().nanoTime() - driver.getLastBreakNanos() >= TimeUnit.MILLISECONDS.toNanos(breakInterval)
+                && driver.stepAway(DriverState.ON_BREAK))
+        {
+            getClock().delay(config.getBreakMillis()).thenRun(() -> endBreak(driver));
+            return;
+        }
+        addDriver(driver, home);
+    }
+    /**
+     * Adds a driver to a region's own pool, handing it to one of the region's waiting bookings if there are any.
+     *
+     * If it ends up idle while bookings in other regions are waiting, it is lent to one of them instead,
+     * so no booking waits while a driver sits idle elsewhere. A driver whose region has been removed only
+     * stays there while the region's last bookings are waiting for drivers, and otherwise joins another region.
+     *
+     * @param newDriver The driver to add
+     * @param home The region the driver is in, or null if it isn't in one
+     * @return Returns true if driver was added
+     */
+    boolean addDriver(Driver newDriver, NuberRegion home)
+    {
+        if(!regionDriverPools || home == null)
+            return addDriver(newDriver);
+        DriverPool pool = home.getDriverPool();
+        if(drainingRegions.contains(home) || regions.get(home.getRegionName()) != home)
+        {
+            if(pool.getWaitingBookingCount() == 0)
+                return addDriver(newDriver);
+        }
+        if(!pool.addDriver(newDriver))
+            return false;
+        lendIdleDrivers(home);
+        return true;
+    }
+    /**
+     * Hands idle drivers from one region to bookings waiting in the other regions.
+     *
+     * A booking that starts waiting looks for idle drivers everywhere after it joins its region's waiting
+     * bookings, and a driver that goes idle looks for waiting bookings everywhere after it joins its region's
+     * idle drivers, so at least one of the two always sees the other. Removed regions still finishing their
+     * bookings are lent to first, as no new drivers join them.
+     *
+     * @param home The region to lend from
+     */
+    private void lendIdleDrivers(NuberRegion home)
+    {
+        for(NuberRegion draining : drainingRegions)
+        {
+            if(draining != home && !lendIdleDrivers(home, draining.getDriverPool()))
+                return;
+        }
+        List<NuberRegion> order = regionOrder;
+        int start = order.indexOf(home);
+        for(int i = 1; i <= order.size(); i++)
         {
-            try {
-                wait();
-            } catch (InterruptedException e) {
+            NuberRegion other = order.get(Math.floorMod(start + i, order.size()));
+            if(other != home && !lendIdleDrivers(home, other.getDriverPool()))
+                return;
+        }
+    }
+    /**
+     * Hands idle drivers from one region to the bookings waiting in another
+     *
+     * @param home The region to lend from
+     * @param other The pool of the region to lend to
+     * @return false once home has no idle drivers left
+     */
+    private boolean lendIdleDrivers(NuberRegion home, DriverPool other)
+    {
+        while(other.getWaitingBookingCount() > 0)
+        {
+            Driver driver = home.getDriverPool().pollIdleDriver(null);
+            if(driver == null)
                 return false;
-            }
+            other.addDriver(driver);
         }
-        idleDrivers.add(newDriver);
-        notifyAll();
         return true;
     }
+    /**
+     * Takes an idle driver from any region but the booking's own, trying the regions after it first.
+     *
+     * @param home The booking's region
+     * @param near Where the driver is needed, or null if it doesn't matter
+     * @return The stolen driver, or null if no other region had one idle
+     */
+    private Driver stealDriver(NuberRegion home, Location near)
+    {
+        List<NuberRegion> order = regionOrder;
+        //a removed region is no longer in the order, so it tries every region
+        int start = order.indexOf(home);
+        for(int i = 1; i <= order.size(); i++)
+        {
+            NuberRegion other = order.get(Math.floorMod(start + i, order.size()));
+            if(other == home)
+                continue;
+            Driver driver = other.getDriverPool().pollIdleDriver(near);
+            if(driver != null)
+                return driver;
+        }
+        return null;
+    }
     /**
      * Gets a driver from the front of the queue
      *
      * Must be able to have drivers added from multiple threads.
      *
+     * If no driver is idle, the calling booking waits until a driver is handed to it.
+     *
      * @return A driver that has been removed from the queue
      */
-    public synchronized Driver getDriver()
+    public Driver getDriver()
+    {
+        return getDriver(null);
+    }
+    /**
+     * Gets the idle driver nearest a location, if the dispatch matches drivers by location,
+     * and otherwise the driver at the front of the queue.
+     *
+     * If no driver is idle, the calling booking waits until a driver is handed to it.
+     *
+     * @param near Where the driver is needed, or null if it doesn't matter
+     * @return A driver that has been removed from the pool
+     */
+    public Driver getDriver(Location near)
+    {
+        return DriverPool.await(acquireDriver(near));
+    }
+    /**
+     * Gets a driver from the front of the queue, waiting up to a time limit for one to be available.
+     *
+     * Unlike getDriver(), the wait is cut short by an interrupt.
+     *
+     * @param timeout How long to wait for a driver
+     * @param unit The unit of the timeout
+     * @return A driver that has been removed from the queue, or null if none was available in time
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public Driver getDriver(long timeout, TimeUnit unit) throws InterruptedException
     {
-        while(idleDrivers.size() == 0)
+        return getDriver(null, timeout, unit);
+    }
+    /**
+     * Gets the idle driver nearest a location in the same way as getDriver(Location), waiting up to a time
+     * limit for one to be available. The wait is cut short by an interrupt.
+     *
+     * @param near Where the driver is needed, or null if it doesn't matter
+     * @param timeout How long to wait for a driver
+     * @param unit The unit of the timeout
+     * @return A driver that has been removed from the pool, or null if none was available in time
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public Driver getDriver(Location near, long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return DriverPool.await(acquireDriver(near), timeout, unit, this::addDriver);
+    }
+    /**
+     * Asks for a driver from the front of the queue without waiting for one.
+     *
+     * @return A future that completes with the driver once one has been removed from the queue
+     */
+    public CompletableFuture<Driver> acquireDriver()
+    {
+        return acquireDriver(null);
+    }
+    /**
+     * Asks for the idle driver nearest a location without waiting for one, in the same way as getDriver(Location).
+     *
+     * @param near Where the driver is needed, or null if it doesn't matter
+     * @return A future that completes with the driver once one has been removed from the pool
+     */
+    public CompletableFuture<Driver> acquireDriver(Location near)
+    {
+        if(batchMatcher != null)
+            return batchMatcher.acquireDriver(near);
+        List<NuberRegion> order = regionOrder;
+        if(regionDriverPools && !order.isEmpty())
+            return acquireDriver(order.get(0), near);
+        CompletableFuture<Driver> waiting = idleDrivers.acquireDriver(near);
+        if(!waiting.isDone())
+            driverShortage(near);
+        return waiting;
+    }
+    /**
+     * Asks for a driver for a booking run by a region, without waiting for one.
+     *
+     * If regions keep their own drivers, the booking gets one of its own region's idle drivers, or steals
+     * one from another region if its region has none. If no region has an idle driver, it waits for the
+     * next driver freed in its own region, or lent to it by another region.
+     *
+     * @param home The region running the booking, or null if it isn't run by one
+     * @param near Where the driver is needed, or null if it doesn't matter
+     * @return A future that completes with the driver once one has been found
+     */
+    CompletableFuture<Driver> acquireDriver(NuberRegion home, Location near)
+    {
+        if(!regionDriverPools || home == null)
+            return acquireDriver(near);
+        DriverPool local = home.getDriverPool();
+        Driver driver = local.pollIdleDriver(near);
+        if(driver == null)
+            driver = stealDriver(home, near);
+        if(driver != null)
+            return CompletableFuture.completedFuture(driver);
+
+        CompletableFuture<Driver> waiting = local.acquireDriver(near);
+        //a driver may have gone idle in another region after we looked, before it could see us waiting
+        if(!waiting.isDone())
         {
-            try {
-                wait();
-            } catch (InterruptedException e) {}
+            driver = stealDriver(home, near);
+            if(driver != null)
+                local.addDriver(driver);
+            else
+                driverShortage(near);
         }
-        notifyAll();
-        return idleDrivers.poll();
+        return waiting;
+    }
+    /**
+     * Tells the driver shortage listener, if there is one, that a booking has had to wait for a driver
+     *
+     * @param near Where the driver is needed, or null if it doesn't matter
+     */
+    private void driverShortage(Location near)
+    {
+        Consumer<Location> listener = driverShortageListener;
+        if(listener != null)
+            listener.accept(near);
+    }
+    /**
+     * Sets what is told whenever a booking has to wait because no driver is idle anywhere in this dispatch,
+     * so drivers can be found for it from outside. It is called on the booking's thread, and must not block.
+     *
+     * @param listener Told where each such driver is needed, or null to stop listening
+     */
+    void setDriverShortageListener(Consumer<Location> listener){driverShortageListener = listener;}
+    /**
+     * Takes an idle driver from this dispatch without waiting, from the shared pool or any region's pool.
+     * Drivers collected by a batch matcher are left for it to match.
+     *
+     * @param near Where the driver is needed, or null if it doesn't matter
+     * @return The driver, or null if none is idle
+     */
+    Driver pollIdleDriver(Location near)
+    {
+        Driver driver = idleDrivers.pollIdleDriver(near);
+        if(driver != null || !regionDriverPools)
+            return driver;
+        for(NuberRegion region : regionOrder)
+        {
+            driver = region.getDriverPool().pollIdleDriver(near);
+            if(driver != null)
+                return driver;
+        }
+        return null;
     }
     /**
      * Prints out the string
      * 	    booking + ": " + message
      * to the standard output only if the logEvents variable passed into the constructor was true
      *
+     * The event is handed to a background writer rather than printed on the calling thread, so logging
+     * never makes a booking wait. If the writer falls too far behind, events are dropped and counted.
+     *
      * @param booking The booking that's responsible for the event occurring
      * @param message The message to show
      */
@@ -90,9 +690,26 @@ public class NuberDispatch
 
         if (!logEvents) return;
 
-        System.out.println(booking + ": " + message);
+        eventLog.log(booking.getBookingID(), booking.getDriver(), booking.getPassenger(), message);
 
     }
+    /**
+     * Waits until every event logged so far has been printed.
+     */
+    public void flushEvents()
+    {
+        if(logEvents)
+            eventLog.flush();
+    }
+    /**
+     * Gets the number of events that were dropped because the background writer fell too far behind.
+     *
+     * @return Number of dropped events
+     */
+    public long getDroppedEvents()
+    {
+        return logEvents ? eventLog.getDroppedEvents() : 0;
+    }
     /**
      * Books a given passenger into a given Nuber region.
      *
@@ -100,30 +717,164 @@ public class NuberDispatch
      *
      * If the region has been asked to shutdown, the booking should be rejected, and null returned.
      *
+     * The returned future is a CompletableFuture, so callers can attach callbacks rather than polling it.
+     *
      * @param passenger The passenger to book
      * @param region The region to book them into
      * @return returns a Future<BookingResult> object
      */
-    public Future<BookingResult> bookPassenger(Passenger passenger, String region)
+    public CompletableFuture<BookingResult> bookPassenger(Passenger passenger, String region)
             throws ExecutionException, InterruptedException
     {
         return regions.get(region).bookPassenger(passenger);
     }
+    /**
+     * Books a given passenger into a given Nuber region, running the booking as a chain of stages
+     * that never holds a thread while it waits for a driver, whatever the region's execution mode.
+     *
+     * If the region has been asked to shutdown, the booking is rejected, and null returned.
+     *
+     * @param passenger The passenger to book
+     * @param region The region to book them into
+     * @return A future that completes with the BookingResult once the passenger has arrived
+     */
+    public CompletableFuture<BookingResult> bookPassengerAsync(Passenger passenger, String region)
+    {
+        return regions.get(region).bookPassengerAsync(passenger);
+    }
+    /**
+     * Books a whole batch of passengers into a given Nuber region.
+     *
+     * The batch is admitted by the region in one step, so either every passenger is booked or none are.
+     *
+     * @param passengers The passengers to book
+     * @param region The region to book them into
+     * @return The futures for each booking, in the same order as the passengers, or null if the region has
+     * been asked to shutdown
+     */
+    public List<CompletableFuture<BookingResult>> bookPassengers(Collection<Passenger> passengers, String region)
+    {
+        return regions.get(region).bookPassengers(passengers);
+    }
+    /**
+     * Books batches of passengers into several Nuber regions, one batch per region.
+     *
+     * @param passengersByRegion The passengers to book, keyed by the region to book them into
+     * @return The futures for each region's bookings, keyed by region. A region that has been asked to
+     * shutdown maps to null.
+     */
+    public Map<String, List<CompletableFuture<BookingResult>>> bookPassengers(Map<String, ? extends Collection<Passenger>> passengersByRegion)
+    {
+        Map<String, List<CompletableFuture<BookingResult>>> bookings = new HashMap<String, List<CompletableFuture<BookingResult>>>();
+        for(Map.Entry<String, ? extends Collection<Passenger>> batch : passengersByRegion.entrySet())
+        {
+            bookings.put(batch.getKey(), bookPassengers(batch.getValue(), batch.getKey()));
+        }
+        return bookings;
+    }
     /**
      * Gets the number of non-completed bookings that are awaiting a driver from dispatch
      *
      * Once a driver is given to a booking, the value in this counter should be reduced by one
      *
+     * This counts both bookings still waiting for an active spot in their region, and active bookings
+     * that are waiting for a driver.
+     *
      * @return Number of bookings awaiting driver, across ALL regions
      */
-    public int getBookingsAwaitingDriver() //need to implement
+    public int getBookingsAwaitingDriver()
     {
-        int bookingCount = 0;
+        return (int)(metrics.getPending() + metrics.getWaitingForDriver());
+    }
+    /**
+     * Gets the number of drivers sitting idle, waiting for a booking
+     *
+     * @return Number of idle drivers
+     */
+    public int getIdleDriverCount()
+    {
+        int idle = idleDrivers.getIdleDriverCount();
+        if(batchMatcher != null)
+            idle += batchMatcher.getIdleDriverCount();
+        if(regionDriverPools)
+        {
+            for(NuberRegion region : regionOrder)
+                idle += region.getDriverPool().getIdleDriverCount();
+            for(NuberRegion region : drainingRegions)
+                idle += region.getDriverPool().getIdleDriverCount();
+        }
+        return idle;
+    }
+    /**
+     * Getter method for the metrics of this dispatch, which are also registered with JMX.
+     *
+     * @return The dispatch's metrics
+     */
+    public DispatchMetrics getMetrics(){return metrics;}
+    /**
+     * Reads the current metrics of this dispatch and each of its regions.
+     *
+     * @return A snapshot of the metrics
+     */
+    public MetricsSnapshot getMetricsSnapshot()
+    {
+        return metrics.snapshot();
+    }
+    /**
+     * Getter method for all of this dispatch's regions.
+     *
+     * @return The regions
+     */
+    Collection<NuberRegion> getRegions(){return regions.values();}
+    /**
+     * Getter method for the metrics of the regions that have been removed.
+     *
+     * @return The removed regions' metrics
+     */
+    Collection<RegionMetrics> getRemovedRegionMetrics(){return removedRegionMetrics;}
+    /**
+     * Getter method for one of this dispatch's regions.
+     *
+     * @param name The region's name
+     * @return The region, or null if there is no region with that name
+     */
+    NuberRegion getRegion(String name){return regions.get(name);}
+    /**
+     * Getter method for the names of this dispatch's regions.
+     *
+     * @return The region names
+     */
+    Collection<String> getRegionNames(){return regions.keySet();}
+    /**
+     * Gets the latency histograms of the bookings completed in each region
+     *
+     * @return The latencies of each region, keyed by region name
+     */
+    public Map<String, BookingLatencies> getLatencies()
+    {
+        Map<String, BookingLatencies> latencies = new HashMap<String, BookingLatencies>();
         for(NuberRegion region : regions.values())
         {
-            bookingCount += region.getBookingQueueLength();
+            latencies.put(region.getRegionName(), region.getLatencies());
+        }
+        return latencies;
+    }
+    /**
+     * Gets the latencies of the bookings completed in each priority class, totalled across all regions.
+     *
+     * @return A copy of the latencies for each class, that won't change as more bookings complete
+     */
+    public Map<BookingPriority, BookingLatencies> getLatenciesByPriority()
+    {
+        Map<BookingPriority, BookingLatencies> latencies = new EnumMap<BookingPriority, BookingLatencies>(BookingPriority.class);
+        for(BookingPriority priority : BookingPriority.values())
+        {
+            BookingLatencies total = new BookingLatencies();
+            for(NuberRegion region : regions.values())
+                total.add(region.getLatencies(priority));
+            latencies.put(priority, total);
         }
-        return bookingCount;
+        return latencies;
     }
     /**
      * Populates the regions map with regions from the regionInfo map.
@@ -133,23 +884,245 @@ public class NuberDispatch
     {
         for(String key : regionInfo.keySet())
         {
-            if(regions.containsKey(key))
-            {
-                continue;
-            }
-            NuberRegion region = new NuberRegion(this,key,regionInfo.get(key));
-            regions.put(key,region);
+            addRegion(key, regionInfo.get(key));
         }
     }
+    /**
+     * Adds a new region while the dispatch is running. It can take bookings as soon as this returns.
+     *
+     * If regions keep their own drivers, the new region starts without any, and steals from the other
+     * regions until drivers are added to it or freed in it.
+     *
+     * @param regionName The region's name, which must not already be in use
+     * @param maxSimultaneousJobs The maximum number of simultaneous bookings the region is allowed to process
+     * @return true if the region was added, false if there already is a region with that name or the dispatch
+     * has been told to shutdown
+     */
+    public synchronized boolean addRegion(String regionName, int maxSimultaneousJobs)
+    {
+        if(shutdown || regions.containsKey(regionName))
+            return false;
+        NuberRegion region = new NuberRegion(this,regionName,maxSimultaneousJobs);
+        regions.put(regionName,region);
+        List<NuberRegion> order = new ArrayList<NuberRegion>(regionOrder);
+        order.add(region);
+        regionOrder = Collections.unmodifiableList(order);
+        if(config.isRegisterMBeans())
+        {
+            ObjectName name = registerMBean("nuber:type=Region,dispatch=" + ObjectName.quote(dispatchName)
+                    + ",name=" + ObjectName.quote(regionName), region.getMetrics());
+            if(name != null)
+                regionMBeans.put(regionName, name);
+        }
+        return true;
+    }
+    /**
+     * Removes a region while the dispatch is running. The region stops accepting bookings straight away,
+     * in the same way as if it had been told to shutdown, and finishes the bookings it already has.
+     *
+     * If regions keep their own drivers, the region's idle drivers join the other regions, as does each of
+     * its busy drivers once it is no longer needed by the region's last bookings.
+     *
+     * @param regionName The region's name
+     * @return A future that completes once the region has finished its bookings, or null if there is no
+     * region with that name
+     */
+    public synchronized CompletableFuture<Void> removeRegion(String regionName)
+    {
+        NuberRegion region = regions.remove(regionName);
+        if(region == null)
+            return null;
+        removedRegionMetrics.add(region.getMetrics());
+        drainingRegions.add(region);
+        List<NuberRegion> order = new ArrayList<NuberRegion>(regionOrder);
+        order.remove(region);
+        regionOrder = Collections.unmodifiableList(order);
+        ObjectName mbean = regionMBeans.remove(regionName);
+        if(mbean != null)
+        {
+            unregisterMBean(mbean);
+            registeredMBeans.remove(mbean);
+        }
+        region.shutdown();
+        if(regionDriverPools)
+            rehomeIdleDrivers(region);
+        return region.getTermination().thenRun(() -> {
+            drainingRegions.remove(region);
+            if(regionDriverPools)
+                rehomeIdleDrivers(region);
+        });
+    }
+    /**
+     * Moves the idle drivers of a removed region to the regions still running, if there are any
+     *
+     * @param removed The removed region
+     */
+    private void rehomeIdleDrivers(NuberRegion removed)
+    {
+        if(regionOrder.isEmpty())
+            return;
+        Driver driver;
+        while((driver = removed.getDriverPool().pollIdleDriver(null)) != null)
+            addDriver(driver);
+    }
+    /**
+     * Changes the maximum number of bookings a region can have active at once, while it is running.
+     * See NuberRegion.setMaxSimultaneousJobs(). If the dispatch adjusts regions to demand, it carries on
+     * adjusting from the new limit.
+     *
+     * @param regionName The region's name
+     * @param maxSimultaneousJobs The new limit, at least 1
+     * @return true if the region was resized, false if there is no region with that name
+     */
+    public boolean resizeRegion(String regionName, int maxSimultaneousJobs)
+    {
+        NuberRegion region = regions.get(regionName);
+        if(region == null)
+            return false;
+        region.setMaxSimultaneousJobs(maxSimultaneousJobs);
+        return true;
+    }
     /**
      * Tells all regions to finish existing bookings already allocated, and stop accepting new bookings
+     *
+     * Returns straight away. Use awaitTermination() to wait for the bookings to finish.
      */
-    public void shutdown()
+    public synchronized void shutdown()
     {
         for(String key : regions.keySet())
         {
             regions.get(key).shutdown();
         }
+        unregisterMBeans();
+        if(!shutdown && journal != null)
+        {
+            //once every region has finished, nothing more is written to the journal
+            getTermination().thenRun(journal::close);
+        }
+        shutdown = true;
+    }
+    /**
+     * Gets a future that completes once every region has finished, including removed regions that are still
+     * finishing their bookings. It only completes once the dispatch has been told to shutdown.
+     *
+     * @return The dispatch's termination future
+     */
+    CompletableFuture<Void> getTermination()
+    {
+        List<CompletableFuture<Void>> terminations = new ArrayList<CompletableFuture<Void>>();
+        for(NuberRegion region : regions.values())
+            terminations.add(region.getTermination());
+        for(NuberRegion region : drainingRegions)
+            terminations.add(region.getTermination());
+        return CompletableFuture.allOf(terminations.toArray(new CompletableFuture<?>[0]));
+    }
+    /**
+     * Shuts every region down, and waits up to a time limit for their bookings to finish.
+     *
+     * If the time limit passes first, every booking that doesn't have a driver yet is cancelled, whether
+     * it is waiting to start or waiting for a driver. Bookings already on a trip are left to finish in the
+     * background and counted as timed out, so the shutdown returns soon after the time limit whatever the
+     * bookings are doing.
+     *
+     * @param timeout How long to wait for the bookings to finish
+     * @param unit The unit of the timeout
+     * @return What happened to the bookings that were still running when the shutdown started
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public ShutdownReport shutdown(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long start = System.nanoTime();
+        long completedBefore = metrics.getCompleted();
+        long cancelledBefore = metrics.getCancelled();
+        shutdown();
+        boolean drained = awaitTermination(timeout, unit);
+        if(!drained)
+        {
+            List<CompletableFuture<Void>> cancellations = new ArrayList<CompletableFuture<Void>>();
+            for(NuberRegion region : regions.values())
+                cancellations.add(region.cancelWaiting());
+            for(NuberRegion region : drainingRegions)
+                cancellations.add(region.cancelWaiting());
+            //cancelled bookings don't have a driver to wait for, so they finish straight away
+            CompletableFuture.allOf(cancellations.toArray(new CompletableFuture<?>[0])).join();
+        }
+        return new ShutdownReport(drained,
+                metrics.getCompleted() - completedBefore,
+                metrics.getCancelled() - cancelledBefore,
+                drained ? 0 : metrics.getActive(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+    /**
+     * Waits for every region to finish its bookings, once the dispatch has been told to shutdown.
+     *
+     * @param timeout How long to wait
+     * @param unit The unit of the timeout
+     * @return true if every region finished, false if the timeout passed first
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        try
+        {
+            getTermination().get(timeout, unit);
+            return true;
+        }catch (TimeoutException e)
+        {
+            return false;
+        }catch (ExecutionException e)
+        {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+    /**
+     * Registers metrics with the platform MBean server. Failing to register is not fatal, as the
+     * metrics are still available through getMetricsSnapshot().
+     *
+     * @param name The MBean's object name
+     * @param mbean The metrics to register
+     * @return The MBean's object name, or null if it couldn't be registered
+     */
+    private ObjectName registerMBean(String name, Object mbean)
+    {
+        try
+        {
+            ObjectName objectName = new ObjectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+            registeredMBeans.add(objectName);
+            return objectName;
+        }catch (JMException e)
+        {
+            System.err.println("Couldn't register " + name + " with JMX: " + e);
+            return null;
+        }
+    }
+    /**
+     * Removes every MBean this dispatch registered
+     */
+    private void unregisterMBeans()
+    {
+        //starting up the platform MBean server takes a while, so don't when there is nothing to unregister
+        if(registeredMBeans.isEmpty())
+            return;
+        for(ObjectName name : registeredMBeans)
+            unregisterMBean(name);
+        registeredMBeans.clear();
+        regionMBeans.clear();
+    }
+    /**
+     * Removes one MBean this dispatch registered
+     *
+     * @param name The MBean's object name
+     */
+    private void unregisterMBean(ObjectName name)
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }catch (JMException e)
+        {
+            //already gone
+        }
     }
 
 }
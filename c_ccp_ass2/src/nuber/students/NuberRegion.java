@@ -1,6 +1,17 @@
 package nuber.students;
 
+import nuber.strtk001_utilities.Clock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A single Nuber region that operates independently of other regions, other than getting
@@ -11,13 +22,105 @@ import java.util.concurrent.*;
  * active count, the booking is accepted, but must wait until a position is available, and
  * a driver is available.
  *
- * Bookings do NOT have to be completed in FIFO order.
+ * Bookings do NOT have to be completed in FIFO order. Waiting bookings are started in order of
+ * their priority class and deadline, and a booking still waiting when its deadline passes is
+ * cancelled without taking a driver.
+ *
+ * Shutting a region down stops it accepting bookings, and it finishes the ones it already has.
+ * If that takes too long, the bookings that don't have a driver yet can be cancelled.
+ *
+ * maxSimultaneousJobs can be changed while the region is running. Raising it starts waiting bookings
+ * straight away, and lowering it lets the bookings already running finish, only starting more once
+ * the number running has fallen below the new limit.
  *
  * @author james
  *
  */
 public class NuberRegion
 {
+    /**
+     * A booking that has been accepted but is waiting for an active spot.
+     *
+     * Pending bookings are ranked by the earlier of their deadline and the time they were made plus their
+     * priority class's head start, with ties in the order they were accepted.
+     */
+    private class PendingBooking implements Comparable<PendingBooking>
+    {
+        private final Booking booking;
+        /**
+         * Starts the booking, which hands its spot back through finishActive() once it is over
+         */
+        private final Runnable start;
+        private final CompletableFuture<BookingResult> result;
+        private final long rank;
+        private final long sequence = nextSequence.getAndIncrement();
+        /**
+         * Set by whichever of starting the booking, cancelling it or its deadline passing gets to it first
+         */
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        /**
+         * Expires the booking once its deadline passes, or null if it has no deadline
+         */
+        private volatile CompletableFuture<Void> expiry;
+
+        private PendingBooking(Booking booking, Runnable start, CompletableFuture<BookingResult> result)
+        {
+            this.booking = booking;
+            this.start = start;
+            this.result = result;
+            long aged = booking.getCreatedNanos() + booking.getPriority().getAgingOffsetMillis() * 1_000_000;
+            rank = Math.min(aged, booking.getDeadlineNanos());
+        }
+
+        /**
+         * Claims the booking, so nothing else can start, cancel or expire it
+         *
+         * @return false if something else claimed it first
+         */
+        private boolean claim()
+        {
+            if(!claimed.compareAndSet(false, true))
+                return false;
+            CompletableFuture<Void> timer = expiry;
+            if(timer != null)
+                timer.cancel(false);
+            return true;
+        }
+
+        @Override
+        public int compareTo(PendingBooking other)
+        {
+            if (rank != other.rank)
+                return Long.compare(rank, other.rank);
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * A semaphore whose permits can be taken away without waiting for them to be free
+     */
+    private static class ResizableSemaphore extends Semaphore
+    {
+        private static final long serialVersionUID = 1L;
+
+        private ResizableSemaphore(int permits)
+        {
+            super(permits);
+        }
+
+        /**
+         * Takes permits away, leaving fewer than none free if they are in use, so they aren't given back
+         * until enough have been released
+         *
+         * @param reduction The number of permits to take away
+         */
+        @Override
+        protected void reducePermits(int reduction)
+        {
+            super.reducePermits(reduction);
+        }
+    }
+
     /**
      * reference to the central dispatch
      */
@@ -26,19 +129,110 @@ public class NuberRegion
      * Name of this region
      */
     private String regionName;
-    private int maxSimultaneousJobs;
+    private volatile int maxSimultaneousJobs;
     /**
      * our threadpool to execute our tasks concurrently
      */
     private ExecutorService threadPool;
     /**
-     * The queue to hold the tasks for the threadpool to execute
+     * The bookings that have been accepted but are waiting for an active spot, most urgent first
+     */
+    private PriorityBlockingQueue<PendingBooking> bookingsQueue = new PriorityBlockingQueue<PendingBooking>();
+    /**
+     * Keeps pending bookings with the same rank in the order they were accepted
+     */
+    private AtomicLong nextSequence = new AtomicLong();
+    /**
+     * The clock deadlines are checked against
+     */
+    private Clock clock;
+    /**
+     * How this region runs its bookings
+     */
+    private ExecutionMode executionMode;
+    /**
+     * One permit for each active spot, so no more than maxSimultaneousJobs bookings run at once
      */
-    private BlockingQueue<Runnable> bookingsQueue;
+    private ResizableSemaphore activeBookings;
     /**
-     * The amount of threads that the threadpool will instantiate initially.
+     * One permit for each booking that can still be added to bookingsQueue
      */
-    private final int CORE_SIZE = 3;
+    private Semaphore pendingSpots;
+    /**
+     * The most bookings bookingsQueue can hold at once
+     */
+    private int pendingBookingLimit;
+    /**
+     * What to do with a booking when bookingsQueue is at the pending booking limit
+     */
+    private BackpressurePolicy backpressurePolicy;
+    /**
+     * How long a booking waits for a pending spot under the TIMEOUT policy, in milliseconds
+     */
+    private long admissionTimeoutMillis;
+    /**
+     * Latency histograms of the bookings this region has completed
+     */
+    private BookingLatencies latencies = new BookingLatencies();
+    /**
+     * Latency histograms of the bookings this region has completed, for each priority class
+     */
+    private Map<BookingPriority, BookingLatencies> priorityLatencies = new EnumMap<BookingPriority, BookingLatencies>(BookingPriority.class);
+    /**
+     * Counters of what this region's bookings are doing
+     */
+    private RegionMetrics metrics = new RegionMetrics(this);
+    /**
+     * The drivers based in this region, or null if the region uses the dispatch's shared pool
+     */
+    private DriverPool driverPool;
+    /**
+     * Where finished bookings are recorded, or null if they aren't
+     */
+    private ResultStore resultStore;
+    /**
+     * This region's index in resultStore
+     */
+    private int resultStoreRegion;
+    /**
+     * Where the progress of this region's bookings is journalled, or null if it isn't
+     */
+    private BookingJournal journal;
+    /**
+     * Adjusts maxSimultaneousJobs as demand changes, or null if it is fixed
+     */
+    private ConcurrencyController concurrencyController;
+    /**
+     * Groups this region's bookings into shared trips, or null if every booking gets a driver of its own
+     */
+    private RidePooler ridePooler;
+    /**
+     * The number of bookings being admitted right now, plus SHUTDOWN once the region has been told to shutdown.
+     * Bookings are only admitted while SHUTDOWN isn't set, so once it is no booking can slip in after the
+     * region has drained.
+     */
+    private AtomicInteger admissions = new AtomicInteger();
+    private static final int SHUTDOWN = 1 << 30;
+    /**
+     * How often a booking waiting for a pending spot checks whether the region has been told to shutdown, in nanoseconds
+     */
+    private static final long ADMISSION_POLL_NANOS = 10_000_000;
+    /**
+     * The number of accepted bookings that haven't finished yet
+     */
+    private AtomicInteger unfinished = new AtomicInteger();
+    /**
+     * The bookings holding an active spot, and the futures their results will be given through
+     */
+    private Map<Booking, CompletableFuture<BookingResult>> runningBookings = new ConcurrentHashMap<Booking, CompletableFuture<BookingResult>>();
+    /**
+     * Set once bookings without a driver are being cancelled rather than run
+     */
+    private volatile boolean cancelling = false;
+    /**
+     * Completed once the region has been told to shutdown and every booking it accepted has finished
+     */
+    private CompletableFuture<Void> termination = new CompletableFuture<Void>();
     /**
      * The life time of an idle thread in seconds
      */
@@ -55,13 +249,44 @@ public class NuberRegion
         this.dispatch = dispatch;
         this.regionName = regionName;
         this.maxSimultaneousJobs = maxSimultaneousJobs;
-        bookingsQueue = new ArrayBlockingQueue<Runnable>(maxSimultaneousJobs);
-        threadPool = new ThreadPoolExecutor(
-                CORE_SIZE,
-                maxSimultaneousJobs,
-                LIFETIME,
-                TimeUnit.SECONDS,
-                bookingsQueue);
+        DispatchConfig config = dispatch.getConfig();
+        clock = dispatch.getClock();
+        for(BookingPriority priority : BookingPriority.values())
+            priorityLatencies.put(priority, new BookingLatencies());
+        activeBookings = new ResizableSemaphore(maxSimultaneousJobs);
+        pendingBookingLimit = config.getPendingBookingLimit();
+        pendingSpots = new Semaphore(pendingBookingLimit);
+        backpressurePolicy = config.getBackpressurePolicy();
+        admissionTimeoutMillis = config.getAdmissionTimeoutMillis();
+        if(dispatch.hasRegionDriverPools())
+            driverPool = dispatch.newDriverPool();
+        resultStore = config.getResultStore();
+        if(resultStore != null)
+            resultStoreRegion = resultStore.registerRegion(regionName);
+        journal = dispatch.getJournal();
+        concurrencyController = dispatch.getConcurrencyController();
+        if(config.getVehicleCapacity() > 1)
+            ridePooler = new RidePooler(dispatch, this, config.getVehicleCapacity(), config.getPoolingRadius());
+        executionMode = config.getExecutionMode();
+        //simulated time only moves on once nothing is left to do, which a thread blocked on a driver or a sleep never signals
+        if(config.getClock().isSimulated())
+            executionMode = ExecutionMode.ASYNC;
+        if(executionMode == ExecutionMode.VIRTUAL)
+        {
+            threadPool = Executors.newVirtualThreadPerTaskExecutor();
+        }
+        else
+        {
+            //bookings are only handed to the pool once they hold an active spot, so every thread can be a core thread
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                    maxSimultaneousJobs,
+                    maxSimultaneousJobs,
+                    LIFETIME,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            pool.allowCoreThreadTimeOut(true);
+            threadPool = pool;
+        }
     }
     /**
      * Creates a booking for given passenger, and adds the booking to the
@@ -71,18 +296,569 @@ public class NuberRegion
      * If the region has been told to shutdown, this function should return null, and log a message to the
      * console that the booking was rejected.
      *
+     * If the region already holds the configured limit of pending bookings, the backpressure policy decides
+     * whether the caller waits for room or the booking is refused with a BookingRejectedException.
+     *
+     * In ASYNC mode this is the same as bookPassengerAsync().
+     *
      * @param waitingPassenger
      * @return a Future that will provide the final BookingResult object from the completed booking
+     * @throws BookingRejectedException if there was no room for the booking
+     */
+    public CompletableFuture<BookingResult> bookPassenger(Passenger waitingPassenger)
+    {
+        if(executionMode == ExecutionMode.ASYNC)
+            return bookPassengerAsync(waitingPassenger);
+
+        List<CompletableFuture<BookingResult>> results = accept(
+                Collections.singletonList(new Booking(dispatch,waitingPassenger,this)), false);
+        return results == null ? null : results.get(0);
+    }
+    /**
+     * Creates a booking for given passenger in the same way as bookPassenger(), but runs it as a chain
+     * of stages that never holds a thread while it waits for a driver or a trip is underway.
+     *
+     * The booking still counts against maxSimultaneousJobs from the moment it starts until the passenger
+     * arrives.
+     *
+     * @param waitingPassenger
+     * @return a future that completes with the BookingResult once the passenger has arrived, or null if
+     * the region has been told to shutdown
+     * @throws BookingRejectedException if there was no room for the booking
+     */
+    public CompletableFuture<BookingResult> bookPassengerAsync(Passenger waitingPassenger)
+    {
+        List<CompletableFuture<BookingResult>> results = accept(
+                Collections.singletonList(new Booking(dispatch,waitingPassenger,this)), true);
+        return results == null ? null : results.get(0);
+    }
+    /**
+     * Creates bookings for a whole batch of passengers at once.
+     *
+     * The batch is admitted in one step, so either every booking is accepted or none are, and pending
+     * bookings are only started once the whole batch has been queued. The bookings run in the same way
+     * as bookPassenger() would run them.
+     *
+     * @param waitingPassengers The passengers to book
+     * @return the futures for each booking, in the same order as the passengers, or null if the region has
+     * been told to shutdown
+     * @throws BookingRejectedException if there was no room for the whole batch
+     */
+    public List<CompletableFuture<BookingResult>> bookPassengers(Collection<Passenger> waitingPassengers)
+    {
+        List<Booking> bookings = new ArrayList<Booking>(waitingPassengers.size());
+        for(Passenger waitingPassenger : waitingPassengers)
+            bookings.add(new Booking(dispatch,waitingPassenger,this));
+        return accept(bookings, executionMode == ExecutionMode.ASYNC);
+    }
+    /**
+     * Books a passenger again whose booking was left unfinished in the journal before a restart. It is accepted
+     * and run in the same way as bookPassenger() would, and starts from the beginning, however far it had got.
+     *
+     * @param recovered The booking found in the journal
+     * @return a Future that will provide the final BookingResult object from the completed booking, or null if
+     * the region has been told to shutdown
+     * @throws BookingRejectedException if there was no room for the booking
+     */
+    CompletableFuture<BookingResult> recoverBooking(BookingJournal.RecoveredBooking recovered)
+    {
+        Booking booking = new Booking(dispatch,recovered.passenger,this);
+        booking.setRecoveredFrom(recovered.bookingId);
+        dispatch.logEvent(booking,"Recovered booking " + recovered.bookingId + " from the journal, was in " + recovered.getPhase() + ".");
+        List<CompletableFuture<BookingResult>> results = accept(Collections.singletonList(booking),
+                executionMode == ExecutionMode.ASYNC);
+        return results == null ? null : results.get(0);
+    }
+    /**
+     * Admits new bookings and adds them to the pending bookings, or logs them as rejected if the region has
+     * been told to shutdown.
+     *
+     * @param bookings The new bookings, which are admitted in one step
+     * @param staged Whether to run the bookings as chains of stages rather than on the thread pool
+     * @return The futures for each booking, or null if the region has been told to shutdown
+     * @throws BookingRejectedException if there was no room for the bookings
+     */
+    private List<CompletableFuture<BookingResult>> accept(List<Booking> bookings, boolean staged)
+    {
+        if(!beginAdmission())
+        {
+            for(Booking booking : bookings)
+                dispatch.logEvent(booking,"Rejected booking, region is shut down.");
+            metrics.bookingsRejected(bookings.size());
+            return null;
+        }
+        List<CompletableFuture<BookingResult>> results = new ArrayList<CompletableFuture<BookingResult>>(bookings.size());
+        try
+        {
+            admit(bookings.size());
+            for(Booking booking : bookings)
+                results.add(enqueue(booking, staged));
+        }finally
+        {
+            endAdmission();
+        }
+        startPendingBookings();
+        if(concurrencyController != null)
+            concurrencyController.wake();
+        return results;
+    }
+    /**
+     * Registers a thread as admitting bookings, unless the region has been told to shutdown
+     *
+     * @return false if the region has been told to shutdown
+     */
+    private boolean beginAdmission()
+    {
+        int state;
+        do
+        {
+            state = admissions.get();
+            if(state >= SHUTDOWN)
+                return false;
+        } while(!admissions.compareAndSet(state, state + 1));
+        return true;
+    }
+    /**
+     * Called once a thread registered by beginAdmission() has finished admitting its bookings
+     */
+    private void endAdmission()
+    {
+        if(admissions.decrementAndGet() == SHUTDOWN)
+            terminateWhenDrained();
+    }
+    /**
+     * @return true once the region has been told to shutdown
+     */
+    private boolean isShutdown(){return admissions.get() >= SHUTDOWN;}
+    /**
+     * Adds an accepted booking to the pending bookings. It will start once startPendingBookings() finds
+     * it an active spot, unless its deadline passes first.
+     *
+     * @param booking The booking, which already holds a pending spot
+     * @param staged Whether to run the booking as a chain of stages rather than on the thread pool
+     * @return The future that will be completed with the booking's result
+     */
+    private CompletableFuture<BookingResult> enqueue(Booking booking, boolean staged)
+    {
+        CompletableFuture<BookingResult> result = new CompletableFuture<BookingResult>();
+        PendingBooking pending;
+        if(staged)
+            pending = new PendingBooking(booking, () -> runStaged(booking, result), result);
+        else
+            pending = new PendingBooking(booking, () -> runOnPool(booking, result), result);
+        unfinished.incrementAndGet();
+        if(journal != null)
+            booking.journalCreated(journal, regionName);
+        bookingsQueue.add(pending);
+        if(booking.getDeadlineNanos() != Long.MAX_VALUE)
+        {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(booking.getDeadlineNanos() - clock.nanoTime());
+            pending.expiry = clock.delay(remainingMillis);
+            pending.expiry.thenRun(() -> expire(pending));
+        }
+        //cancelling the returned future cancels the booking, wherever it has got to
+        result.whenComplete((r, e) -> {
+            if(result.isCancelled())
+                cancel(pending);
+        });
+        return result;
+    }
+    /**
+     * Cancels a booking whose future was cancelled. One still waiting to start is taken out of the
+     * pending bookings, and one that has started ends as soon as it can, handing back its driver.
+     *
+     * @param pending The booking
+     */
+    private void cancel(PendingBooking pending)
+    {
+        if(!pending.claim())
+        {
+            pending.booking.cancel(BookingOutcome.CANCELLED);
+            return;
+        }
+        bookingsQueue.remove(pending);
+        pendingSpots.release();
+        metrics.bookingCancelled(false);
+        dispatch.logEvent(pending.booking,"Cancelled before starting.");
+        if(resultStore != null)
+        {
+            long queued = clock.nanoTime() - pending.booking.getCreatedNanos();
+            resultStore.append(resultStoreRegion, pending.booking.getBookingID(), BookingOutcome.CANCELLED,
+                    pending.booking.getPriority(), queued, 0, 0, 0, queued);
+        }
+        pending.booking.journalFinished(BookingOutcome.CANCELLED);
+        bookingFinished();
+    }
+    /**
+     * Cancels a booking whose deadline has passed, if it is still waiting to start
+     *
+     * @param pending The booking
+     */
+    private void expire(PendingBooking pending)
+    {
+        if(!pending.claim())
+            return;
+        bookingsQueue.remove(pending);
+        pendingSpots.release();
+        missDeadline(pending);
+    }
+    /**
+     * Completes a booking that missed its deadline before it started
+     *
+     * @param pending The booking, which no longer holds a pending or active spot
+     */
+    private void missDeadline(PendingBooking pending)
+    {
+        metrics.deadlineMissed();
+        BookingResult result = pending.booking.missDeadline();
+        store(pending.booking, result);
+        pending.result.complete(result);
+        bookingFinished();
+    }
+    /**
+     * Takes pending spots for new bookings, applying the backpressure policy if there are not enough free.
+     *
+     * @param count The number of spots needed
+     * @throws BookingRejectedException if the spots could not be taken
+     */
+    private void admit(int count)
+    {
+        try
+        {
+            takePendingSpots(count);
+        }catch (BookingRejectedException e)
+        {
+            metrics.bookingsRejected(count);
+            throw e;
+        }
+        metrics.bookingsSubmitted(count);
+    }
+    /**
+     * Takes pending spots for new bookings, applying the backpressure policy if there are not enough free.
+     *
+     * @param count The number of spots needed
+     * @throws BookingRejectedException if the spots could not be taken
+     */
+    private void takePendingSpots(int count)
+    {
+        if(count > pendingBookingLimit)
+            throw new BookingRejectedException(regionName, backpressurePolicy,
+                    count + " bookings is more than " + regionName + " can ever hold");
+        if(pendingSpots.tryAcquire(count))
+            return;
+        try
+        {
+            switch (backpressurePolicy)
+            {
+                case BLOCK:
+                    awaitPendingSpots(count, Long.MAX_VALUE);
+                    return;
+                case TIMEOUT:
+                    if(awaitPendingSpots(count, TimeUnit.MILLISECONDS.toNanos(admissionTimeoutMillis)))
+                        return;
+                    throw new BookingRejectedException(regionName, backpressurePolicy,
+                            "No room for booking in " + regionName + " after " + admissionTimeoutMillis + "ms");
+                default:
+                    throw new BookingRejectedException(regionName, backpressurePolicy,
+                            "No room for booking in " + regionName);
+            }
+        }catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new BookingRejectedException(regionName, backpressurePolicy,
+                    "Interrupted waiting for room in " + regionName);
+        }
+    }
+    /**
+     * Waits for pending spots to come free, giving up if the region is told to shutdown in the meantime.
+     *
+     * @param count The number of spots needed
+     * @param timeoutNanos How long to wait for, or Long.MAX_VALUE to wait for as long as it takes
+     * @return true if the spots were taken, false if the wait timed out
+     * @throws BookingRejectedException if the region was told to shutdown while waiting
+     */
+    private boolean awaitPendingSpots(int count, long timeoutNanos) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while(true)
+        {
+            if(isShutdown())
+                throw new BookingRejectedException(regionName, backpressurePolicy,
+                        regionName + " was shut down while waiting for room");
+            long wait = ADMISSION_POLL_NANOS;
+            if(timeoutNanos != Long.MAX_VALUE)
+            {
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0)
+                    return false;
+                wait = Math.min(wait, remaining);
+            }
+            if(pendingSpots.tryAcquire(count, wait, TimeUnit.NANOSECONDS))
+                return true;
+        }
+    }
+    /**
+     * Starts pending bookings for as long as there are free active spots.
+     *
+     * Called whenever a booking is added, and whenever an active booking finishes. Once bookings are being
+     * cancelled, pending bookings are cancelled instead of started.
+     */
+    private void startPendingBookings()
+    {
+        if(cancelling)
+        {
+            cancelPendingBookings();
+            return;
+        }
+        while(!bookingsQueue.isEmpty() && activeBookings.tryAcquire())
+        {
+            PendingBooking pending = bookingsQueue.poll();
+            //the queue may have been emptied by another thread, or the booking's deadline got to it first
+            if(pending == null || !pending.claim())
+            {
+                activeBookings.release();
+                continue;
+            }
+            pendingSpots.release();
+            if(clock.nanoTime() >= pending.booking.getDeadlineNanos())
+            {
+                activeBookings.release();
+                missDeadline(pending);
+                continue;
+            }
+            metrics.bookingStarted();
+            runningBookings.put(pending.booking, pending.result);
+            //cancelWaiting() may have already looked through the running bookings
+            if(cancelling)
+                pending.booking.cancelWaiting(BookingOutcome.CANCELLED);
+            pending.start.run();
+        }
+    }
+    /**
+     * Cancels every booking that is still waiting to start
+     *
+     * @return The results of the bookings that were cancelled
      */
-    public Future<BookingResult> bookPassenger(Passenger waitingPassenger)
+    private List<CompletableFuture<BookingResult>> cancelPendingBookings()
+    {
+        List<CompletableFuture<BookingResult>> cancelled = new ArrayList<CompletableFuture<BookingResult>>();
+        PendingBooking pending;
+        while((pending = bookingsQueue.poll()) != null)
+        {
+            if(!pending.claim())
+                continue;
+            pendingSpots.release();
+            metrics.bookingCancelled(false);
+            BookingResult result = pending.booking.cancelBeforeStart();
+            store(pending.booking, result);
+            pending.result.complete(result);
+            cancelled.add(pending.result);
+            bookingFinished();
+        }
+        return cancelled;
+    }
+    /**
+     * Cancels every booking that doesn't have a driver yet, both those waiting to start and those waiting
+     * for a driver, and cancels any booking that would otherwise start from now on. Bookings that already
+     * have a driver finish their trips.
+     *
+     * Used to cut a shutdown short once it has taken too long.
+     *
+     * @return A future that completes once every cancelled booking has finished
+     */
+    CompletableFuture<Void> cancelWaiting()
+    {
+        cancelling = true;
+        List<CompletableFuture<BookingResult>> cancelled = cancelPendingBookings();
+        for(Map.Entry<Booking, CompletableFuture<BookingResult>> running : runningBookings.entrySet())
+        {
+            if(running.getKey().cancelWaiting(BookingOutcome.CANCELLED))
+                cancelled.add(running.getValue());
+        }
+        //however the bookings ended, they are over
+        return CompletableFuture.allOf(cancelled.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null);
+    }
+    /**
+     * Times out every running booking that is still waiting for a driver, once every driver has gone off shift.
+     * Bookings that start later time out as they ask for a driver.
+     */
+    void timeOutWaitingForDrivers()
+    {
+        for(Booking booking : runningBookings.keySet())
+        {
+            //a driver may have started a shift since
+            if(!dispatch.isOutOfDrivers())
+                return;
+            booking.cancelWaiting(BookingOutcome.TIMED_OUT);
+        }
+    }
+    /**
+     * Runs a booking that holds an active spot on the thread pool.
+     *
+     * @param booking The booking to run
+     * @param result The future to complete with the booking's result
+     */
+    private void runOnPool(Booking booking, CompletableFuture<BookingResult> result)
     {
         try
         {
-            Booking booking = new Booking(dispatch,waitingPassenger);
-            return threadPool.submit(booking);
+            threadPool.execute(() -> {
+                BookingResult bookingResult = null;
+                Throwable failure = null;
+                try
+                {
+                    bookingResult = booking.call();
+                }catch (Throwable t)
+                {
+                    failure = t;
+                }
+                finishActive(booking, result, bookingResult, failure);
+            });
         }catch (RejectedExecutionException e)
         {
-            return null;
+            //the pool is only shut down once every booking has finished, so this should never happen
+            finishActive(booking, result, null, e);
+        }
+    }
+    /**
+     * Starts a booking as a chain of stages. A booking that fails before its first stage is returned
+     * still hands back its spot.
+     *
+     * @param booking The booking to run
+     * @param result The future to complete with the booking's result
+     */
+    private void runStaged(Booking booking, CompletableFuture<BookingResult> result)
+    {
+        CompletableFuture<BookingResult> stages;
+        try
+        {
+            stages = booking.callAsync();
+        }catch (Throwable t)
+        {
+            finishActive(booking, result, null, t);
+            return;
+        }
+        stages.whenComplete((r, e) -> finishActive(booking, result, r, e));
+    }
+    /**
+     * Called once an active booking is over. Hands its spot on to the next pending booking, and then
+     * completes the booking's future.
+     *
+     * @param booking The booking
+     * @param result The future to complete
+     * @param bookingResult The booking's result, if it succeeded
+     * @param failure What went wrong, if the booking failed
+     */
+    private void finishActive(Booking booking, CompletableFuture<BookingResult> result, BookingResult bookingResult, Throwable failure)
+    {
+        runningBookings.remove(booking);
+        activeBookings.release();
+        boolean cancelled = failure == null && bookingResult.outcome != BookingOutcome.COMPLETED;
+        if(!cancelled)
+            metrics.bookingFinished(failure == null);
+        else if(bookingResult.outcome == BookingOutcome.TIMED_OUT)
+            metrics.driverWaitTimedOut();
+        else
+            metrics.bookingCancelled(true);
+        startPendingBookings();
+        if(failure == null)
+        {
+            if(!cancelled)
+            {
+                latencies.record(bookingResult);
+                priorityLatencies.get(bookingResult.priority).record(bookingResult);
+            }
+            store(booking, bookingResult);
+            result.complete(bookingResult);
+        }
+        else
+        {
+            booking.journalFinished(null);
+            result.completeExceptionally(failure);
+        }
+        bookingFinished();
+    }
+    /**
+     * Records a finished booking in the result store, if there is one, and in the journal
+     *
+     * @param booking The booking
+     * @param result The booking's result
+     */
+    private void store(Booking booking, BookingResult result)
+    {
+        if(resultStore != null)
+            resultStore.append(resultStoreRegion, result);
+        booking.journalFinished(result.outcome);
+    }
+    /**
+     * Called once an accepted booking has finished, however it ended, and its future has been completed.
+     */
+    private void bookingFinished()
+    {
+        if(unfinished.decrementAndGet() == 0)
+            terminateWhenDrained();
+    }
+    /**
+     * Shuts the thread pool down and completes the termination future once the region has been told to
+     * shutdown and every booking has finished.
+     *
+     * Called whenever either of those might have just become true. Each is checked after the other
+     * changes, so whichever happens last sees both.
+     */
+    private void terminateWhenDrained()
+    {
+        if(admissions.get() == SHUTDOWN && unfinished.get() == 0)
+        {
+            threadPool.shutdown();
+            termination.complete(null);
+        }
+    }
+    /**
+     * Getter method for the maximum number of bookings that can be active at once.
+     *
+     * @return maxSimultaneousJobs
+     */
+    public int getMaxSimultaneousJobs(){return maxSimultaneousJobs;}
+    /**
+     * Changes the maximum number of bookings that can be active at once, while the region is running.
+     *
+     * Raising the limit starts waiting bookings straight away. Lowering it doesn't stop any booking that has
+     * already started, but no more start until the number running has fallen below the new limit. The
+     * thread pool is resized to match.
+     *
+     * @param maxSimultaneousJobs The new limit, at least 1
+     */
+    public synchronized void setMaxSimultaneousJobs(int maxSimultaneousJobs)
+    {
+        if(maxSimultaneousJobs < 1)
+            throw new IllegalArgumentException("maxSimultaneousJobs must be at least 1 but was " + maxSimultaneousJobs);
+        int change = maxSimultaneousJobs - this.maxSimultaneousJobs;
+        if(change == 0)
+            return;
+        this.maxSimultaneousJobs = maxSimultaneousJobs;
+        if(threadPool instanceof ThreadPoolExecutor)
+        {
+            //the core size can never be above the maximum, so which is changed first depends on the direction
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) threadPool;
+            if(change > 0)
+            {
+                pool.setMaximumPoolSize(maxSimultaneousJobs);
+                pool.setCorePoolSize(maxSimultaneousJobs);
+            }
+            else
+            {
+                pool.setCorePoolSize(maxSimultaneousJobs);
+                pool.setMaximumPoolSize(maxSimultaneousJobs);
+            }
+        }
+        if(change > 0)
+        {
+            activeBookings.release(change);
+            startPendingBookings();
+        }
+        else
+        {
+            activeBookings.reducePermits(-change);
         }
     }
     /**
@@ -91,12 +867,87 @@ public class NuberRegion
      * @return bookingQueue.Size()
      */
     public int getBookingQueueLength(){return bookingsQueue.size();}
+    /**
+     * Getter method for the number of accepted bookings that haven't finished yet.
+     *
+     * @return The number of unfinished bookings, whether waiting to start or active
+     */
+    int getUnfinishedBookings(){return unfinished.get();}
+    /**
+     * Getter method for the latency histograms of the bookings this region has completed.
+     *
+     * @return The region's latencies, which keep updating as more bookings complete
+     */
+    public BookingLatencies getLatencies(){return latencies;}
+    /**
+     * Getter method for the latency histograms of the bookings this region has completed in one priority class.
+     *
+     * @param priority The priority class
+     * @return The class's latencies, which keep updating as more bookings complete
+     */
+    public BookingLatencies getLatencies(BookingPriority priority){return priorityLatencies.get(priority);}
+    /**
+     * Getter method for the counters of what this region's bookings are doing.
+     *
+     * @return The region's metrics
+     */
+    public RegionMetrics getMetrics(){return metrics;}
+    /**
+     * Getter method for the name of this region.
+     *
+     * @return The region's name
+     */
+    public String getRegionName(){return regionName;}
+    /**
+     * Getter method for the drivers based in this region.
+     *
+     * @return The region's driver pool, or null if the region uses the dispatch's shared pool
+     */
+    DriverPool getDriverPool(){return driverPool;}
+    /**
+     * Getter method for what groups this region's bookings into shared trips.
+     *
+     * @return The region's ride pooler, or null if every booking gets a driver of its own
+     */
+    RidePooler getRidePooler(){return ridePooler;}
     /**
      * Called by dispatch to tell the region to complete its existing bookings and stop accepting any new bookings
+     *
+     * Bookings being admitted at the same moment are either accepted before the region stops, or rejected.
+     * A booking waiting for room under the BLOCK or TIMEOUT policy is rejected.
      */
     public void shutdown()
     {
-        threadPool.shutdown();
+        admissions.accumulateAndGet(SHUTDOWN, (state, flag) -> state | flag);
+        terminateWhenDrained();
+    }
+    /**
+     * Waits for the region to finish every booking it accepted, once it has been told to shutdown.
+     *
+     * @param timeout How long to wait
+     * @param unit The unit of the timeout
+     * @return true if the region finished, false if the timeout passed first
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        try
+        {
+            termination.get(timeout, unit);
+            return true;
+        }catch (TimeoutException e)
+        {
+            return false;
+        }catch (ExecutionException e)
+        {
+            throw new IllegalStateException(e.getCause());
+        }
     }
+    /**
+     * Getter method for the future that completes once the region has finished, after being told to shutdown.
+     *
+     * @return The region's termination future
+     */
+    CompletableFuture<Void> getTermination(){return termination;}
 
 }
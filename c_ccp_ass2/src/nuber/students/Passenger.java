@@ -3,10 +3,69 @@ package nuber.students;
 public class Passenger extends Person
 {
 
+    /**
+     * Where the passenger wants to go, or null if it isn't known
+     */
+    private volatile Location destination;
+    /**
+     * How urgently the passenger's bookings should be started
+     */
+    private BookingPriority priority = BookingPriority.STANDARD;
+    /**
+     * How long the passenger will wait for their booking to start before giving up, in milliseconds,
+     * or 0 to wait for as long as it takes
+     */
+    private long maxWaitMillis = 0;
+    /**
+     * How long the passenger will wait for a driver once their booking has started, in milliseconds,
+     * or 0 to wait as long as the dispatch's driver wait timeout
+     */
+    private long maxDriverWaitMillis = 0;
+
     public Passenger(String name, int maxSleep) {
         super(name, maxSleep);
     }
 
+    public Location getDestination()
+    {
+        return destination;
+    }
+
+    public void setDestination(Location destination)
+    {
+        this.destination = destination;
+    }
+
+    public BookingPriority getPriority()
+    {
+        return priority;
+    }
+
+    public void setPriority(BookingPriority priority)
+    {
+        this.priority = priority;
+    }
+
+    public long getMaxWaitMillis()
+    {
+        return maxWaitMillis;
+    }
+
+    public void setMaxWaitMillis(long maxWaitMillis)
+    {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    public long getMaxDriverWaitMillis()
+    {
+        return maxDriverWaitMillis;
+    }
+
+    public void setMaxDriverWaitMillis(long maxDriverWaitMillis)
+    {
+        this.maxDriverWaitMillis = maxDriverWaitMillis;
+    }
+
     public int getTravelTime()
     {
         return (int)(Math.random() * maxSleep);
@@ -1,24 +1,46 @@
 package nuber.students;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public abstract class Person
 {
 
     public final static String[] SAMPLE_NAMES = {"Bryan","Olivia","Vincent","Kenneth","Debra","Jack","Harold","Isabella","Jerry","Stephen","Larry","Ruth","Diane","Gerald","Brandon","Virginia","Helen","Gary","Noah","Michell","Alexis","Zachary","Gregory","Arthur","Dennis","Terry","Rose","Jeffrey","Jean","Jane","Brenda","Louis","Mary","Julia","Sandra","Catherine","Adam","Samantha","Amber","Ralp","Jacob","Raymond","Rachel","Kelly","Danielle","John","Melissa","Albert","Brian","Eugne","Jeremy","Nathan","Beverly","Margaret","Natalie","Charlotte","Ann","Betty","Randy","Tyler","Emma","Willie","Charles","Lisa","Anthony","Sara","Sean","James","Johnny","Jud","Evelyn","Theresa","Gloria","Emily","Denise","Frank","Steven","Jacqueline","Diana","Ronald","Kayla","Joe","Nicole","Scott","Henry","Lawrence","Ethan","Stephanie","Kevin","Kathleen","Angela","Joyce","Sarah","Benjamin","Carl","Cynthia","Nicholas","Andrea","Robert","Martha","Susan","Ryan","Alexander","Donna","Thomas","Brittany","Timothy","Hannah","Heather","Linda","Joan","Pamela","Maria","Kyle","Logan","Paul","Andrew","Dylan","Christina","Kimberly","Patricia","Victoria","Philip","Shirley","Billy","Jonathan","Roy","Christopher","Roger","Anna","Richard","Doris","Bruce","Peter","Dorothy","Amanda","Marilyn","Christine","Marie","Karen","Jordan","Wayne","Edward","Justin","Walter","Rebecca","Sharon","Jesse","Joshua","Sophia","Grace","Deborah","Ashley","Joseph","Matthew","Alan","Julie","Abigail","Mark","Megan","Juan","Michael","Frances","George","Eric","William","Cheryl","Daniel","Katherine","Amy","Laura","Donald","Jennifer","Judith","Carolyn","Christian","Janice","Barbara","Elijah","Nancy","Aaron","Teresa","Bobby","Douglas","Russell","Jose","Keith","Kathryn","Samuel","Austin","Jason","Jessica","David","Lauren","Patrick","Gabriel","Alice","Elizabeth","Madison","Carol"};
-    private static int nextNameIndex = 0;
-
     public String name;
     protected int maxSleep;
+    /**
+     * Where the person is, or null if they aren't placed anywhere
+     */
+    private volatile Location location;
 
     public Person(String name,int maxSleep) {
         this.name = name;
         this.maxSleep = maxSleep;
     }
 
-    public static String getRandomName()
+    public Location getLocation()
+    {
+        return location;
+    }
+
+    public void setLocation(Location location)
+    {
+        this.location = location;
+    }
+
+    /**
+     * Picks the next name in turn from SAMPLE_NAMES
+     *
+     * @param nextNameIndex The counter of the simulation the person belongs to, so each simulation names
+     * its people in the same order however many others are running beside it
+     * @return The name
+     */
+    public static String getRandomName(AtomicInteger nextNameIndex)
     {
-        nextNameIndex = ++nextNameIndex % SAMPLE_NAMES.length;
+        //floorMod keeps the index in range once the counter wraps around to negative
+        int index = Math.floorMod(nextNameIndex.incrementAndGet(), SAMPLE_NAMES.length);
 
-        return SAMPLE_NAMES[nextNameIndex];
+        return SAMPLE_NAMES[index];
     }
 
 }
@@ -0,0 +1,163 @@
+package nuber.students;
+
+import nuber.strtk001_utilities.RateMeter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing what a region's bookings are doing.
+ *
+ * The region and its bookings update these as bookings move through their lifecycle. Every counter
+ * is a LongAdder, so updates from many booking threads are spread over separate cells instead of
+ * all contending on one value. Reading a counter while it is being updated may be off by the
+ * updates in flight.
+ *
+ * @author strtk001
+ *
+ */
+public class RegionMetrics implements RegionMetricsMBean
+{
+    /**
+     * The region these metrics belong to
+     */
+    private final NuberRegion region;
+    /**
+     * Bookings accepted by the region
+     */
+    private final LongAdder submitted = new LongAdder();
+    /**
+     * Bookings refused by the region, because it was full or shut down
+     */
+    private final LongAdder rejected = new LongAdder();
+    /**
+     * Bookings that hold an active spot
+     */
+    private final LongAdder active = new LongAdder();
+    /**
+     * Active bookings that are waiting for a driver
+     */
+    private final LongAdder waitingForDriver = new LongAdder();
+    /**
+     * Drivers busy with the region's bookings. A shared trip's driver is counted once, however many
+     * passengers are aboard.
+     */
+    private final LongAdder onTrip = new LongAdder();
+    /**
+     * Bookings that finished with the passenger at their destination
+     */
+    private final LongAdder completed = new LongAdder();
+    /**
+     * Bookings that finished with an exception
+     */
+    private final LongAdder failed = new LongAdder();
+    /**
+     * Bookings cancelled because they were still waiting to start at their deadline
+     */
+    private final LongAdder deadlinesMissed = new LongAdder();
+    /**
+     * Bookings cancelled before they got a driver
+     */
+    private final LongAdder cancelled = new LongAdder();
+    /**
+     * Bookings that gave up waiting for a driver
+     */
+    private final LongAdder driverTimeouts = new LongAdder();
+    /**
+     * Bookings that have been given a driver
+     */
+    private final LongAdder driversAllocated = new LongAdder();
+    /**
+     * The total time bookings given a driver spent waiting for one, in nanoseconds
+     */
+    private final LongAdder driverWaitNanos = new LongAdder();
+    /**
+     * Completions per second
+     */
+    private final RateMeter completions = new RateMeter();
+
+    public RegionMetrics(NuberRegion region)
+    {
+        this.region = region;
+    }
+
+    void bookingsSubmitted(int count) { submitted.add(count); }
+    void bookingsRejected(int count) { rejected.add(count); }
+    void bookingStarted() { active.increment(); }
+    void driverWaitStarted() { waitingForDriver.increment(); }
+
+    /**
+     * @param waitNanos How long the booking waited for the driver
+     */
+    void driverAllocated(long waitNanos)
+    {
+        seatAllocated(waitNanos);
+        onTrip.increment();
+    }
+
+    /**
+     * A booking has been given a seat on a shared trip, whose driver is counted by tripStarted() instead
+     *
+     * @param waitNanos How long the booking waited for the trip's driver
+     */
+    void seatAllocated(long waitNanos)
+    {
+        waitingForDriver.decrement();
+        driversAllocated.increment();
+        driverWaitNanos.add(waitNanos);
+    }
+
+    void tripStarted() { onTrip.increment(); }
+    void driverReleased() { onTrip.decrement(); }
+    void driverWaitCancelled() { waitingForDriver.decrement(); }
+    void deadlineMissed() { deadlinesMissed.increment(); }
+
+    /**
+     * @param active Whether the booking held an active spot, rather than still waiting to start
+     */
+    void bookingCancelled(boolean active)
+    {
+        if (active)
+            this.active.decrement();
+        cancelled.increment();
+    }
+
+    void driverWaitTimedOut()
+    {
+        active.decrement();
+        driverTimeouts.increment();
+    }
+
+    /**
+     * @param success Whether the booking completed, rather than failing
+     */
+    void bookingFinished(boolean success)
+    {
+        active.decrement();
+        if (success)
+        {
+            completed.increment();
+            completions.mark();
+        }
+        else
+        {
+            failed.increment();
+        }
+    }
+
+    public long getSubmitted() { return submitted.sum(); }
+    public long getRejected() { return rejected.sum(); }
+    public long getPending() { return region.getBookingQueueLength(); }
+    public long getActive() { return active.sum(); }
+    public long getWaitingForDriver() { return waitingForDriver.sum(); }
+    public long getOnTrip() { return onTrip.sum(); }
+    public long getCompleted() { return completed.sum(); }
+    public long getFailed() { return failed.sum(); }
+    public long getDeadlinesMissed() { return deadlinesMissed.sum(); }
+    public long getCancelled() { return cancelled.sum(); }
+    public long getDriverTimeouts() { return driverTimeouts.sum(); }
+    public long getThroughputPerSecond() { return completions.getRatePerSecond(); }
+    public long getConcurrencyLimit() { return region.getMaxSimultaneousJobs(); }
+    long getDriversAllocated() { return driversAllocated.sum(); }
+    long getDriverWaitNanos() { return driverWaitNanos.sum(); }
+
+}
@@ -0,0 +1,24 @@
+package nuber.students;
+
+/**
+ * The JMX view of a region's metrics.
+ *
+ * @author strtk001
+ *
+ */
+public interface RegionMetricsMBean
+{
+    long getSubmitted();
+    long getRejected();
+    long getPending();
+    long getActive();
+    long getWaitingForDriver();
+    long getOnTrip();
+    long getCompleted();
+    long getFailed();
+    long getDeadlinesMissed();
+    long getCancelled();
+    long getDriverTimeouts();
+    long getThroughputPerSecond();
+    long getConcurrencyLimit();
+}
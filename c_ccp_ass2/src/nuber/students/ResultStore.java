@@ -0,0 +1,389 @@
+package nuber.students;
+
+import nuber.strtk001_utilities.LatencyHistogram;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A compact store of finished bookings, kept as columns of primitives rather than as BookingResult objects.
+ *
+ * Each booking is written as one record of its ID, region, outcome, priority and phase durations, about
+ * 48 bytes, and holds no reference to its passenger or driver. Records are written into fixed size
+ * chunks of arrays. To keep booking threads from contending, each thread writes into one of several
+ * stripes, each with its own lock and its own chunk, in the same way a LongAdder spreads updates over
+ * cells.
+ *
+ * Once a chunk is full it is sealed. Sealing adds it to the running totals, passes it to every
+ * registered ChunkAggregator, and keeps it until more than the retained number of records have been
+ * sealed after it. Chunks that drop out are reused for new records, so once the store has filled up a
+ * long run allocates nothing more and its footprint stays flat however many bookings it records.
+ *
+ * @author strtk001
+ *
+ */
+public class ResultStore
+{
+    /**
+     * The number of records in each chunk
+     */
+    public static final int CHUNK_SIZE = 4096;
+    /**
+     * The most regions a store can record, as region indexes are kept in a short
+     */
+    private static final int MAX_REGIONS = Short.MAX_VALUE;
+
+    /**
+     * A block of records, one array per column
+     */
+    public static class Chunk
+    {
+        private final int[] bookingIds = new int[CHUNK_SIZE];
+        private final short[] regions = new short[CHUNK_SIZE];
+        private final byte[] outcomes = new byte[CHUNK_SIZE];
+        private final byte[] priorities = new byte[CHUNK_SIZE];
+        /**
+         * One column of durations per phase, indexed by the phase's ordinal
+         */
+        private final long[][] phaseNanos = new long[BookingPhase.values().length][CHUNK_SIZE];
+        /**
+         * The number of records written into the chunk
+         */
+        private int size;
+
+        /**
+         * @return The number of records in the chunk
+         */
+        public int size() { return size; }
+        public int getBookingId(int record) { return bookingIds[record]; }
+        public int getRegion(int record) { return regions[record]; }
+        public BookingOutcome getOutcome(int record) { return OUTCOMES[outcomes[record]]; }
+        public BookingPriority getPriority(int record) { return PRIORITIES[priorities[record]]; }
+
+        /**
+         * @param phase The phase
+         * @param record The record's index in the chunk
+         * @return How long the phase took, in nanoseconds
+         */
+        public long getPhaseNanos(BookingPhase phase, int record) { return phaseNanos[phase.ordinal()][record]; }
+
+        /**
+         * Gives direct access to one phase's column, for aggregating without a call per record.
+         * Only the first size() values are records, and the array must not be changed.
+         *
+         * @param phase The phase
+         * @return The column of the phase's durations, in nanoseconds
+         */
+        public long[] getPhaseColumn(BookingPhase phase) { return phaseNanos[phase.ordinal()]; }
+    }
+
+    /**
+     * Something that is told about every chunk as it is sealed, to aggregate records while they stream in
+     */
+    public interface ChunkAggregator
+    {
+        /**
+         * Called once for each sealed chunk, one chunk at a time, in the order they were sealed.
+         * The chunk may be reused once this returns, so it must not be kept.
+         *
+         * @param chunk The chunk
+         */
+        void accept(Chunk chunk);
+    }
+
+    private static final BookingOutcome[] OUTCOMES = BookingOutcome.values();
+    private static final BookingPriority[] PRIORITIES = BookingPriority.values();
+
+    /**
+     * A lock and the chunk being written through it
+     */
+    private static class Stripe
+    {
+        private final ReentrantLock lock = new ReentrantLock();
+        private Chunk chunk;
+    }
+
+    /**
+     * Where records are written, picked by thread
+     */
+    private final Stripe[] stripes;
+    /**
+     * The most sealed chunks kept for forEachChunk()
+     */
+    private final int retainedChunks;
+    /**
+     * Sealed chunks, oldest first. Guarded by this store's monitor, like everything below.
+     */
+    private final ArrayDeque<Chunk> retained = new ArrayDeque<Chunk>();
+    /**
+     * Chunks that have dropped out of retained, ready to be reused
+     */
+    private final ArrayDeque<Chunk> free = new ArrayDeque<Chunk>();
+    private final List<ChunkAggregator> aggregators = new ArrayList<ChunkAggregator>();
+    /**
+     * The names of the regions records can come from, indexed by region index
+     */
+    private final List<String> regionNames = new ArrayList<String>();
+    /**
+     * Running totals over every sealed record
+     */
+    private long records;
+    private final long[] outcomeCounts = new long[OUTCOMES.length];
+    private final long[] priorityCounts = new long[PRIORITIES.length];
+    /**
+     * The phase durations of completed bookings
+     */
+    private final LatencyHistogram[] completedPhases = new LatencyHistogram[BookingPhase.values().length];
+
+    /**
+     * Creates an empty store
+     *
+     * @param retainedRecords How many of the most recent records to keep for forEachChunk(), rounded up to
+     *                        whole chunks. Older records are only kept in the running totals.
+     */
+    public ResultStore(int retainedRecords)
+    {
+        int stripeCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1));
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe();
+        retainedChunks = (int) ((retainedRecords + (long) CHUNK_SIZE - 1) / CHUNK_SIZE);
+        for (int i = 0; i < completedPhases.length; i++)
+            completedPhases[i] = new LatencyHistogram();
+    }
+
+    /**
+     * Gives a region the index its records are stored under
+     *
+     * @param regionName The region's name
+     * @return The region's index
+     */
+    synchronized int registerRegion(String regionName)
+    {
+        int index = regionNames.indexOf(regionName);
+        if (index >= 0)
+            return index;
+        if (regionNames.size() == MAX_REGIONS)
+            throw new IllegalStateException("A result store can't record more than " + MAX_REGIONS + " regions");
+        regionNames.add(regionName);
+        return regionNames.size() - 1;
+    }
+
+    /**
+     * @param region A region index, as returned by Chunk.getRegion()
+     * @return The region's name
+     */
+    public synchronized String getRegionName(int region)
+    {
+        return regionNames.get(region);
+    }
+
+    /**
+     * Records a finished booking
+     *
+     * @param region The index of the booking's region
+     * @param result The booking's result
+     */
+    void append(int region, BookingResult result)
+    {
+        append(region, result.jobID, result.outcome, result.priority, result.queuedNanos,
+                result.waitingForDriverNanos, result.pickupNanos, result.driveNanos, result.totalNanos);
+    }
+
+    /**
+     * Records a finished booking from its parts, without needing a BookingResult
+     *
+     * @param region The index of the booking's region
+     * @param bookingId The booking's ID
+     * @param outcome How the booking ended
+     * @param priority The booking's priority class
+     * @param queuedNanos How long the booking waited for an active spot, in nanoseconds
+     * @param waitingForDriverNanos How long it waited for a driver, in nanoseconds
+     * @param pickupNanos How long its driver took to reach the passenger, in nanoseconds
+     * @param driveNanos How long the drive to the destination took, in nanoseconds
+     * @param totalNanos How long the whole booking took, in nanoseconds
+     */
+    void append(int region, int bookingId, BookingOutcome outcome, BookingPriority priority, long queuedNanos,
+                long waitingForDriverNanos, long pickupNanos, long driveNanos, long totalNanos)
+    {
+        Stripe stripe = stripes[Long.hashCode(Thread.currentThread().threadId()) & (stripes.length - 1)];
+        Chunk full = null;
+        stripe.lock.lock();
+        try
+        {
+            Chunk chunk = stripe.chunk;
+            if (chunk == null)
+                chunk = stripe.chunk = newChunk();
+            int record = chunk.size;
+            chunk.bookingIds[record] = bookingId;
+            chunk.regions[record] = (short) region;
+            chunk.outcomes[record] = (byte) outcome.ordinal();
+            chunk.priorities[record] = (byte) priority.ordinal();
+            long[][] phases = chunk.phaseNanos;
+            phases[BookingPhase.QUEUED.ordinal()][record] = queuedNanos;
+            phases[BookingPhase.WAITING_FOR_DRIVER.ordinal()][record] = waitingForDriverNanos;
+            phases[BookingPhase.PICKUP.ordinal()][record] = pickupNanos;
+            phases[BookingPhase.DRIVE.ordinal()][record] = driveNanos;
+            phases[BookingPhase.TOTAL.ordinal()][record] = totalNanos;
+            chunk.size = record + 1;
+            if (chunk.size == CHUNK_SIZE)
+            {
+                full = chunk;
+                stripe.chunk = null;
+            }
+        } finally
+        {
+            stripe.lock.unlock();
+        }
+        //sealing happens outside the stripe's lock, so other threads on the stripe carry on into a new chunk
+        if (full != null)
+            seal(full);
+    }
+
+    /**
+     * Seals every partly filled chunk, so the records written so far are in the totals and seen by the
+     * aggregators. Records can still be written while and after this runs.
+     */
+    public void flush()
+    {
+        for (Stripe stripe : stripes)
+        {
+            Chunk partial;
+            stripe.lock.lock();
+            try
+            {
+                partial = stripe.chunk;
+                stripe.chunk = null;
+            } finally
+            {
+                stripe.lock.unlock();
+            }
+            if (partial != null && partial.size > 0)
+                seal(partial);
+        }
+    }
+
+    /**
+     * Adds a sealed chunk to the totals and hands it to the aggregators, then keeps it while it is one of
+     * the most recent chunks
+     *
+     * @param chunk The chunk, which nothing else is writing to
+     */
+    private synchronized void seal(Chunk chunk)
+    {
+        records += chunk.size;
+        for (int i = 0; i < chunk.size; i++)
+        {
+            outcomeCounts[chunk.outcomes[i]]++;
+            priorityCounts[chunk.priorities[i]]++;
+            if (chunk.outcomes[i] == BookingOutcome.COMPLETED.ordinal())
+            {
+                for (int phase = 0; phase < completedPhases.length; phase++)
+                    completedPhases[phase].record(chunk.phaseNanos[phase][i]);
+            }
+        }
+        for (ChunkAggregator aggregator : aggregators)
+            aggregator.accept(chunk);
+
+        retained.addLast(chunk);
+        while (retained.size() > retainedChunks)
+            free.addLast(retained.removeFirst());
+    }
+
+    /**
+     * @return An empty chunk, reusing one that has dropped out of the retained chunks if there is one
+     */
+    private synchronized Chunk newChunk()
+    {
+        Chunk chunk = free.pollFirst();
+        if (chunk == null)
+            return new Chunk();
+        chunk.size = 0;
+        return chunk;
+    }
+
+    /**
+     * Registers an aggregator to be told about every chunk sealed from now on
+     *
+     * @param aggregator The aggregator
+     */
+    public synchronized void addAggregator(ChunkAggregator aggregator)
+    {
+        aggregators.add(aggregator);
+    }
+
+    /**
+     * Visits the retained chunks, oldest first. No chunk is sealed while this runs.
+     *
+     * @param visitor Told about each chunk
+     */
+    public synchronized void forEachChunk(ChunkAggregator visitor)
+    {
+        for (Chunk chunk : retained)
+            visitor.accept(chunk);
+    }
+
+    /**
+     * @return The number of sealed records
+     */
+    public synchronized long getCount()
+    {
+        return records;
+    }
+
+    /**
+     * @param outcome How the bookings ended
+     * @return The number of sealed records with that outcome
+     */
+    public synchronized long getCount(BookingOutcome outcome)
+    {
+        return outcomeCounts[outcome.ordinal()];
+    }
+
+    /**
+     * @param priority The priority class
+     * @return The number of sealed records in that class
+     */
+    public synchronized long getCount(BookingPriority priority)
+    {
+        return priorityCounts[priority.ordinal()];
+    }
+
+    /**
+     * @param phase The phase
+     * @return The histogram of the phase's durations over the sealed records of completed bookings
+     */
+    public LatencyHistogram getCompletedLatencies(BookingPhase phase)
+    {
+        return completedPhases[phase.ordinal()];
+    }
+
+    /**
+     * Lists the number of records with each outcome, and the p50 and p99 of each phase of the completed
+     * bookings in milliseconds
+     */
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder s = new StringBuilder();
+        s.append(records).append(" results");
+        for (BookingOutcome outcome : OUTCOMES)
+            s.append(", ").append(outcome).append(' ').append(outcomeCounts[outcome.ordinal()]);
+        for (BookingPhase phase : BookingPhase.values())
+        {
+            LatencyHistogram histogram = getCompletedLatencies(phase);
+            s.append(String.format(", %s p50/p99 %.1f/%.1fms", phase,
+                    millis(histogram.getPercentile(0.5)), millis(histogram.getPercentile(0.99))));
+        }
+        return s.toString();
+    }
+
+    private static double millis(long nanos)
+    {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+}
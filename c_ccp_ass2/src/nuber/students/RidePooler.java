@@ -0,0 +1,380 @@
+package nuber.students;
+
+import nuber.strtk001_utilities.Clock;
+import nuber.strtk001_utilities.DelayMode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Groups a region's bookings that are waiting for a driver into shared trips, so one driver can take
+ * several passengers at once when there aren't enough drivers to go round.
+ *
+ * A booking that asks for a driver joins a trip that is still waiting for one, if it has a free seat
+ * and its passengers are going from and to near where this passenger is, or else starts a trip of its
+ * own. Each trip asks dispatch for one driver. Once it has one, the trip is closed to new passengers
+ * and the driver collects everyone aboard in the order they joined, then drops them off nearest first.
+ *
+ * Every booking still gets its own driver allocation, pick up and arrival times and its own result.
+ * Only the trip hands the driver back, once the last passenger has been dropped off. If the drivers
+ * are keeping up with demand, trips get their driver as soon as they ask and never have time to fill,
+ * so bookings ride alone just as they would without pooling.
+ *
+ * @author strtk001
+ *
+ */
+class RidePooler
+{
+    /**
+     * One booking's place on a shared trip, and how the booking hears how the trip is going
+     */
+    static final class Seat
+    {
+        private final Booking booking;
+        private final Passenger passenger;
+        /**
+         * Completes with the trip's driver once it has one, or is cancelled if the booking stops waiting first
+         */
+        final CompletableFuture<Driver> driver = new CompletableFuture<Driver>();
+        /**
+         * clock.nanoTime() when the trip got its driver, set before driver completes. The trip may collect the
+         * passenger before a booking blocked on driver wakes up, so the booking's times start from here instead.
+         */
+        long allocatedNanos;
+        /**
+         * Completes once the driver reaches the passenger, with whether they got in
+         */
+        final CompletableFuture<Boolean> boarded = new CompletableFuture<Boolean>();
+        /**
+         * Completes once the passenger has been dropped off
+         */
+        final CompletableFuture<Void> arrived = new CompletableFuture<Void>();
+
+        private Seat(Booking booking, Passenger passenger)
+        {
+            this.booking = booking;
+            this.passenger = passenger;
+        }
+    }
+
+    /**
+     * A trip shared by up to capacity bookings, all served by the same driver
+     */
+    private final class SharedTrip
+    {
+        /**
+         * Where the first passenger is picked up and going, which every other passenger must be near
+         */
+        private final Location pickUp;
+        private final Location destination;
+        /**
+         * The seats taken, in the order they were taken. Guarded by the trip.
+         */
+        private final List<Seat> seats = new ArrayList<Seat>(capacity);
+        /**
+         * Seats whose booking is still waiting for the driver. Guarded by the trip.
+         */
+        private int waiting;
+        /**
+         * Set once the trip takes no more passengers, because it has a driver or everyone gave up on it. Guarded by the trip.
+         */
+        private boolean closed;
+        /**
+         * The trip's request for a driver
+         */
+        private volatile CompletableFuture<Driver> request;
+
+        private SharedTrip(Seat first)
+        {
+            pickUp = first.passenger.getLocation();
+            destination = first.passenger.getDestination();
+            seats.add(first);
+            waiting = 1;
+        }
+
+        /**
+         * Takes a seat on the trip, if it has one free and the passenger is going the same way
+         *
+         * @param seat The seat of the booking joining the trip
+         * @return true if the booking is now on the trip
+         */
+        private synchronized boolean join(Seat seat)
+        {
+            if(closed || seats.size() >= capacity)
+                return false;
+            if(!near(pickUp, seat.passenger.getLocation()) || !near(destination, seat.passenger.getDestination()))
+                return false;
+            seats.add(seat);
+            waiting++;
+            return true;
+        }
+
+        /**
+         * @return true if no more passengers can join the trip
+         */
+        private synchronized boolean isFull()
+        {
+            return closed || seats.size() >= capacity;
+        }
+
+        /**
+         * Asks dispatch for the trip's driver, and gives up a seat whenever its booking stops waiting
+         */
+        private void start()
+        {
+            request = dispatch.acquireDriver(region, pickUp);
+            request.thenAccept(this::driverFound);
+        }
+
+        /**
+         * Gives up a seat whose booking stopped waiting before the trip had a driver. Once every booking
+         * has, the trip no longer needs one.
+         */
+        private void seatCancelled()
+        {
+            synchronized(this)
+            {
+                if(closed || --waiting > 0)
+                    return;
+                closed = true;
+            }
+            tripClosed(this);
+            //the driver may be found as we cancel, in which case they go straight back in driverFound()
+            CompletableFuture<Driver> driverRequest = request;
+            if(driverRequest != null)
+                driverRequest.cancel(false);
+        }
+
+        /**
+         * Closes the trip to new passengers and gives every booking still waiting the driver
+         *
+         * @param driver The trip's driver
+         */
+        private void driverFound(Driver driver)
+        {
+            synchronized(this)
+            {
+                closed = true;
+            }
+            tripClosed(this);
+            //no seats are taken once the trip is closed, and the bookings' stages may run as each seat is given
+            //the driver, so that is done outside the lock
+            List<Seat> riders = new ArrayList<Seat>(seats.size());
+            long now = clock.nanoTime();
+            for(Seat seat : seats)
+            {
+                seat.allocatedNanos = now;
+                if(seat.driver.complete(driver))
+                    riders.add(seat);
+            }
+            if(riders.isEmpty())
+            {
+                dispatch.addDriver(driver, region);
+                return;
+            }
+            metrics.tripStarted();
+            if(riders.size() > 1)
+                dispatch.logEvent(riders.get(0).booking, "Sharing a trip with " + (riders.size() - 1) + " other passengers.");
+            drive(driver, riders).whenComplete((done, failure) -> {
+                if(failure == null)
+                    return;
+                //a leg failed, so no booking is left waiting for the rest of the trip
+                releaseDriver(driver);
+                for(Seat seat : riders)
+                    if(!seat.boarded.completeExceptionally(failure))
+                        seat.arrived.completeExceptionally(failure);
+            });
+        }
+    }
+
+    /**
+     * The central dispatch trips get their drivers from
+     */
+    private final NuberDispatch dispatch;
+    /**
+     * The region whose bookings are pooled
+     */
+    private final NuberRegion region;
+    /**
+     * The most passengers on one trip
+     */
+    private final int capacity;
+    /**
+     * How far apart pick ups, and destinations, can be on one trip
+     */
+    private final double radius;
+    private final DelayMode delayMode;
+    private final Clock clock;
+    /**
+     * The region's metrics, which count each trip's driver once rather than once for every passenger
+     */
+    private final RegionMetrics metrics;
+    /**
+     * Trips still waiting for a driver that have seats free, oldest first. Guarded by the pooler.
+     */
+    private final List<SharedTrip> openTrips = new ArrayList<SharedTrip>();
+
+    /**
+     * @param dispatch The central dispatch trips get their drivers from
+     * @param region The region whose bookings are pooled
+     * @param capacity The most passengers on one trip
+     * @param radius How far apart pick ups, and destinations, can be on one trip
+     */
+    RidePooler(NuberDispatch dispatch, NuberRegion region, int capacity, double radius)
+    {
+        this.dispatch = dispatch;
+        this.region = region;
+        this.capacity = capacity;
+        this.radius = radius;
+        delayMode = dispatch.getConfig().getDelayMode();
+        clock = dispatch.getClock();
+        metrics = region.getMetrics();
+    }
+
+    /**
+     * Finds a booking a seat on a shared trip, joining the oldest open trip going the same way or starting
+     * a new one
+     *
+     * @param booking The booking asking for a driver
+     * @param passenger The booking's passenger
+     * @return The booking's seat, whose driver future completes when the trip gets its driver
+     */
+    Seat requestSeat(Booking booking, Passenger passenger)
+    {
+        Seat seat = new Seat(booking, passenger);
+        SharedTrip started;
+        synchronized(this)
+        {
+            for(int i = 0; i < openTrips.size(); i++)
+            {
+                SharedTrip trip = openTrips.get(i);
+                if(trip.join(seat))
+                {
+                    if(trip.isFull())
+                        openTrips.remove(i);
+                    watch(trip, seat);
+                    return seat;
+                }
+            }
+            started = new SharedTrip(seat);
+            openTrips.add(started);
+        }
+        watch(started, seat);
+        started.start();
+        return seat;
+    }
+
+    /**
+     * Lets the trip know if the seat's booking stops waiting for the driver
+     */
+    private void watch(SharedTrip trip, Seat seat)
+    {
+        seat.driver.whenComplete((driver, failure) -> {
+            if(failure != null)
+                trip.seatCancelled();
+        });
+    }
+
+    /**
+     * Stops offering a trip's seats to new bookings
+     */
+    private synchronized void tripClosed(SharedTrip trip)
+    {
+        openTrips.remove(trip);
+    }
+
+    /**
+     * Hands a trip's driver back to dispatch once they are finished with it
+     */
+    private void releaseDriver(Driver driver)
+    {
+        metrics.driverReleased();
+        dispatch.releaseDriver(driver, region);
+    }
+
+    /**
+     * @return true if two locations are close enough to share a trip, or neither is known
+     */
+    private boolean near(Location first, Location second)
+    {
+        if(first == null || second == null)
+            return first == second;
+        return first.distanceTo(second) <= radius;
+    }
+
+    /**
+     * Drives a shared trip: collects each passenger in turn, boarding them unless their booking was cancelled,
+     * then drops off whoever got in.
+     *
+     * @param driver The trip's driver
+     * @param riders The seats of the bookings that got the driver, in the order they joined
+     * @return A future that completes once the last passenger has been dropped off and the driver handed back
+     */
+    private CompletableFuture<Void> drive(Driver driver, List<Seat> riders)
+    {
+        CompletableFuture<Void> route = CompletableFuture.completedFuture(null);
+        for(Seat seat : riders)
+            route = route.thenCompose(v -> pickUp(driver, seat));
+        return route.thenCompose(v -> {
+            List<Seat> aboard = new ArrayList<Seat>(riders.size());
+            for(Seat seat : riders)
+                if(seat.boarded.join())
+                    aboard.add(seat);
+            return dropOff(driver, aboard);
+        });
+    }
+
+    /**
+     * Drives to a passenger and boards them. A passenger whose booking was cancelled before the driver
+     * set off to them is skipped.
+     */
+    private CompletableFuture<Void> pickUp(Driver driver, Seat seat)
+    {
+        if(seat.booking.isTripCancelled())
+        {
+            seat.boarded.complete(false);
+            return CompletableFuture.completedFuture(null);
+        }
+        return driver.pickUpPassengerAsync(seat.passenger, delayMode, clock)
+                .thenRun(() -> seat.boarded.complete(seat.booking.boardPassenger()));
+    }
+
+    /**
+     * Drops off the passenger whose destination is nearest the driver, then the rest the same way. The
+     * driver is handed back before the last passenger's booking finishes, as they would be from a booking
+     * of their own.
+     *
+     * @param aboard The passengers still in the car, in the order they were collected
+     */
+    private CompletableFuture<Void> dropOff(Driver driver, List<Seat> aboard)
+    {
+        if(aboard.isEmpty())
+        {
+            releaseDriver(driver);
+            return CompletableFuture.completedFuture(null);
+        }
+        int next = 0;
+        Location here = driver.getLocation();
+        if(here != null)
+        {
+            double nearest = Double.MAX_VALUE;
+            for(int i = 0; i < aboard.size(); i++)
+            {
+                Location destination = aboard.get(i).passenger.getDestination();
+                if(destination != null && here.distanceTo(destination) < nearest)
+                {
+                    nearest = here.distanceTo(destination);
+                    next = i;
+                }
+            }
+        }
+        Seat seat = aboard.remove(next);
+        return driver.dropOffPassengerAsync(seat.passenger, delayMode, clock).thenCompose(v -> {
+            if(aboard.isEmpty())
+                releaseDriver(driver);
+            seat.arrived.complete(null);
+            return aboard.isEmpty() ? CompletableFuture.completedFuture(null) : dropOff(driver, aboard);
+        });
+    }
+}
@@ -0,0 +1,94 @@
+package nuber.students;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * One configuration of a simulation for a ScenarioRunner to run: the regions, how many drivers and
+ * passengers there are and how long their trips take, and the settings of the dispatch running them.
+ *
+ * The settings are given as a supplier rather than a DispatchConfig, so every run of the scenario gets a
+ * dispatch of its own, with its own clock, journal and result store, and nothing is shared with the other
+ * scenarios running alongside it.
+ *
+ * @author strtk001
+ *
+ */
+public class Scenario
+{
+    /**
+     * What the scenario is called in reports
+     */
+    public final String name;
+    /**
+     * The region names and maximum simultaneous active bookings allowed in each region
+     */
+    public final Map<String, Integer> regions;
+    /**
+     * The number of drivers to create
+     */
+    public final int drivers;
+    /**
+     * The number of passengers to book, all up front
+     */
+    public final int passengers;
+    /**
+     * The maximum amount a thread will sleep (in millseconds) to simulate driving to, or dropping off a passenger
+     */
+    public final int maxSleep;
+    /**
+     * Creates the settings for each dispatch the scenario is run on
+     */
+    private final Supplier<DispatchConfig> config;
+
+    /**
+     * Creates a scenario run on a dispatch with the default settings, other than not registering its metrics with JMX
+     *
+     * @param name What the scenario is called in reports
+     * @param regions The region names and maximum simultaneous active bookings allowed in each region
+     * @param drivers The number of drivers to create
+     * @param passengers The number of passengers to book
+     * @param maxSleep The maximum amount a thread will sleep (in millseconds)
+     */
+    public Scenario(String name, Map<String, Integer> regions, int drivers, int passengers, int maxSleep)
+    {
+        this(name, regions, drivers, passengers, maxSleep, () -> new DispatchConfig().setRegisterMBeans(false));
+    }
+
+    /**
+     * @param name What the scenario is called in reports
+     * @param regions The region names and maximum simultaneous active bookings allowed in each region
+     * @param drivers The number of drivers to create
+     * @param passengers The number of passengers to book
+     * @param maxSleep The maximum amount a thread will sleep (in millseconds)
+     * @param config Creates new settings for each dispatch the scenario is run on
+     */
+    public Scenario(String name, Map<String, Integer> regions, int drivers, int passengers, int maxSleep,
+                    Supplier<DispatchConfig> config)
+    {
+        if(regions.isEmpty())
+            throw new IllegalArgumentException("Scenario " + name + " has no regions");
+        this.name = name;
+        this.regions = Collections.unmodifiableMap(new HashMap<String, Integer>(regions));
+        this.drivers = drivers;
+        this.passengers = passengers;
+        this.maxSleep = maxSleep;
+        this.config = config;
+    }
+
+    /**
+     * @return New settings for a dispatch to run this scenario on
+     */
+    DispatchConfig createConfig()
+    {
+        return config.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
@@ -0,0 +1,85 @@
+package nuber.students;
+
+import nuber.strtk001_utilities.LatencyHistogram;
+
+/**
+ * How a dispatch got on with one run of a Scenario.
+ *
+ * @author strtk001
+ *
+ */
+public class ScenarioReport
+{
+    /**
+     * The scenario that was run
+     */
+    public final Scenario scenario;
+    /**
+     * The number of bookings that got their passenger to their destination
+     */
+    public final long completed;
+    /**
+     * Bookings that were accepted but ended some other way, such as missing their deadline or timing out
+     */
+    public final long endedEarly;
+    /**
+     * Bookings refused when they were made, because their region was full
+     */
+    public final long rejected;
+    /**
+     * Bookings that failed with an exception
+     */
+    public final long failed;
+    /**
+     * How long the bookings took to finish, on the dispatch's clock, in milliseconds
+     */
+    public final long elapsedMillis;
+    /**
+     * How long the run took in real time, including creating the dispatch, in milliseconds
+     */
+    public final long wallMillis;
+    /**
+     * The rate bookings completed at, per second of the dispatch's clock
+     */
+    public final double completedPerSecond;
+    /**
+     * The latencies of the completed bookings, across all regions
+     */
+    public final BookingLatencies latencies;
+
+    ScenarioReport(Scenario scenario, long completed, long endedEarly, long rejected, long failed,
+                   long elapsedMillis, long wallMillis, BookingLatencies latencies)
+    {
+        this.scenario = scenario;
+        this.completed = completed;
+        this.endedEarly = endedEarly;
+        this.rejected = rejected;
+        this.failed = failed;
+        this.elapsedMillis = elapsedMillis;
+        this.wallMillis = wallMillis;
+        this.completedPerSecond = elapsedMillis > 0 ? completed * 1000.0 / elapsedMillis : 0;
+        this.latencies = latencies;
+    }
+
+    /**
+     * Gets a percentile of the time the completed bookings took from being made until their passenger arrived
+     *
+     * @param fraction The percentile, between 0 and 1
+     * @return The latency in milliseconds
+     */
+    public double getTotalMillis(double fraction)
+    {
+        return latencies.get(BookingPhase.TOTAL).getPercentile(fraction) / 1e6;
+    }
+
+    @Override
+    public String toString()
+    {
+        LatencyHistogram waiting = latencies.get(BookingPhase.WAITING_FOR_DRIVER);
+        return String.format("%s: completed %d (%.1f/s), ended early %d, rejected %d, failed %d, "
+                        + "total p50/p99 %.1f/%.1fms, waiting for driver p50/p99 %.1f/%.1fms, took %dms (%dms real)",
+                scenario, completed, completedPerSecond, endedEarly, rejected, failed,
+                getTotalMillis(0.5), getTotalMillis(0.99),
+                waiting.getPercentile(0.5) / 1e6, waiting.getPercentile(0.99) / 1e6, elapsedMillis, wallMillis);
+    }
+}
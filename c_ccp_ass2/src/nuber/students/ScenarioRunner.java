@@ -0,0 +1,263 @@
+package nuber.students;
+
+import nuber.strtk001_utilities.SimulatedClock;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs many simulation scenarios side by side, each on a dispatch of its own, and compares how they got on.
+ *
+ * A Simulation blocks its caller until it has finished and prints as it goes, so running a sweep of them
+ * takes as long as every scenario added together. The runner splits the scenarios over a fork-join pool
+ * instead, running as many at once as the pool's parallelism allows. Scenarios share nothing, as each gets
+ * its own dispatch and settings, so one being slow or failing doesn't change another's results.
+ *
+ * Usage: ScenarioRunner [parallelism] [passengers] [sim]
+ *
+ * @author strtk001
+ *
+ */
+public class ScenarioRunner
+{
+    /**
+     * Runs the scenarios in a range of the list, splitting it in half until each task has one scenario
+     */
+    private static class Sweep extends RecursiveTask<List<ScenarioReport>>
+    {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The scenarios, which are never serialized as the sweep only runs in the pool that forked it
+         */
+        private final transient List<Scenario> scenarios;
+        private final int from;
+        private final int to;
+
+        Sweep(List<Scenario> scenarios, int from, int to)
+        {
+            this.scenarios = scenarios;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<ScenarioReport> compute()
+        {
+            if(to - from == 1)
+            {
+                List<ScenarioReport> report = new ArrayList<ScenarioReport>(1);
+                report.add(runScenario(scenarios.get(from)));
+                return report;
+            }
+            int middle = (from + to) >>> 1;
+            Sweep first = new Sweep(scenarios, from, middle);
+            first.fork();
+            List<ScenarioReport> second = new Sweep(scenarios, middle, to).compute();
+            List<ScenarioReport> reports = new ArrayList<ScenarioReport>(first.join());
+            reports.addAll(second);
+            return reports;
+        }
+    }
+
+    /**
+     * Runs the scenarios
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a runner that runs as many scenarios at once as there are processors
+     */
+    public ScenarioRunner()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism The most scenarios to run at once
+     */
+    public ScenarioRunner(int parallelism)
+    {
+        //a scenario's worker spends most of its time waiting for its dispatch, whose own threads do the work,
+        //so the pool mustn't start more workers in place of waiting ones, or every scenario would run at once
+        pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, false,
+                parallelism, parallelism, 1, p -> true, 60, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Runs every scenario and waits for them all to finish
+     *
+     * @param scenarios The scenarios to run
+     * @return A report for each scenario, in the same order as the scenarios
+     */
+    public List<ScenarioReport> run(List<Scenario> scenarios)
+    {
+        if(scenarios.isEmpty())
+            return new ArrayList<ScenarioReport>();
+        return pool.invoke(new Sweep(new ArrayList<Scenario>(scenarios), 0, scenarios.size()));
+    }
+
+    /**
+     * Stops the runner's threads once the scenarios already running have finished
+     */
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+
+    /**
+     * Runs one scenario on a new dispatch: books all its passengers up front, shuts the dispatch down and
+     * waits for every booking to finish.
+     *
+     * @param scenario The scenario to run
+     * @return How the dispatch got on
+     */
+    static ScenarioReport runScenario(Scenario scenario)
+    {
+        long wallStart = System.nanoTime();
+        DispatchConfig config = scenario.createConfig();
+        String[] regionNames = scenario.regions.keySet().toArray(new String[0]);
+        NuberDispatch dispatch = new NuberDispatch(new HashMap<String, Integer>(scenario.regions), false, config);
+
+        //in simulated time, stop the clock while we set everything up so every booking starts at the same time
+        SimulatedClock simulatedClock = config.getClock() instanceof SimulatedClock ? (SimulatedClock) config.getClock() : null;
+        if(simulatedClock != null)
+            simulatedClock.hold();
+        long start = dispatch.getClock().nanoTime();
+        List<CompletableFuture<BookingResult>> bookings;
+        try
+        {
+            AtomicInteger names = new AtomicInteger();
+            Simulation.addDrivers(dispatch, config, names, scenario.drivers, scenario.maxSleep);
+            bookings = Simulation.bookPassengers(dispatch, config, names, regionNames, scenario.passengers, scenario.maxSleep);
+        }catch (Exception e)
+        {
+            throw new IllegalStateException("Couldn't book the passengers of " + scenario, e);
+        }finally
+        {
+            dispatch.shutdown();
+            if(simulatedClock != null)
+                simulatedClock.release();
+        }
+        dispatch.getTermination().join();
+        long elapsed = dispatch.getClock().nanoTime() - start;
+
+        long completed = 0;
+        long endedEarly = 0;
+        long rejected = 0;
+        long failed = 0;
+        for(CompletableFuture<BookingResult> booking : bookings)
+        {
+            try
+            {
+                if(booking.get().outcome == BookingOutcome.COMPLETED)
+                    completed++;
+                else
+                    endedEarly++;
+            }catch (ExecutionException e)
+            {
+                if(e.getCause() instanceof BookingRejectedException)
+                    rejected++;
+                else
+                    failed++;
+            }catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while collecting the results of " + scenario, e);
+            }
+        }
+        BookingLatencies latencies = new BookingLatencies();
+        for(BookingLatencies region : dispatch.getLatencies().values())
+            latencies.add(region);
+        return new ScenarioReport(scenario, completed, endedEarly, rejected, failed,
+                TimeUnit.NANOSECONDS.toMillis(elapsed), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - wallStart), latencies);
+    }
+
+    /**
+     * Creates a scenario for every combination of the given region limits, driver counts, passenger counts
+     * and trip lengths.
+     *
+     * @param regionCount The number of regions in each scenario
+     * @param regionLimits The maximum simultaneous active bookings allowed in every region
+     * @param drivers The numbers of drivers
+     * @param passengers The numbers of passengers
+     * @param maxSleeps The maximum amounts a thread will sleep (in millseconds)
+     * @param config Creates new settings for each dispatch
+     * @return The scenarios, varying the trip length fastest and the region limit slowest
+     */
+    public static List<Scenario> sweep(int regionCount, int[] regionLimits, int[] drivers, int[] passengers,
+                                       int[] maxSleeps, Supplier<DispatchConfig> config)
+    {
+        List<Scenario> scenarios = new ArrayList<Scenario>();
+        for(int limit : regionLimits)
+        {
+            HashMap<String, Integer> regions = new HashMap<String, Integer>();
+            for(int r = 0; r < regionCount; r++)
+                regions.put("Region-" + r, limit);
+            for(int driverCount : drivers)
+                for(int passengerCount : passengers)
+                    for(int maxSleep : maxSleeps)
+                        scenarios.add(new Scenario(String.format("limit=%d drivers=%d passengers=%d maxSleep=%d",
+                                limit, driverCount, passengerCount, maxSleep),
+                                regions, driverCount, passengerCount, maxSleep, config));
+        }
+        return scenarios;
+    }
+
+    /**
+     * Prints the reports as a table, with each scenario's throughput compared to the best of them
+     *
+     * @param out Where to print the table
+     * @param reports The reports to compare
+     */
+    public static void printReports(PrintStream out, List<ScenarioReport> reports)
+    {
+        double best = 0;
+        for(ScenarioReport report : reports)
+            best = Math.max(best, report.completedPerSecond);
+        out.printf("%-50s %9s %9s %8s %10s %10s %10s %8s%n",
+                "scenario", "completed", "not done", "per sec", "vs best", "p50 ms", "p99 ms", "took ms");
+        for(ScenarioReport report : reports)
+        {
+            out.printf("%-50s %9d %9d %8.1f %9.0f%% %10.1f %10.1f %8d%n",
+                    report.scenario, report.completed, report.endedEarly + report.rejected + report.failed,
+                    report.completedPerSecond, best > 0 ? 100 * report.completedPerSecond / best : 0,
+                    report.getTotalMillis(0.5), report.getTotalMillis(0.99), report.elapsedMillis);
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        int parallelism = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int passengers = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        boolean simulated = args.length > 2 && args[2].equals("sim");
+
+        Supplier<DispatchConfig> config = () -> {
+            DispatchConfig settings = new DispatchConfig().setRegisterMBeans(false);
+            return simulated ? settings.setClock(new SimulatedClock()) : settings;
+        };
+        List<Scenario> scenarios = sweep(2, new int[] {5, 50}, new int[] {5, 20, 50},
+                new int[] {passengers}, new int[] {50, 200}, config);
+
+        ScenarioRunner runner = new ScenarioRunner(parallelism);
+        long start = System.nanoTime();
+        List<ScenarioReport> reports = runner.run(scenarios);
+        long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        runner.shutdown();
+
+        printReports(System.out, reports);
+        long sequential = 0;
+        for(ScenarioReport report : reports)
+            sequential += report.wallMillis;
+        System.out.println("Ran " + reports.size() + " scenarios in " + took + "ms, " + sequential + "ms one after another");
+    }
+}
@@ -0,0 +1,51 @@
+package nuber.students;
+
+/**
+ * What happened to a dispatch's bookings while it was shut down with a time limit.
+ *
+ * The counts are read from the dispatch's metrics once the shutdown is over, so like a MetricsSnapshot
+ * they may be off by a booking that finished at that very moment.
+ *
+ * @author strtk001
+ *
+ */
+public class ShutdownReport
+{
+    /**
+     * Whether every booking finished within the time limit
+     */
+    public final boolean drained;
+    /**
+     * Bookings that got their passenger to their destination while the dispatch was shutting down
+     */
+    public final long completed;
+    /**
+     * Bookings cancelled before they got a driver, because the time limit passed
+     */
+    public final long cancelled;
+    /**
+     * Bookings still on a trip when the shutdown returned. They are left to finish in the background,
+     * and their drivers are returned as usual.
+     */
+    public final long timedOut;
+    /**
+     * How long the shutdown took, in milliseconds
+     */
+    public final long elapsedMillis;
+
+    ShutdownReport(boolean drained, long completed, long cancelled, long timedOut, long elapsedMillis)
+    {
+        this.drained = drained;
+        this.completed = completed;
+        this.cancelled = cancelled;
+        this.timedOut = timedOut;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    @Override
+    public String toString()
+    {
+        return (drained ? "drained" : "cut short") + " after " + elapsedMillis + "ms: completed " + completed
+                + ", cancelled " + cancelled + ", timed out " + timedOut;
+    }
+}
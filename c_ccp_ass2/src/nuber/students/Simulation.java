@@ -1,13 +1,19 @@
 package nuber.students;
 
+import nuber.strtk001_utilities.ArrivalProcess;
+import nuber.strtk001_utilities.SimulatedClock;
+
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.Random;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.Future;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 public class Simulation {
 
@@ -21,6 +27,65 @@ public class Simulation {
      * @throws Exception
      */
     public Simulation(HashMap<String, Integer> regions, int maxDrivers, int maxPassengers, int maxSleep, boolean logEvents) throws Exception {
+        this(regions, maxDrivers, maxPassengers, maxSleep, logEvents, new DispatchConfig());
+    }
+
+    /**
+     *
+     * @param regions The region names and maximum simultaneous active bookings allowed in that region
+     * @param maxDrivers The number of drivers to create
+     * @param maxPassengers The number of passengers to create
+     * @param maxSleep The maximum amount a thread will sleep (in millseconds)) to simulate driving to, or dropping off a passenger
+     * @param logEvents Whether to log booking events to the console
+     * @param config The settings to create the dispatch with
+     * @throws Exception
+     */
+    public Simulation(HashMap<String, Integer> regions, int maxDrivers, int maxPassengers, int maxSleep, boolean logEvents, DispatchConfig config) throws Exception {
+        this(regions, maxDrivers, maxPassengers, maxSleep, logEvents, config, null);
+    }
+
+    /**
+     * Runs a simulation where passengers arrive over time, rather than all being booked up front,
+     * and reports how well the dispatch kept up with them.
+     *
+     * @param regions The region names and maximum simultaneous active bookings allowed in that region
+     * @param maxDrivers The number of drivers to create
+     * @param maxSleep The maximum amount a thread will sleep (in millseconds)) to simulate driving to, or dropping off a passenger
+     * @param logEvents Whether to log booking events to the console
+     * @param config The settings to create the dispatch with
+     * @param arrivals When passengers arrive, spread evenly over the regions
+     * @param durationMillis How long passengers keep arriving for, in milliseconds
+     * @throws Exception
+     */
+    public Simulation(HashMap<String, Integer> regions, int maxDrivers, int maxSleep, boolean logEvents, DispatchConfig config,
+                      ArrivalProcess arrivals, long durationMillis) throws Exception {
+        this(regions, maxDrivers, 0, maxSleep, logEvents, config,
+                dispatch -> new LoadGenerator(dispatch, arrivals, durationMillis, maxSleep));
+    }
+
+    /**
+     * Runs a simulation that replays the bookings recorded in a trace, at the times they were recorded,
+     * and reports how well the dispatch kept up with them.
+     *
+     * @param regions The region names and maximum simultaneous active bookings allowed in that region
+     * @param maxDrivers The number of drivers to create
+     * @param maxSleep The maximum amount a thread will sleep (in millseconds)) to simulate driving to, or dropping off a passenger
+     * @param logEvents Whether to log booking events to the console
+     * @param config The settings to create the dispatch with
+     * @param trace The bookings to replay, which is read to the end but left open
+     * @throws Exception
+     */
+    public Simulation(HashMap<String, Integer> regions, int maxDrivers, int maxSleep, boolean logEvents, DispatchConfig config,
+                      BookingTrace trace) throws Exception {
+        this(regions, maxDrivers, 0, maxSleep, logEvents, config,
+                dispatch -> new LoadGenerator(dispatch, trace, maxSleep));
+    }
+
+    /**
+     * @param load Creates the generator passengers arrive from, or null to book maxPassengers up front
+     */
+    private Simulation(HashMap<String, Integer> regions, int maxDrivers, int maxPassengers, int maxSleep, boolean logEvents, DispatchConfig config,
+                       Function<NuberDispatch, LoadGenerator> load) throws Exception {
 
         //store the current time
         long start = new Date().getTime();
@@ -28,73 +93,157 @@ public class Simulation {
         //print some space in the console
         System.out.println("\n\n\n");
 
-        //store a queue of all current bookings as Future's that will eventually give us back a BookingResult object
-        Queue<Future<BookingResult>> bookings = new LinkedList<Future<BookingResult>>();
-
         //convert the region names from the regions map into an array
         String[] regionNames = regions.keySet().toArray(new String[0]);
 
         //create a new dispatch object
-        NuberDispatch dispatch = new NuberDispatch(regions, logEvents);
+        NuberDispatch dispatch = new NuberDispatch(regions, logEvents, config);
 
-        // create drivers that are available for jobs
-        for (int i = 0; i < maxDrivers; i++) {
-            Driver d = new Driver("D-" + Person.getRandomName(), maxSleep);
-            dispatch.addDriver(d);
+        //in simulated time, stop the clock while we set everything up so every booking starts at the same time
+        SimulatedClock simulatedClock = config.getClock() instanceof SimulatedClock ? (SimulatedClock) config.getClock() : null;
+        if (simulatedClock != null) {
+            simulatedClock.hold();
         }
+        long simulationStart = dispatch.getClock().nanoTime();
+
+        // create drivers that are available for jobs
+        AtomicInteger names = new AtomicInteger();
+        addDrivers(dispatch, config, names, maxDrivers, maxSleep);
+
+        //passengers arriving over time are made by the generator, and the dispatch is only shut down once they all have
+        CompletableFuture<LoadReport> loadReport = load == null ? null : load.apply(dispatch).start();
 
         // create passengers
-        for (int i = 0; i < maxPassengers; i++) {
+        bookPassengers(dispatch, config, names, regionNames, maxPassengers, maxSleep);
 
-            Passenger p = new Passenger("P-" + Person.getRandomName(), maxSleep);
+        if (loadReport == null) {
+            shutdown(dispatch, regionNames, maxSleep);
+        }
 
-            //choose a random region to assign this person
-            String randomRegion = regionNames[new Random().nextInt(regionNames.length)];
-
-            //add each passenger to dispatch to book their travel for a random region
-            Future<BookingResult> f = dispatch.bookPassenger(p, randomRegion);
-            if (f != null)
-            {
-                //store the future to our list
-                bookings.add(f);
+        //let simulated time run
+        if (simulatedClock != null) {
+            simulatedClock.release();
+        }
+
+        //wait for the last passenger to arrive and finish, printing out an update every 1s in the meantime
+        if (loadReport != null) {
+            while (true) {
+                System.out.println(dispatch.getMetricsSnapshot() + " at " + System.nanoTime());
+                try {
+                    loadReport.get(1, TimeUnit.SECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    //still running
+                }
             }
+            shutdown(dispatch, regionNames, maxSleep);
         }
 
-        // tell all the regions to run all pending passengers, and then shutdown
-        dispatch.shutdown();
+        //wait for every region to finish its bookings, printing out an update every 1s in the meantime
+        do {
 
-        //check that dispatch won't let us book passengers after we've told it to shutdown
-        if (dispatch.bookPassenger(new Passenger("Test", maxSleep), regionNames[new Random().nextInt(regionNames.length)]) != null)
-        {
-            throw new Exception("Dispatch bookPassenger() should return null if passenger requests booking after dispatch has started the shutdown");
+            //print status update
+            System.out.println(dispatch.getMetricsSnapshot() + " at " + System.nanoTime());
+
+        } while (!dispatch.awaitTermination(1, TimeUnit.SECONDS));
+
+        //print out the final information for the simulation run
+        dispatch.flushEvents();
+        long totalTime = new Date().getTime() - start;
+        System.out.println("Simulation complete in "+totalTime+"ms");
+        if (simulatedClock != null) {
+            long simulatedTime = (dispatch.getClock().nanoTime() - simulationStart) / 1_000_000;
+            System.out.println("Simulated " + simulatedTime + "ms of driving, " + simulatedClock.getEventsProcessed() + " events");
+        }
+        if (dispatch.getDroppedEvents() > 0) {
+            System.out.println("Dropped " + dispatch.getDroppedEvents() + " events, the event log couldn't keep up");
+        }
+        for (Map.Entry<String, BookingLatencies> region : dispatch.getLatencies().entrySet()) {
+            System.out.println(region.getKey() + ": " + region.getValue());
+        }
+        if (config.getResultStore() != null) {
+            config.getResultStore().flush();
+            System.out.println("Results: " + config.getResultStore());
+        }
+        if (loadReport != null) {
+            System.out.println("Load: " + loadReport.join());
+        }
+    }
+
+    /**
+     * Creates drivers and adds them to a dispatch
+     *
+     * @param dispatch The dispatch to add them to
+     * @param config The settings the dispatch was created with
+     * @param names The counter the simulation's names are picked with
+     * @param maxDrivers The number of drivers to create
+     * @param maxSleep The maximum amount a thread will sleep (in millseconds)
+     */
+    static void addDrivers(NuberDispatch dispatch, DispatchConfig config, AtomicInteger names, int maxDrivers, int maxSleep) {
+
+        for (int i = 0; i < maxDrivers; i++) {
+            Driver d = new Driver("D-" + Person.getRandomName(names), maxSleep);
+            //when matching by location, spread everyone over a city a trip of up to maxSleep wide
+            if (config.getDriverMatching() == DriverMatching.NEAREST) {
+                d.setLocation(Location.random(maxSleep));
+            }
+            dispatch.addDriver(d);
         }
+    }
 
-        //whilst there are still active bookings, print out an update every 1s
-        while (bookings.size() > 0) {
+    /**
+     * Creates passengers and books each of them into a random region
+     *
+     * @param dispatch The dispatch to book them through
+     * @param config The settings the dispatch was created with
+     * @param names The counter the simulation's names are picked with
+     * @param regionNames The names of its regions
+     * @param maxPassengers The number of passengers to create
+     * @param maxSleep The maximum amount a thread will sleep (in millseconds)
+     * @return The bookings, with a future failed with a BookingRejectedException for any the dispatch refused
+     * @throws Exception if a booking couldn't be made
+     */
+    static List<CompletableFuture<BookingResult>> bookPassengers(NuberDispatch dispatch, DispatchConfig config, AtomicInteger names,
+                                                                 String[] regionNames, int maxPassengers, int maxSleep) throws Exception {
 
-            //go through each booking, and if it's done, remove it from our active bookings list
-            Iterator<Future<BookingResult>> i = bookings.iterator();
-            while (i.hasNext()) {
-                Future<BookingResult> f = i.next();
+        List<CompletableFuture<BookingResult>> bookings = new ArrayList<CompletableFuture<BookingResult>>(maxPassengers);
+        for (int i = 0; i < maxPassengers; i++) {
 
-                if (f.isDone()) {
-                    i.remove();
-                }
+            Passenger p = new Passenger("P-" + Person.getRandomName(names), maxSleep);
+            if (config.getDriverMatching() == DriverMatching.NEAREST) {
+                p.setLocation(Location.random(maxSleep));
+                p.setDestination(Location.random(maxSleep));
             }
 
-            //print status update
-            System.out.println("Active bookings: " + bookings.size()+", pending: "+dispatch.getBookingsAwaitingDriver() + " at " + System.nanoTime());
+            //choose a random region to assign this person
+            String randomRegion = regionNames[ThreadLocalRandom.current().nextInt(regionNames.length)];
 
-            //sleep for 1s and then print out the current bookings
+            //add each passenger to dispatch to book their travel for a random region, carrying on past any it refuses
             try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                bookings.add(dispatch.bookPassenger(p, randomRegion));
+            } catch (BookingRejectedException e) {
+                bookings.add(CompletableFuture.failedFuture(e));
             }
         }
+        return bookings;
+    }
 
-        //print out the final information for the simulation run
-        long totalTime = new Date().getTime() - start;
-        System.out.println("Simulation complete in "+totalTime+"ms");
+    /**
+     * Tells all the regions to run all pending passengers, and then shutdown
+     *
+     * @param dispatch The dispatch to shutdown
+     * @param regionNames The names of its regions
+     * @param maxSleep The maximum amount a thread will sleep (in millseconds)
+     * @throws Exception if the dispatch still accepts bookings once it has been told to shutdown
+     */
+    private static void shutdown(NuberDispatch dispatch, String[] regionNames, int maxSleep) throws Exception {
+
+        dispatch.shutdown();
+
+        //check that dispatch won't let us book passengers after we've told it to shutdown
+        if (dispatch.bookPassenger(new Passenger("Test", maxSleep), regionNames[ThreadLocalRandom.current().nextInt(regionNames.length)]) != null)
+        {
+            throw new Exception("Dispatch bookPassenger() should return null if passenger requests booking after dispatch has started the shutdown");
+        }
     }
 }